@@ -0,0 +1,180 @@
+package com.infiniteplay.accord.ai;
+
+import ai.djl.modality.Classifications;
+import ai.djl.translate.TranslateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+//collects concurrent classification requests for up to maxDelayMillis or maxBatchSize items
+//and runs them as one padded batch through the predictor pool; one dispatcher runs per pooled predictor.
+//since the dispatchers never wait for a predictor, the overflow policy of the pool is applied here: requests wait in a
+//bounded queue, and with FAIL_OPEN or FAIL_CLOSED a full queue or a result that takes longer than maxWaitMillis
+//ends in a PredictorPoolExhaustedException carrying the verdict of the policy. with BLOCK the caller waits for both
+public class BatchedTextClassifier implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchedTextClassifier.class);
+
+    private final PredictorPool<String, Classifications> predictorPool;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final String name;
+    private final PredictorPool.OverflowPolicy overflowPolicy;
+    private final long maxWaitMillis;
+    private final BlockingQueue<PendingRequest> queue;
+    private final List<Thread> dispatchers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder overflowCount = new LongAdder();
+
+    private static final class PendingRequest {
+        private final String input;
+        private final CompletableFuture<Classifications> result = new CompletableFuture<>();
+
+        private PendingRequest(String input) {
+            this.input = input;
+        }
+    }
+
+    public BatchedTextClassifier(String name, PredictorPool<String, Classifications> predictorPool, int maxBatchSize, long maxDelayMillis,
+                                 int queueCapacity, long maxWaitMillis) {
+        this.name = name;
+        this.predictorPool = predictorPool;
+        this.overflowPolicy = predictorPool.getOverflowPolicy();
+        this.maxWaitMillis = maxWaitMillis;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        for (int i = 0; i < predictorPool.getSize(); i++) {
+            Thread dispatcher = new Thread(this::dispatchLoop, name + "-batcher-" + i);
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+            dispatchers.add(dispatcher);
+        }
+    }
+
+    public Classifications classify(String input) throws TranslateException {
+        requestCount.increment();
+        PendingRequest request = new PendingRequest(input);
+        try {
+            if (overflowPolicy == PredictorPool.OverflowPolicy.BLOCK) {
+                queue.put(request);
+                return request.result.get();
+            }
+            if (!queue.offer(request)) {
+                overflowCount.increment();
+                throw new PredictorPoolExhaustedException(name, overflowPolicy);
+            }
+            return request.result.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            //the dispatchers skip requests that were given up on
+            request.result.cancel(false);
+            overflowCount.increment();
+            throw new PredictorPoolExhaustedException(name, overflowPolicy);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.result.cancel(false);
+            throw new TranslateException("Interrupted while waiting for classification", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TranslateException translateException) {
+                throw translateException;
+            }
+            throw new TranslateException(e.getCause());
+        }
+    }
+
+    private void dispatchLoop() {
+        List<PendingRequest> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                PendingRequest first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - batch.size());
+
+                //wait a little for concurrent requests to join the batch
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    PendingRequest next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                runBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (PendingRequest request : batch) {
+                    request.result.completeExceptionally(new TranslateException("Classifier is shut down"));
+                }
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        PendingRequest remaining;
+        while ((remaining = queue.poll()) != null) {
+            remaining.result.completeExceptionally(new TranslateException("Classifier is shut down"));
+        }
+    }
+
+    private void runBatch(List<PendingRequest> batch) {
+        batch.removeIf(request -> request.result.isDone());
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            List<Classifications> results = predictorPool.batchPredict(batch.stream().map(request -> request.input).toList());
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results.get(i));
+            }
+        } catch (Exception e) {
+            log.error("Error while running batched classification: " + e.getMessage());
+            for (PendingRequest request : batch) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    //requests that were not classified, because the queue was full or the result took longer than maxWaitMillis
+    public long getOverflowCount() {
+        return overflowCount.sum();
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Thread dispatcher : dispatchers) {
+            dispatcher.interrupt();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.infiniteplay.accord.ai;
+
+import ai.djl.modality.Classifications;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//bounded LRU cache of classification results keyed by a hash of the classified content.
+//entries expire after ttlMinutes. the cache only lives in memory and the models are only loaded at startup,
+//so a replaced model never sees the verdicts of the old one
+public class ClassificationCache {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, CachedClassification> entries;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    private record CachedClassification(Classifications classifications, long expiresAt) {
+    }
+
+    public ClassificationCache(int maxEntries, long ttlMinutes) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MINUTES.toNanos(ttlMinutes);
+        //access order makes the eldest entry the least recently used one
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedClassification> eldest) {
+                return size() > ClassificationCache.this.maxEntries;
+            }
+        };
+    }
+
+    public synchronized Classifications get(String key) {
+        CachedClassification cached = entries.get(key);
+        if (cached == null) {
+            missCount.increment();
+            return null;
+        }
+        if (cached.expiresAt() - System.nanoTime() < 0) {
+            entries.remove(key);
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return cached.classifications();
+    }
+
+    public synchronized void put(String key, Classifications classifications) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        entries.put(key, new CachedClassification(classifications, System.nanoTime() + ttlNanos));
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public double getHitRatio() {
+        long hits = hitCount.sum();
+        long total = hits + missCount.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    //whitespace and unicode form differences do not change the verdict, so they should not miss the cache
+    public static String textKey(String model, String text) {
+        String normalized = Normalizer.normalize(text.strip(), Normalizer.Form.NFC).replaceAll("\\s+", " ");
+        return contentKey(model, normalized.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String contentKey(String model, byte[] content) {
+        MessageDigest digest = newDigest();
+        return model + ":" + HexFormat.of().formatHex(digest.digest(content));
+    }
+
+    //hashes the stream in small chunks so large uploads are never held in memory at once
+    public static String contentKey(String model, InputStream content) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return model + ":" + HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //every java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
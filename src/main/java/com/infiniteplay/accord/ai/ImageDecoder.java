@@ -0,0 +1,71 @@
+package com.infiniteplay.accord.ai;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+//decodes uploads straight to roughly the classifier input size.
+//only every n-th pixel of every n-th row is decoded, so a large photo never exists in memory at full resolution
+public final class ImageDecoder {
+
+    private ImageDecoder() {
+    }
+
+    //returns null if the stream does not contain a readable image
+    public static BufferedImage decode(InputStream input, int targetSize) {
+        try (ImageInputStream imageInput = ImageIO.createImageInputStream(input)) {
+            if (imageInput == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInput);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInput, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+
+                //keep the shorter side at or above targetSize so the final resize only scales down a little
+                int subsampling = Math.max(1, Math.min(width, height) / targetSize);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            //corrupt or truncated images are treated as non-images, like ImageIO.read failures were
+            return null;
+        }
+    }
+
+    //reads only the image header; returns null if the stream does not contain a readable image
+    public static Dimension readDimensions(InputStream input) {
+        try (ImageInputStream imageInput = ImageIO.createImageInputStream(input)) {
+            if (imageInput == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInput);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInput, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.infiniteplay.accord.ai;
+
+import ai.djl.inference.Predictor;
+import ai.djl.repository.zoo.ZooModel;
+import ai.djl.translate.TranslateException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//djl predictors are not thread safe; this pool hands out one predictor per caller at a time
+public class PredictorPool<I, O> implements AutoCloseable {
+
+    public enum OverflowPolicy {
+        //wait until a predictor is returned
+        BLOCK,
+        //give up after maxWaitMillis and treat the content as safe
+        FAIL_OPEN,
+        //give up after maxWaitMillis and treat the content as flagged
+        FAIL_CLOSED
+    }
+
+    private final String name;
+    private final ZooModel<I, O> model;
+    private final OverflowPolicy overflowPolicy;
+    private final long maxWaitMillis;
+    private final ArrayBlockingQueue<Predictor<I, O>> idle;
+    private final List<Predictor<I, O>> predictors = new ArrayList<>();
+
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder waitCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder overflowCount = new LongAdder();
+
+    public PredictorPool(String name, ZooModel<I, O> model, int size, OverflowPolicy overflowPolicy, long maxWaitMillis) {
+        this.name = name;
+        this.model = model;
+        this.overflowPolicy = overflowPolicy;
+        this.maxWaitMillis = maxWaitMillis;
+        this.idle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            Predictor<I, O> predictor = model.newPredictor();
+            predictors.add(predictor);
+            idle.add(predictor);
+        }
+    }
+
+    public O predict(I input) throws TranslateException {
+        Predictor<I, O> predictor = borrow();
+        try {
+            return predictor.predict(input);
+        } finally {
+            idle.offer(predictor);
+        }
+    }
+
+    public List<O> batchPredict(List<I> inputs) throws TranslateException {
+        Predictor<I, O> predictor = borrow();
+        try {
+            return predictor.batchPredict(inputs);
+        } finally {
+            idle.offer(predictor);
+        }
+    }
+
+    private Predictor<I, O> borrow() throws TranslateException {
+        borrowCount.increment();
+        Predictor<I, O> predictor = idle.poll();
+        if (predictor != null) {
+            return predictor;
+        }
+
+        waitCount.increment();
+        long start = System.nanoTime();
+        try {
+            predictor = overflowPolicy == OverflowPolicy.BLOCK ? idle.take() : idle.poll(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TranslateException("Interrupted while waiting for a predictor of " + name, e);
+        } finally {
+            long waited = System.nanoTime() - start;
+            totalWaitNanos.add(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+        }
+
+        if (predictor == null) {
+            overflowCount.increment();
+            throw new PredictorPoolExhaustedException(name, overflowPolicy);
+        }
+        return predictor;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSize() {
+        return predictors.size();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    public long getWaitCount() {
+        return waitCount.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        long waits = waitCount.sum();
+        return waits == 0 ? 0 : totalWaitNanos.sum() / 1_000_000.0 / waits;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    public long getOverflowCount() {
+        return overflowCount.sum();
+    }
+
+    @Override
+    public void close() {
+        for (Predictor<I, O> predictor : predictors) {
+            predictor.close();
+        }
+        model.close();
+    }
+}
@@ -0,0 +1,18 @@
+package com.infiniteplay.accord.ai;
+
+import ai.djl.translate.TranslateException;
+
+public class PredictorPoolExhaustedException extends TranslateException {
+
+    private final PredictorPool.OverflowPolicy overflowPolicy;
+
+    public PredictorPoolExhaustedException(String poolName, PredictorPool.OverflowPolicy overflowPolicy) {
+        super("No predictor of " + poolName + " became available in time");
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    //the verdict to use for content that could not be classified
+    public boolean isFlagged() {
+        return overflowPolicy == PredictorPool.OverflowPolicy.FAIL_CLOSED;
+    }
+}
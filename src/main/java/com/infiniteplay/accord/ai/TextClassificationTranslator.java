@@ -5,12 +5,14 @@ import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
 import ai.djl.modality.Classifications;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
 import ai.djl.translate.Batchifier;
 import ai.djl.translate.Translator;
 import ai.djl.translate.TranslatorContext;
 
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class TextClassificationTranslator implements Translator<String, Classifications> {
@@ -48,8 +50,38 @@ public class TextClassificationTranslator implements Translator<String, Classifi
         return new Classifications(labels, probs);
     }
 
+    @Override
+    public NDList batchProcessInput(TranslatorContext ctx, List<String> inputs) {
+        //sequences of a batch differ in length; right-pad them and mask the padding out
+        Encoding[] tokens = tokenizer.batchEncode(inputs);
+        int maxLength = 0;
+        for (Encoding token : tokens) {
+            maxLength = Math.max(maxLength, token.getIds().length);
+        }
+        long[][] inputIds = new long[tokens.length][maxLength];
+        long[][] attentionMask = new long[tokens.length][maxLength];
+        for (int i = 0; i < tokens.length; i++) {
+            long[] ids = tokens[i].getIds();
+            System.arraycopy(ids, 0, inputIds[i], 0, ids.length);
+            System.arraycopy(tokens[i].getAttentionMask(), 0, attentionMask[i], 0, ids.length);
+        }
+        NDManager manager = ctx.getNDManager();
+
+        return new NDList(manager.create(inputIds), manager.create(attentionMask));
+    }
+
+    @Override
+    public List<Classifications> batchProcessOutput(TranslatorContext ctx, NDList list) {
+        NDArray probs = list.singletonOrThrow().softmax(1);
+        List<Classifications> results = new ArrayList<>();
+        for (int i = 0; i < probs.getShape().get(0); i++) {
+            results.add(new Classifications(labels, probs.get(i)));
+        }
+        return results;
+    }
+
     @Override
     public Batchifier getBatchifier() {
-        return null;
+        return Batchifier.STACK;
     }
 }
\ No newline at end of file
@@ -2,14 +2,16 @@ package com.infiniteplay.accord.configs;
 
 
 import ai.djl.MalformedModelException;
-import ai.djl.inference.Predictor;
 import ai.djl.modality.Classifications;
 import ai.djl.modality.cv.Image;
 import ai.djl.repository.zoo.Criteria;
 import ai.djl.repository.zoo.ModelNotFoundException;
 import ai.djl.repository.zoo.ZooModel;
+import com.infiniteplay.accord.ai.BatchedTextClassifier;
 import com.infiniteplay.accord.ai.ImageClassificationTranslator;
+import com.infiniteplay.accord.ai.PredictorPool;
 import com.infiniteplay.accord.ai.TextClassificationTranslator;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -25,8 +27,38 @@ public class AIModelConfig {
     @Value("${aimodels.path}")
     String aiModelsPath;
 
+    @Value("${aimodels.pool.size}")
+    int poolSize;
+
+    @Value("${aimodels.pool.overflow}")
+    PredictorPool.OverflowPolicy poolOverflowPolicy;
+
+    @Value("${aimodels.pool.maxwaitms}")
+    long poolMaxWaitMs;
+
+    @Value("${aimodels.batch.maxsize}")
+    int batchMaxSize;
+
+    @Value("${aimodels.batch.maxdelayms}")
+    long batchMaxDelayMs;
+
+    @Value("${aimodels.batch.queuecapacity}")
+    int batchQueueCapacity;
+
+    @Bean
+    public BatchedTextClassifier nsfwTextClassifier(@Qualifier("nsfwTextDetector") PredictorPool<String, Classifications> nsfwTextDetector) {
+        return new BatchedTextClassifier("nsfwTextClassifier", nsfwTextDetector, batchMaxSize, batchMaxDelayMs,
+                batchQueueCapacity, poolMaxWaitMs);
+    }
+
+    @Bean
+    public BatchedTextClassifier spamTextClassifier(@Qualifier("spamTextDetector") PredictorPool<String, Classifications> spamTextDetector) {
+        return new BatchedTextClassifier("spamTextClassifier", spamTextDetector, batchMaxSize, batchMaxDelayMs,
+                batchQueueCapacity, poolMaxWaitMs);
+    }
+
     @Bean
-    public Predictor<String, Classifications> nsfwTextDetector() throws ModelNotFoundException, MalformedModelException, IOException {
+    public PredictorPool<String, Classifications> nsfwTextDetector() throws ModelNotFoundException, MalformedModelException, IOException {
         List<String> classLabels = Arrays.asList("safe", "nsfw");
         String modelPath = aiModelsPath + "/nsfw_text_detector/model.onnx";
         String tokenizerPath = aiModelsPath + "/nsfw_text_detector";
@@ -38,13 +70,12 @@ public class AIModelConfig {
                 .optEngine("OnnxRuntime")
                 .build();
         ZooModel<String, Classifications> model = criteria.loadModel();
-        Predictor<String, Classifications> predictor = model.newPredictor();
 
-        return predictor;
+        return new PredictorPool<>("nsfwTextDetector", model, poolSize, poolOverflowPolicy, poolMaxWaitMs);
     }
 
     @Bean
-    public Predictor<String, Classifications> spamTextDetector() throws ModelNotFoundException, MalformedModelException, IOException {
+    public PredictorPool<String, Classifications> spamTextDetector() throws ModelNotFoundException, MalformedModelException, IOException {
         List<String> classLabels = Arrays.asList("ham", "spam");
         String modelPath = aiModelsPath + "/spam_text_detector/model.onnx";
         String tokenizerPath = aiModelsPath + "/spam_text_detector";
@@ -56,13 +87,12 @@ public class AIModelConfig {
                 .optEngine("OnnxRuntime")
                 .build();
         ZooModel<String, Classifications> model = criteria.loadModel();
-        Predictor<String, Classifications> predictor = model.newPredictor();
 
-        return predictor;
+        return new PredictorPool<>("spamTextDetector", model, poolSize, poolOverflowPolicy, poolMaxWaitMs);
     }
 
     @Bean
-    public Predictor<Image, Classifications> nsfwImageDetector() throws ModelNotFoundException, MalformedModelException, IOException {
+    public PredictorPool<Image, Classifications> nsfwImageDetector() throws ModelNotFoundException, MalformedModelException, IOException {
         List<String> classLabels = Arrays.asList("normal", "nsfw");
         String modelPath = aiModelsPath + "/nsfw_image_detector/model.onnx";
 
@@ -73,9 +103,8 @@ public class AIModelConfig {
                 .optEngine("OnnxRuntime")
                 .build();
         ZooModel<Image, Classifications> model = criteria.loadModel();
-        Predictor<Image, Classifications> predictor = model.newPredictor();
 
-        return predictor;
+        return new PredictorPool<>("nsfwImageDetector", model, poolSize, poolOverflowPolicy, poolMaxWaitMs);
     }
 
 }
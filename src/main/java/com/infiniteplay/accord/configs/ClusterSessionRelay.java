@@ -0,0 +1,100 @@
+package com.infiniteplay.accord.configs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.infiniteplay.accord.interceptors.RoomSubscriptionInterceptor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompBrokerRelayMessageHandler;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+//in cluster mode a user may reconnect through another node while the old socket is still open on this one.
+//every node publishes the sockets it accepts to CONNECTIONS_DESTINATION over the broker relay's system connection,
+//and closes its own socket of a user that connected elsewhere, like the duplicate session handler does locally.
+//chatroom subscriptions revoked on one node are published to ROOM_REVOCATIONS_DESTINATION for the node holding the socket
+@Slf4j
+public class ClusterSessionRelay implements MessageHandler {
+
+    //destinations the nodes use among themselves, clients may neither subscribe nor send to them
+    public static final String CLUSTER_DESTINATION_PREFIX = "/general/cluster/";
+    public static final String CONNECTIONS_DESTINATION = CLUSTER_DESTINATION_PREFIX + "connections";
+    public static final String UNRESOLVED_USER_DESTINATION = CLUSTER_DESTINATION_PREFIX + "unresolved-user";
+    public static final String USER_REGISTRY_DESTINATION = CLUSTER_DESTINATION_PREFIX + "user-registry";
+    public static final String ROOM_REVOCATIONS_DESTINATION = CLUSTER_DESTINATION_PREFIX + "room-revocations";
+
+    private final String nodeId;
+    private final Map<Integer, WebSocketSession> sessionMap;
+    private final RoomSubscriptionInterceptor roomSubscriptionInterceptor;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private SimpMessagingTemplate broker;
+
+    public ClusterSessionRelay(String nodeId, Map<Integer, WebSocketSession> sessionMap, RoomSubscriptionInterceptor roomSubscriptionInterceptor) {
+        this.nodeId = nodeId;
+        this.sessionMap = sessionMap;
+        this.roomSubscriptionInterceptor = roomSubscriptionInterceptor;
+    }
+
+    //has to run before the relay starts, the system subscriptions are made when its system connection is established
+    public void register(StompBrokerRelayMessageHandler relay, SimpMessagingTemplate broker) {
+        this.broker = broker;
+        Map<String, MessageHandler> subscriptions = relay.getSystemSubscriptions() == null ? new HashMap<>() : new HashMap<>(relay.getSystemSubscriptions());
+        subscriptions.put(CONNECTIONS_DESTINATION, this);
+        subscriptions.put(ROOM_REVOCATIONS_DESTINATION, this::handleRevocation);
+        relay.setSystemSubscriptions(subscriptions);
+    }
+
+    public void publishConnection(int userId) {
+        if (broker == null) {
+            return;
+        }
+        broker.convertAndSend(CONNECTIONS_DESTINATION, Map.of("nodeId", nodeId, "userId", userId));
+    }
+
+    public void publishRevocation(int userId, int chatRoomId) {
+        if (broker == null) {
+            return;
+        }
+        broker.convertAndSend(ROOM_REVOCATIONS_DESTINATION, Map.of("nodeId", nodeId, "userId", userId, "chatRoomId", chatRoomId));
+    }
+
+    @Override
+    public void handleMessage(Message<?> message) {
+        if (!(message.getPayload() instanceof byte[] body)) {
+            return;
+        }
+        try {
+            Map<?, ?> connection = objectMapper.readValue(body, Map.class);
+            if (nodeId.equals(connection.get("nodeId")) || !(connection.get("userId") instanceof Integer userId)) {
+                return;
+            }
+            WebSocketSession session = sessionMap.remove(userId);
+            if (session != null) {
+                //duplicate session on another node, close the connection held here
+                session.close();
+            }
+        } catch (IOException e) {
+            log.error("Error while handling a connection of another node: " + e.getMessage());
+        }
+    }
+
+    private void handleRevocation(Message<?> message) {
+        if (!(message.getPayload() instanceof byte[] body)) {
+            return;
+        }
+        try {
+            Map<?, ?> revocation = objectMapper.readValue(body, Map.class);
+            if (nodeId.equals(revocation.get("nodeId")) || !(revocation.get("userId") instanceof Integer userId)
+                    || !(revocation.get("chatRoomId") instanceof Integer chatRoomId)) {
+                return;
+            }
+            roomSubscriptionInterceptor.revokeLocally(userId, chatRoomId);
+        } catch (IOException e) {
+            log.error("Error while handling a revocation of another node: " + e.getMessage());
+        }
+    }
+}
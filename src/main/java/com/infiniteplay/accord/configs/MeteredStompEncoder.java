@@ -0,0 +1,26 @@
+package com.infiniteplay.accord.configs;
+
+import com.infiniteplay.accord.services.SocketFrameStats;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+
+import java.util.Map;
+
+//the stomp handler encodes a frame for every session, because the subscription and message-id headers differ per session.
+//the body bytes are shared by all sessions of a broadcast (see BroadcastService), only the header block is encoded again
+public class MeteredStompEncoder extends StompEncoder {
+
+    private final SocketFrameStats socketFrameStats;
+
+    public MeteredStompEncoder(SocketFrameStats socketFrameStats) {
+        this.socketFrameStats = socketFrameStats;
+    }
+
+    @Override
+    public byte[] encode(Map<String, Object> headers, byte[] payload) {
+        long start = System.nanoTime();
+        byte[] frame = super.encode(headers, payload);
+        socketFrameStats.recordFrame(SimpMessageHeaderAccessor.getDestination(headers), frame.length, System.nanoTime() - start);
+        return frame;
+    }
+}
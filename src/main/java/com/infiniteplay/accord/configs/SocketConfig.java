@@ -1,31 +1,49 @@
 package com.infiniteplay.accord.configs;
 
+import com.infiniteplay.accord.interceptors.OutboundBackpressureInterceptor;
+import com.infiniteplay.accord.interceptors.RoomSubscriptionInterceptor;
 import com.infiniteplay.accord.interceptors.SocketAuthenticationInterceptor;
 import com.infiniteplay.accord.interceptors.SocketUsernameInterceptor;
 import com.infiniteplay.accord.security.authentication.JWTHandler;
+import com.infiniteplay.accord.services.SocketFrameStats;
 import com.infiniteplay.accord.utils.GenericException;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.messaging.converter.MessageConverter;
 import org.springframework.messaging.handler.invocation.HandlerMethodArgumentResolver;
 import org.springframework.messaging.handler.invocation.HandlerMethodReturnValueHandler;
 import org.springframework.messaging.simp.config.ChannelRegistration;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.simp.stomp.StompBrokerRelayMessageHandler;
+import org.springframework.util.StringUtils;
+import org.springframework.web.socket.messaging.StompSubProtocolHandler;
+import org.springframework.web.socket.messaging.SubProtocolHandler;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.config.annotation.*;
 import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
 import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Configuration
 @EnableWebSocketMessageBroker
-public class SocketConfig implements WebSocketMessageBrokerConfigurer {
+public class SocketConfig implements WebSocketMessageBrokerConfigurer, SmartInitializingSingleton {
 
 
     @Autowired
@@ -38,11 +56,59 @@ public class SocketConfig implements WebSocketMessageBrokerConfigurer {
     private Map<Integer, WebSocketSession> sessionMap = new ConcurrentHashMap<>();
     @Autowired
     private SocketUsernameInterceptor socketUsernameInterceptor;
+    @Autowired
+    private RoomSubscriptionInterceptor roomSubscriptionInterceptor;
+    @Autowired
+    private SocketFrameStats socketFrameStats;
+    @Autowired
+    private ApplicationContext applicationContext;
+    @Autowired
+    private OutboundBackpressureInterceptor outboundBackpressureInterceptor;
+
+    //a session is closed when its unsent frames exceed the buffer limit, or when one send takes longer than the time limit
+    @Value("${socket.sendbuffer.limit}")
+    private int sendBufferLimit;
+    @Value("${socket.sendtime.limit}")
+    private int sendTimeLimit;
+    //0 uses twice the number of cores
+    @Value("${socket.outbound.threads}")
+    private int outboundThreads;
+
+    //cluster mode: every node relays to an external stomp broker instead of running the simple broker in memory
+    @Value("${socket.relay.enabled}")
+    private boolean relayEnabled;
+    @Value("${socket.relay.host}")
+    private String relayHost;
+    @Value("${socket.relay.port}")
+    private int relayPort;
+    @Value("${socket.relay.login}")
+    private String relayLogin;
+    @Value("${socket.relay.passcode}")
+    private String relayPasscode;
+    @Value("${socket.node.id:}")
+    private String nodeId;
+
+    private ClusterSessionRelay clusterSessionRelay;
 
 
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        config.enableSimpleBroker("/general", "/user");
+        if (relayEnabled) {
+            //the broker has to accept any destination below /general (activemq artemis does, rabbitmq would need /topic names).
+            //user destinations are resolved against the sessions of every node through the user registry broadcast,
+            //the ones still unresolved locally are handed to the other nodes through the user destination broadcast
+            config.enableStompBrokerRelay("/general")
+                    .setRelayHost(relayHost)
+                    .setRelayPort(relayPort)
+                    .setClientLogin(relayLogin)
+                    .setClientPasscode(relayPasscode)
+                    .setSystemLogin(relayLogin)
+                    .setSystemPasscode(relayPasscode);
+            config.setUserDestinationBroadcast(ClusterSessionRelay.UNRESOLVED_USER_DESTINATION);
+            config.setUserRegistryBroadcast(ClusterSessionRelay.USER_REGISTRY_DESTINATION);
+        } else {
+            config.enableSimpleBroker("/general", "/user");
+        }
         config.setApplicationDestinationPrefixes("/app");
     }
 
@@ -51,6 +117,21 @@ public class SocketConfig implements WebSocketMessageBrokerConfigurer {
         return sessionMap;
     }
 
+    //runs before the broker relay is started
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (!relayEnabled) {
+            return;
+        }
+        StompBrokerRelayMessageHandler relay = applicationContext.getBeanProvider(StompBrokerRelayMessageHandler.class).getIfAvailable();
+        if (relay == null) {
+            return;
+        }
+        clusterSessionRelay = new ClusterSessionRelay(StringUtils.hasText(nodeId) ? nodeId : UUID.randomUUID().toString(), sessionMap, roomSubscriptionInterceptor);
+        clusterSessionRelay.register(relay, applicationContext.getBean("brokerMessagingTemplate", SimpMessagingTemplate.class));
+        roomSubscriptionInterceptor.setClusterSessionRelay(clusterSessionRelay);
+    }
+
 
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
@@ -61,13 +142,15 @@ public class SocketConfig implements WebSocketMessageBrokerConfigurer {
 
     @Override
     public void configureClientInboundChannel(ChannelRegistration registration) {
-        registration.interceptors(socketUsernameInterceptor);
+        registration.interceptors(socketUsernameInterceptor, roomSubscriptionInterceptor);
         WebSocketMessageBrokerConfigurer.super.configureClientInboundChannel(registration);
     }
 
     //duplicate session handler
     @Override
     public void configureWebSocketTransport(WebSocketTransportRegistration registry) {
+        registry.setSendBufferSizeLimit(sendBufferLimit);
+        registry.setSendTimeLimit(sendTimeLimit);
         registry.addDecoratorFactory(new WebSocketHandlerDecoratorFactory() {
             @Override
             public WebSocketHandler decorate(final WebSocketHandler handler) {
@@ -102,13 +185,39 @@ public class SocketConfig implements WebSocketMessageBrokerConfigurer {
                                 sessionMap.get(userId).close();
                             }
                             sessionMap.put(userId, session);
+                            if (clusterSessionRelay != null) {
+                                //close the user's socket on the other nodes as well
+                                clusterSessionRelay.publishConnection(userId);
+                            }
                         } catch (Exception e) {
                             session.close();
                             e.printStackTrace();
                         }
-                        super.afterConnectionEstablished(session);
+                        //report written frames to the backpressure interceptor. the stomp handler wraps this session
+                        //in its send buffer, so a frame is written here only once the client has taken the frames before it
+                        outboundBackpressureInterceptor.sessionOpened(session.getId());
+                        super.afterConnectionEstablished(new WebSocketSessionDecorator(session) {
+                            @Override
+                            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                                try {
+                                    super.sendMessage(message);
+                                } finally {
+                                    outboundBackpressureInterceptor.frameSent(getId());
+                                }
+                            }
+                        });
 
                     }
+
+                    @Override
+                    public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                        try {
+                            super.afterConnectionClosed(session, closeStatus);
+                        } finally {
+                            //after the stomp handler, which still sends frames (DISCONNECT_ACK) while the session closes
+                            outboundBackpressureInterceptor.sessionClosed(session.getId());
+                        }
+                    }
                 };
             }
         });
@@ -117,8 +226,25 @@ public class SocketConfig implements WebSocketMessageBrokerConfigurer {
 
 
 
+    //the stomp handler is created by the endpoint registry, so the metered encoder is set once all beans exist
+    @EventListener(ContextRefreshedEvent.class)
+    public void installFrameEncoder(ContextRefreshedEvent event) {
+        WebSocketHandler handler = event.getApplicationContext().getBean("subProtocolWebSocketHandler", WebSocketHandler.class);
+        if (handler instanceof SubProtocolWebSocketHandler subProtocolWebSocketHandler) {
+            for (SubProtocolHandler protocolHandler : subProtocolWebSocketHandler.getProtocolHandlers()) {
+                if (protocolHandler instanceof StompSubProtocolHandler stompHandler) {
+                    stompHandler.setEncoder(new MeteredStompEncoder(socketFrameStats));
+                }
+            }
+        }
+    }
+
     @Override
     public void configureClientOutboundChannel(ChannelRegistration registration) {
+        int threads = outboundThreads > 0 ? outboundThreads : Runtime.getRuntime().availableProcessors() * 2;
+        //frames wait in the executor queue, where the backpressure interceptor counts them for their session
+        registration.taskExecutor().corePoolSize(threads).maxPoolSize(threads);
+        registration.interceptors(outboundBackpressureInterceptor);
         WebSocketMessageBrokerConfigurer.super.configureClientOutboundChannel(registration);
     }
 
@@ -9,23 +9,32 @@ import com.infiniteplay.accord.services.RateLimiterService;
 import com.infiniteplay.accord.utils.*;
 import com.nimbusds.oauth2.sdk.GeneralException;
 import jakarta.persistence.OptimisticLockException;
+import jakarta.servlet.http.HttpServletRequest;
 import org.hibernate.StaleObjectStateException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.web.PageableDefault;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 @RestController
 @RequestMapping("/chat")
@@ -37,6 +46,9 @@ public class ChatController {
     @Autowired
     private RateLimiterService rateLimiterService;
 
+    @Value("${chatrecord.export.timeoutms}")
+    private long exportTimeoutMs;
+
     @GetMapping("/message/scheduled/{chatRoomId}")
     public List<ChatRecord> getScheduledMessages(Authentication authentication, @PathVariable String chatRoomId) {
         return chatService.getScheduledChatRecords(authentication.getName(), chatRoomId);
@@ -66,6 +78,7 @@ public class ChatController {
         chatService.dispatchTypingEvent(authentication.getName(), chatRoomId, participants);
     }
 
+    //chatRoomId -1 searches the spam mailbox, "all" searches every chatroom of the user
     @PostMapping("/message/search/{chatRoomId}")
     public List<ChatRecord> searchMessage(Authentication authentication, @PathVariable String chatRoomId,
                                           @RequestBody ChatRecordSearchParameters searchParameters,
@@ -75,10 +88,20 @@ public class ChatController {
         return chatService.searchChatRecord(authentication.getName(), chatRoomId, searchParameters.getCursorId(),
                 searchParameters.getPrevious(), searchParameters.getOrder(), searchParameters.getContent(),
                 searchParameters.getTags(), searchParameters.getLocalTimezone(), ContentFilterFlag.valueOf(nsfwFlag),
-                ContentFilterFlag.valueOf(spamFlag), chatRoomId.equals("-1"));
+                ContentFilterFlag.valueOf(spamFlag), chatRoomId.equals("-1"), chatRoomId.equals("all"), searchParameters.getCursorDate());
     }
 
 
+    @PostMapping("/message/search/{chatRoomId}/ranked")
+    public ChatRecordSearchPage searchMessageRanked(Authentication authentication, @PathVariable String chatRoomId,
+                                                    @RequestBody Map<String, String> payload,
+                                                    @RequestParam(name = "nsfw", defaultValue = "ANY") String nsfwFlag,
+                                                    @RequestParam(name = "spam", defaultValue = "ANY") String spamFlag) {
+
+        return chatService.searchRankedChatRecord(authentication.getName(), chatRoomId, payload.getOrDefault("content", ""),
+                payload.get("cursor"), ContentFilterFlag.valueOf(nsfwFlag), ContentFilterFlag.valueOf(spamFlag));
+    }
+
     @GetMapping("/message/verify/{chatRoomId}/{chatRecordId}")
     public ResponseEntity<Void> verifyMessageExistsById(Authentication authentication,
                                                         @PathVariable String chatRoomId,
@@ -194,6 +217,14 @@ public class ChatController {
         return ResponseEntity.ok().build();
     }
 
+    @GetMapping("/message/poll/{pollId}/voters/{chatroomId}")
+    public ResponseEntity<List<Vote>> getPollVoters(Authentication authentication, @PathVariable String chatroomId, @PathVariable String pollId,
+                                                    @RequestParam(name = "answerIndex") int answerIndex,
+                                                    @RequestParam(name = "cursorId", defaultValue = "0") int cursorId) {
+        List<Vote> voters = chatService.getPollVoters(authentication.getName(), chatroomId, pollId, answerIndex, cursorId);
+        return ResponseEntity.ok(voters);
+    }
+
 
     @PostMapping("/message/{chatroomId}")
     public ResponseEntity<ChatRecord> dispatchMessage(Authentication authentication, @RequestBody Map<String, String> chatMessage, @PathVariable("chatroomId") String chatroomId) {
@@ -249,6 +280,31 @@ public class ChatController {
     }
 
 
+    //whole history of a chatroom as NDJSON, oldest first. from/to are optional epoch millis, to is exclusive
+    @GetMapping("/message/{chatroomId}/export")
+    public ResponseEntity<StreamingResponseBody> exportMessages(Authentication authentication, HttpServletRequest request, @PathVariable String chatroomId,
+                                                                @RequestParam(name = "from", required = false) Long from,
+                                                                @RequestParam(name = "to", required = false) Long to,
+                                                                @RequestParam(name = "nsfw", defaultValue = "ANY") String nsfwFlag,
+                                                                @RequestParam(name = "spam", defaultValue = "ANY") String spamFlag) {
+        StreamingResponseBody body = chatService.exportChatRecords(authentication.getName(), chatroomId,
+                ContentFilterFlag.valueOf(nsfwFlag), ContentFilterFlag.valueOf(spamFlag), from, to);
+        //the body is written asynchronously, and a large room takes longer than the container's default async timeout.
+        //the timeout has to be set before async processing starts, which happens after this method returns
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(ChatController.class.getName() + ".export", new CallableProcessingInterceptor() {
+            @Override
+            public <T> void beforeConcurrentHandling(NativeWebRequest webRequest, Callable<T> task) {
+                if (webRequest instanceof AsyncWebRequest asyncWebRequest) {
+                    asyncWebRequest.setTimeout(exportTimeoutMs);
+                }
+            }
+        });
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/x-ndjson"))
+                .header("Content-Disposition", "attachment; filename=\"chatroom-" + chatroomId + ".ndjson\"")
+                .body(body);
+    }
+
     @PostMapping("/reaction/{chatroomId}/{chatRecordId}")
     public ResponseEntity<ChatReaction> reactMessage(Authentication authentication, @PathVariable String chatroomId,
                                                      @PathVariable String chatRecordId, @RequestBody Map<String, String> reactionPayload) {
@@ -256,6 +312,14 @@ public class ChatController {
         return ResponseEntity.ok(chatReaction);
     }
 
+    @GetMapping("/reaction/{chatroomId}/{chatRecordId}/reactors")
+    public ResponseEntity<List<ChatReaction>> getReactors(Authentication authentication, @PathVariable String chatroomId,
+                                                          @PathVariable String chatRecordId, @RequestParam(name = "code") String code,
+                                                          @RequestParam(name = "cursorId", defaultValue = "0") int cursorId) {
+        List<ChatReaction> reactors = chatService.getReactors(authentication.getName(), chatroomId, chatRecordId, code, cursorId);
+        return ResponseEntity.ok(reactors);
+    }
+
     @PostMapping("/unreaction/{chatroomId}/{chatRecordId}")
     public ResponseEntity<Integer> unReactMessage(Authentication authentication, @PathVariable String chatroomId,
                                                   @PathVariable String chatRecordId, @RequestBody Map<String, String> reactionPayload) {
@@ -0,0 +1,9 @@
+package com.infiniteplay.accord.entities;
+
+public enum AttachmentKind {
+    IMAGE,
+    VIDEO,
+    SOUND,
+    TEXT,
+    FILE
+}
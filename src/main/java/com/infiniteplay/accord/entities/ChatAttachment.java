@@ -0,0 +1,155 @@
+package com.infiniteplay.accord.entities;
+
+import jakarta.persistence.*;
+import org.hibernate.Hibernate;
+
+import java.util.Objects;
+import java.util.UUID;
+
+//structured copy of one entry of ChatRecord.attachments, so that attachment kind lookups do not scan the encoded string
+@Entity
+@Table(name = "chat_attachment", indexes = {
+        @Index(columnList = "chatroom_id, kind"),
+        @Index(columnList = "chat_record_id, kind"),
+        @Index(columnList = "uuid")
+})
+public class ChatAttachment extends BaseEntity {
+
+    public ChatAttachment() {
+
+    }
+
+    public ChatAttachment(Integer chatRecordId, Integer chatRoomId, UUID uuid, String filename, String mimeType, Long size, AttachmentKind kind) {
+        this.chatRecordId = chatRecordId;
+        this.chatRoomId = chatRoomId;
+        this.uuid = uuid;
+        this.filename = filename;
+        this.mimeType = mimeType;
+        this.size = size;
+        this.kind = kind;
+    }
+
+    @Id
+    @GeneratedValue
+    private Integer id;
+
+    @Column(name = "chat_record_id", nullable = false)
+    private Integer chatRecordId;
+
+    @Column(name = "chatroom_id", nullable = false)
+    private Integer chatRoomId;
+
+    @Column(nullable = false)
+    private UUID uuid;
+
+    @Column(nullable = false)
+    private String filename;
+
+    @Column(name = "mime_type")
+    private String mimeType;
+
+    //in bytes
+    private Long size;
+
+    //only known for images
+    private Integer width;
+
+    private Integer height;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 10)
+    private AttachmentKind kind;
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public Integer getChatRecordId() {
+        return chatRecordId;
+    }
+
+    public void setChatRecordId(Integer chatRecordId) {
+        this.chatRecordId = chatRecordId;
+    }
+
+    public Integer getChatRoomId() {
+        return chatRoomId;
+    }
+
+    public void setChatRoomId(Integer chatRoomId) {
+        this.chatRoomId = chatRoomId;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public void setUuid(UUID uuid) {
+        this.uuid = uuid;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public void setSize(Long size) {
+        this.size = size;
+    }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
+
+    public AttachmentKind getKind() {
+        return kind;
+    }
+
+    public void setKind(AttachmentKind kind) {
+        this.kind = kind;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || Hibernate.getClass(this) != Hibernate.getClass(o)) return false;
+        ChatAttachment other = (ChatAttachment) o;
+        return id != null && id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id);
+    }
+}
@@ -12,9 +12,11 @@ import org.hibernate.Hibernate;
 import java.util.Objects;
 
 @Entity
-@Table(name="chat_reaction",indexes={
+@Table(name="chat_reaction",uniqueConstraints = {
+        @UniqueConstraint(columnNames = {"chat_record_id", "reactor_id", "code"})
+},indexes={
         @Index(columnList = "chat_room_id"),
-        @Index(columnList = "chat_record_id"),
+        @Index(columnList = "chat_record_id, code, id"),
         @Index(columnList = "reactor_id")
 })
 public class ChatReaction extends BaseEntity {
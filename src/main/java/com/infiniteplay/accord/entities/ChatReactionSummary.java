@@ -0,0 +1,73 @@
+package com.infiniteplay.accord.entities;
+
+import jakarta.persistence.*;
+import org.hibernate.Hibernate;
+
+import java.util.Objects;
+
+//number of reactions of each code on a chat record, so pages never load the individual chat_reaction rows.
+//rows are only written through the atomic upserts of ChatReactionSummaryRepository
+@Entity
+@Table(name = "chat_reaction_summary", uniqueConstraints = {
+        @UniqueConstraint(columnNames = {"chat_record_id", "code"})
+},
+        indexes = {
+                @Index(columnList = "chatroom_id")
+        }
+)
+public class ChatReactionSummary {
+
+    public ChatReactionSummary() {
+
+    }
+
+    //identity, so the native upsert can insert rows without going through hibernate's id generator
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Integer id;
+
+    @Column(name = "chat_record_id", nullable = false)
+    private Integer chatRecordId;
+
+    @Column(name = "chatroom_id", nullable = false)
+    private Integer chatRoomId;
+
+    @Column(length = 100, nullable = false)
+    private String code;
+
+    @Column(nullable = false)
+    private Integer count = 0;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || Hibernate.getClass(this) != Hibernate.getClass(o)) return false;
+        ChatReactionSummary other = (ChatReactionSummary) o;
+        return id != null && id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id);
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public Integer getChatRecordId() {
+        return chatRecordId;
+    }
+
+    public Integer getChatRoomId() {
+        return chatRoomId;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public Integer getCount() {
+        return count;
+    }
+}
@@ -2,6 +2,8 @@ package com.infiniteplay.accord.entities;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.infiniteplay.accord.models.PollSummary;
+import com.infiniteplay.accord.models.ReactionSummary;
 import com.infiniteplay.accord.utils.TimeUtils;
 import jakarta.persistence.*;
 import lombok.Getter;
@@ -25,11 +27,13 @@ import java.util.Objects;
         @Index(columnList = "chatroom_id, type"),
         @Index(columnList = "sender_id"),
         @Index(columnList = "date"),
+        @Index(columnList = "chatroom_id, date, id"),
         @Index(columnList = "poll"),
         @Index(columnList = "reply_target_sender_id"),
         @Index(columnList = "scheduled_time")
 
 })
+@EntityListeners(ChatRecordCacheListener.class)
 public class ChatRecord extends BaseEntity {
 
     public ChatRecord() {
@@ -67,12 +71,24 @@ public class ChatRecord extends BaseEntity {
     @JoinColumn(name="chatroom_id")
     private ChatRoom chatRoom;
 
+    //pages carry reactionSummaries instead, popular messages can have thousands of reactions
     @OneToMany(fetch = FetchType.LAZY, mappedBy = "chatRecord")
+    @JsonIgnore
     private List<ChatReaction> chatReactions = new ArrayList<>();
 
+    //filled when the record is loaded as part of a page
+    @Transient
+    private List<ReactionSummary> reactionSummaries = new ArrayList<>();
+
+    //pages carry pollSummary instead, so the votes of a big room are never loaded with a page
     @OneToMany(fetch = FetchType.LAZY, mappedBy = "record")
+    @JsonIgnore
     private List<Vote> pollVotes = new ArrayList<>();
 
+    //filled for polls when the record is loaded as part of a page
+    @Transient
+    private PollSummary pollSummary;
+
 
     @ManyToOne(fetch = FetchType.EAGER)
     @JoinColumn(name="reply_target_sender_id")
@@ -112,6 +128,11 @@ public class ChatRecord extends BaseEntity {
     @JsonProperty("isSpam")
     private Boolean isSpam = false;
 
+    //true while the content filters have not classified this record yet (post-classify moderation mode)
+    @Column(nullable = false, columnDefinition = "boolean default false")
+    @JsonProperty("isModerationPending")
+    private Boolean isModerationPending = false;
+
     @JsonProperty("chatRoomIdRef")
     @Column(nullable = true)
     private Integer chatRoomIdReference;
@@ -192,6 +213,14 @@ public class ChatRecord extends BaseEntity {
         this.chatReactions = chatReactions;
     }
 
+    public List<ReactionSummary> getReactionSummaries() {
+        return reactionSummaries;
+    }
+
+    public void setReactionSummaries(List<ReactionSummary> reactionSummaries) {
+        this.reactionSummaries = reactionSummaries;
+    }
+
     public List<Vote> getPollVotes() {
         return pollVotes;
     }
@@ -200,6 +229,14 @@ public class ChatRecord extends BaseEntity {
         this.pollVotes = pollVotes;
     }
 
+    public PollSummary getPollSummary() {
+        return pollSummary;
+    }
+
+    public void setPollSummary(PollSummary pollSummary) {
+        this.pollSummary = pollSummary;
+    }
+
     public User getReplyTargetSender() {
         return replyTargetSender;
     }
@@ -296,6 +333,14 @@ public class ChatRecord extends BaseEntity {
         isSpam = spam;
     }
 
+    public Boolean getModerationPending() {
+        return isModerationPending;
+    }
+
+    public void setModerationPending(Boolean moderationPending) {
+        isModerationPending = moderationPending;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,63 @@
+package com.infiniteplay.accord.entities;
+
+import com.infiniteplay.accord.models.RecentChatRecordEntry;
+import com.infiniteplay.accord.services.RecentChatRecordCache;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+//created by hibernate through spring's bean container; the cache stays null when hibernate is bootstrapped without spring
+public class ChatRecordCacheListener {
+
+    @Autowired
+    private RecentChatRecordCache recentChatRecordCache;
+
+    @PostPersist
+    @PostUpdate
+    public void onSaved(ChatRecord chatRecord) {
+        Integer chatRoomId = chatRoomIdOf(chatRecord);
+        if (recentChatRecordCache == null || chatRoomId == null) {
+            return;
+        }
+        int chatRecordId = chatRecord.getId();
+        if (chatRecord.getScheduledTime() != null) {
+            afterCommit(() -> recentChatRecordCache.remove(chatRoomId, chatRecordId));
+            return;
+        }
+        RecentChatRecordEntry entry = new RecentChatRecordEntry(chatRecordId,
+                chatRecord.getSender() != null ? chatRecord.getSender().getId() : null, chatRecord.getType(),
+                chatRecord.getNsfw(), chatRecord.getSpam());
+        afterCommit(() -> recentChatRecordCache.upsert(chatRoomId, entry));
+    }
+
+    @PostRemove
+    public void onRemoved(ChatRecord chatRecord) {
+        Integer chatRoomId = chatRoomIdOf(chatRecord);
+        if (recentChatRecordCache == null || chatRoomId == null) {
+            return;
+        }
+        int chatRecordId = chatRecord.getId();
+        afterCommit(() -> recentChatRecordCache.remove(chatRoomId, chatRecordId));
+    }
+
+    private static Integer chatRoomIdOf(ChatRecord chatRecord) {
+        //getId() of an uninitialized chatroom proxy does not load it
+        return chatRecord.getChatRoom() != null ? chatRecord.getChatRoom().getId() : chatRecord.getChatRoomIdReference();
+    }
+
+    private static void afterCommit(Runnable runnable) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            runnable.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                runnable.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,73 @@
+package com.infiniteplay.accord.entities;
+
+import jakarta.persistence.*;
+import org.hibernate.Hibernate;
+
+import java.util.Objects;
+
+//number of votes of each answer of a poll, keyed by the chat record of the poll like Vote is.
+//rows are only written through the atomic updates of PollTallyRepository
+@Entity
+@Table(name = "poll_tally", uniqueConstraints = {
+        @UniqueConstraint(columnNames = {"chat_record_id", "answer_index"})
+},
+        indexes = {
+                @Index(columnList = "chatroom_id")
+        }
+)
+public class PollTally {
+
+    public PollTally() {
+
+    }
+
+    //identity, so the native upsert can insert rows without going through hibernate's id generator
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Integer id;
+
+    @Column(name = "chat_record_id", nullable = false)
+    private Integer chatRecordId;
+
+    @Column(name = "chatroom_id", nullable = false)
+    private Integer chatRoomId;
+
+    @Column(name = "answer_index", nullable = false)
+    private Integer answerIndex;
+
+    @Column(nullable = false)
+    private Integer count = 0;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || Hibernate.getClass(this) != Hibernate.getClass(o)) return false;
+        PollTally other = (PollTally) o;
+        return id != null && id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id);
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public Integer getChatRecordId() {
+        return chatRecordId;
+    }
+
+    public Integer getChatRoomId() {
+        return chatRoomId;
+    }
+
+    public Integer getAnswerIndex() {
+        return answerIndex;
+    }
+
+    public Integer getCount() {
+        return count;
+    }
+}
@@ -11,8 +11,10 @@ import java.util.Date;
 import java.util.Objects;
 
 @Entity
-@Table(name="vote", indexes = {
-        @Index(columnList = "record_id"),
+@Table(name="vote", uniqueConstraints = {
+        @UniqueConstraint(columnNames = {"record_id", "voter_id", "answer_index"})
+}, indexes = {
+        @Index(columnList = "record_id, answer_index, id"),
         @Index(columnList = "voter_id")
 })
 public class Vote extends BaseEntity {
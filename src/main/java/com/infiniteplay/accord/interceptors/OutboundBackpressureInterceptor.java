@@ -0,0 +1,171 @@
+package com.infiniteplay.accord.interceptors;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//keeps slow clients from being dropped over events nobody misses. every message on the client outbound channel is counted
+//as queued for its session until the socket has written its frame (frameSent), which covers both the outbound executor
+//queue and the per-session send buffer. once a session has more than ephemeralLimit bytes queued, low-value events are
+//no longer queued: typing events are dropped, music sync and status updates are coalesced to the latest one and sent
+//when the backlog has drained. chat messages and every other event are always queued, so they get the send buffer
+@Component
+@Slf4j
+public class OutboundBackpressureInterceptor implements ChannelInterceptor {
+
+    private enum Policy {
+        DROP,
+        COALESCE
+    }
+
+    private static final int LOGGED_SESSIONS = 5;
+
+    private static final class SessionBacklog {
+        private final AtomicLong queuedBytes = new AtomicLong();
+        //sizes of the queued frames, in the order they were queued
+        private final Queue<Integer> queuedSizes = new ConcurrentLinkedQueue<>();
+        //latest held back event per coalescing key
+        private final Map<String, Message<?>> coalesced = new ConcurrentHashMap<>();
+    }
+
+    private final long ephemeralLimit;
+    private final Map<String, SessionBacklog> backlogs = new ConcurrentHashMap<>();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private volatile MessageChannel outboundChannel;
+
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    public OutboundBackpressureInterceptor(@Value("${socket.outbound.ephemerallimit}") long ephemeralLimit) {
+        this.ephemeralLimit = ephemeralLimit;
+    }
+
+    private static Policy policyOf(String destination) {
+        if (destination.contains("/general/onUserType/")) {
+            return Policy.DROP;
+        }
+        if (destination.contains("/general/onCallMusicSync") || destination.contains("/general/onUserStatusUpdate")) {
+            return Policy.COALESCE;
+        }
+        return null;
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        if (sessionId == null) {
+            return message;
+        }
+        outboundChannel = channel;
+        //backlogs only exist between sessionOpened and sessionClosed; messages to any other session are passed on untracked,
+        //creating a backlog here would leak one for every frame that is sent after its session has closed
+        SessionBacklog backlog = backlogs.get(sessionId);
+        if (backlog == null) {
+            return message;
+        }
+
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        Policy policy = destination == null ? null : policyOf(destination);
+        if (policy != null && backlog.queuedBytes.get() > ephemeralLimit) {
+            if (policy == Policy.DROP) {
+                droppedCount.increment();
+            } else {
+                coalescedCount.increment();
+                backlog.coalesced.put(coalescingKey(destination, message), message);
+            }
+            return null;
+        }
+
+        int size = message.getPayload() instanceof byte[] payload ? payload.length : 0;
+        backlog.queuedSizes.add(size);
+        backlog.queuedBytes.addAndGet(size);
+        return message;
+    }
+
+    //status updates of different users share a destination, so they are coalesced per user
+    private String coalescingKey(String destination, Message<?> message) {
+        if (destination.contains("/general/onUserStatusUpdate") && message.getPayload() instanceof byte[] payload) {
+            try {
+                return destination + "#" + objectMapper.readTree(payload).path("targetUser").asText();
+            } catch (IOException ignored) {
+            }
+        }
+        return destination;
+    }
+
+    //called by the session once a frame has been written to the socket
+    public void frameSent(String sessionId) {
+        SessionBacklog backlog = backlogs.get(sessionId);
+        if (backlog == null) {
+            return;
+        }
+        Integer size = backlog.queuedSizes.poll();
+        if (size != null) {
+            backlog.queuedBytes.addAndGet(-size);
+        }
+        if (backlog.queuedSizes.isEmpty()) {
+            //frames the handler sends on its own (error frames) are not counted, do not let them skew an empty backlog
+            backlog.queuedBytes.set(0);
+        }
+        MessageChannel channel = outboundChannel;
+        if (channel == null || backlog.coalesced.isEmpty() || backlog.queuedBytes.get() > ephemeralLimit) {
+            return;
+        }
+        //the backlog has drained, send what was held back
+        for (String key : new ArrayList<>(backlog.coalesced.keySet())) {
+            Message<?> held = backlog.coalesced.remove(key);
+            if (held != null) {
+                channel.send(held);
+            }
+        }
+    }
+
+    public void sessionOpened(String sessionId) {
+        backlogs.putIfAbsent(sessionId, new SessionBacklog());
+    }
+
+    public void sessionClosed(String sessionId) {
+        backlogs.remove(sessionId);
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void logStats() {
+        List<Map.Entry<String, SessionBacklog>> queued = new ArrayList<>();
+        for (Map.Entry<String, SessionBacklog> entry : backlogs.entrySet()) {
+            if (entry.getValue().queuedBytes.get() > 0) {
+                queued.add(entry);
+            }
+        }
+        long dropped = droppedCount.sum();
+        long coalesced = coalescedCount.sum();
+        if (queued.isEmpty() && dropped + coalesced == 0) {
+            return;
+        }
+        queued.sort(Comparator.comparingLong((Map.Entry<String, SessionBacklog> entry) -> entry.getValue().queuedBytes.get()).reversed());
+
+        StringBuilder builder = new StringBuilder(String.format("socket outbound: %d sessions with queued frames, %d events dropped, %d coalesced",
+                queued.size(), dropped, coalesced));
+        for (Map.Entry<String, SessionBacklog> entry : queued.subList(0, Math.min(LOGGED_SESSIONS, queued.size()))) {
+            builder.append(String.format("%n  session %s: %d bytes in %d frames queued", entry.getKey(),
+                    entry.getValue().queuedBytes.get(), entry.getValue().queuedSizes.size()));
+        }
+        log.info(builder.toString());
+    }
+}
@@ -0,0 +1,153 @@
+package com.infiniteplay.accord.interceptors;
+
+import com.infiniteplay.accord.configs.ClusterSessionRelay;
+import com.infiniteplay.accord.repositories.ChatRoomRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+
+import java.security.Principal;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//chatroom events are published to /user/general/onX/{chatRoomId}; a session may only subscribe to the events of
+//chatrooms its user participates in. checked rooms are remembered per session, a client subscribes to many events per room,
+//and are revoked by ChatRoomService when the user leaves or is kicked.
+//the destinations the nodes of a cluster use among themselves are closed to clients
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class RoomSubscriptionInterceptor implements ChannelInterceptor {
+
+    private static final Pattern ROOM_DESTINATION = Pattern.compile("^/user/general/on[A-Za-z]+/(\\d+)$");
+
+    private final ChatRoomRepository chatRoomRepository;
+
+    //user id -> session id -> checked chatroom ids
+    private final Map<Integer, Map<String, Set<Integer>>> authorizedRooms = new ConcurrentHashMap<>();
+    //bumped on every revocation, so a membership read before a revocation committed is not remembered
+    private final AtomicLong revocationCount = new AtomicLong();
+    //set in cluster mode, revocations are handed to the node holding the user's socket
+    private volatile ClusterSessionRelay clusterSessionRelay;
+
+    public void setClusterSessionRelay(ClusterSessionRelay clusterSessionRelay) {
+        this.clusterSessionRelay = clusterSessionRelay;
+    }
+
+    //must be called after the membership change committed
+    public void revoke(int userId, int chatRoomId) {
+        revokeLocally(userId, chatRoomId);
+        ClusterSessionRelay relay = clusterSessionRelay;
+        if (relay != null) {
+            relay.publishRevocation(userId, chatRoomId);
+        }
+    }
+
+    public void revokeLocally(int userId, int chatRoomId) {
+        revocationCount.incrementAndGet();
+        Map<String, Set<Integer>> sessions = authorizedRooms.get(userId);
+        if (sessions != null) {
+            sessions.values().forEach(rooms -> rooms.remove(chatRoomId));
+        }
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+        if (accessor == null) {
+            return message;
+        }
+        if (StompCommand.DISCONNECT.equals(accessor.getCommand())) {
+            forgetSession(accessor);
+            return message;
+        }
+        if (accessor.getDestination() == null) {
+            return message;
+        }
+        if (accessor.getDestination().startsWith(ClusterSessionRelay.CLUSTER_DESTINATION_PREFIX)
+                && (StompCommand.SUBSCRIBE.equals(accessor.getCommand()) || StompCommand.SEND.equals(accessor.getCommand()))) {
+            return null;
+        }
+        if (!StompCommand.SUBSCRIBE.equals(accessor.getCommand())) {
+            return message;
+        }
+        Matcher matcher = ROOM_DESTINATION.matcher(accessor.getDestination());
+        if (!matcher.matches()) {
+            return message;
+        }
+        int chatRoomId;
+        try {
+            chatRoomId = Integer.parseInt(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        Principal user = accessor.getUser();
+        String sessionId = accessor.getSessionId();
+        Integer userId = user != null ? userIdOf(user) : null;
+        if (userId == null || sessionId == null) {
+            return null;
+        }
+        Map<String, Set<Integer>> sessions = authorizedRooms.get(userId);
+        Set<Integer> sessionRooms = sessions != null ? sessions.get(sessionId) : null;
+        if (sessionRooms == null) {
+            sessionRooms = registerSession(userId, sessionId);
+        }
+        if (sessionRooms.contains(chatRoomId)) {
+            return message;
+        }
+
+        long revocations = revocationCount.get();
+        if (!chatRoomRepository.isChatRoomOf(userId, chatRoomId)) {
+            //dropping the frame leaves the rest of the connection intact, an error frame would close it
+            log.debug("Rejected subscription of " + user.getName() + " to " + accessor.getDestination());
+            return null;
+        }
+        sessionRooms.add(chatRoomId);
+        if (revocationCount.get() != revocations) {
+            //a revocation may have run between the check and the add, check again on the next subscription
+            sessionRooms.remove(chatRoomId);
+        }
+        return message;
+    }
+
+    //atomic with forgetSession, which drops the sessions of a user once they are empty
+    private Set<Integer> registerSession(int userId, String sessionId) {
+        Set<Integer> sessionRooms = authorizedRooms.compute(userId, (key, sessions) -> {
+            Map<String, Set<Integer>> userSessions = sessions != null ? sessions : new ConcurrentHashMap<>();
+            userSessions.computeIfAbsent(sessionId, id -> ConcurrentHashMap.newKeySet());
+            return userSessions;
+        }).get(sessionId);
+        //the session disconnected in the meantime, nothing has to be remembered for it
+        return sessionRooms != null ? sessionRooms : ConcurrentHashMap.newKeySet();
+    }
+
+    private void forgetSession(StompHeaderAccessor accessor) {
+        Integer userId = accessor.getUser() != null ? userIdOf(accessor.getUser()) : null;
+        if (userId == null || accessor.getSessionId() == null) {
+            return;
+        }
+        authorizedRooms.computeIfPresent(userId, (key, sessions) -> {
+            sessions.remove(accessor.getSessionId());
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+
+    private static Integer userIdOf(Principal user) {
+        try {
+            return Integer.parseInt(user.getName().substring(user.getName().lastIndexOf('@') + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
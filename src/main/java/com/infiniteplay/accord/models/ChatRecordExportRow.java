@@ -0,0 +1,25 @@
+package com.infiniteplay.accord.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+//one line of a chatroom export. read straight from the result set, so exporting never loads the chat record entities
+@Getter
+@AllArgsConstructor
+public class ChatRecordExportRow {
+    private int id;
+    private int chatRoomId;
+    private String type;
+    private String message;
+    //ISO-8601 with offset
+    private String date;
+    private Integer senderId;
+    private String senderUsername;
+    private String senderNickname;
+    private Integer replyTargetId;
+    private String attachments;
+    private boolean edited;
+    private Boolean pinned;
+    private Boolean isNsfw;
+    private Boolean isSpam;
+}
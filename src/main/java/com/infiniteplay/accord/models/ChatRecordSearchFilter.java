@@ -1,5 +1,6 @@
 package com.infiniteplay.accord.models;
 
+import com.infiniteplay.accord.entities.AttachmentKind;
 import com.infiniteplay.accord.entities.User;
 import com.infiniteplay.accord.utils.TimeUtils;
 import lombok.AllArgsConstructor;
@@ -9,6 +10,8 @@ import org.springframework.lang.Nullable;
 
 import java.time.*;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @AllArgsConstructor
 @Getter
@@ -19,29 +22,38 @@ public class ChatRecordSearchFilter<T> {
     @Nullable
     Map<String, T> queryParameters;
 
-    static Random random = new Random();
+    //parameter names are qualified with the position of the filter in the search, so the same filter combination
+    //always produces the same query string and reuses hibernate's query plan
+    public static String qualifiedParameterName(int position, String parameterName) {
+        return "f" + position + "_" + parameterName;
+    }
 
-    private static int randomParameterID() {
-        return random.nextInt(100000000);
+    public String getQualifiedQuery(int position) {
+        String qualified = query;
+        if (queryParameters != null) {
+            for (String parameterName : queryParameters.keySet()) {
+                qualified = qualified.replaceAll(":" + Pattern.quote(parameterName) + "\\b",
+                        Matcher.quoteReplacement(":" + qualifiedParameterName(position, parameterName)));
+            }
+        }
+        return qualified;
     }
 
     public static ChatRecordSearchFilter<String> createContentFilter(String content) {
-        String parameterName = "content" + randomParameterID();
+        String parameterName = "content";
         content = content.trim();
         return new ChatRecordSearchFilter<>("(c.message LIKE CONCAT('%',:" + parameterName + ",'%'))", Map.of(parameterName, content));
     }
 
     public static ChatRecordSearchFilter<User> createFromUserFilter(User user) {
-        int id = randomParameterID();
-        String parameterName = "user" + id;
+        String parameterName = "user";
 
         return new ChatRecordSearchFilter<>("(c.sender = :" + parameterName + ")" , Map.of(parameterName, user));
     }
 
 
     public static ChatRecordSearchFilter<String> createMentionsUserFilter(User user) {
-        int id = randomParameterID();
-        String parameterName = "mentionsuser" + id;
+        String parameterName = "mentionsuser";
         return new ChatRecordSearchFilter<>("(c.message LIKE CONCAT('%',:" + parameterName + ",'%'))", Map.of(parameterName, "[m]@"+user.getId()+"[m]"));
     }
 
@@ -60,20 +72,26 @@ public class ChatRecordSearchFilter<T> {
         return new ChatRecordSearchFilter<>("(c.attachments IS NOT NULL)", null);
     }
 
-    public static ChatRecordSearchFilter<Void> createHasImageFilter() {
-        return new ChatRecordSearchFilter<>("(c.attachments IS NOT NULL AND c.attachments LIKE '%.jpg%' OR c.attachments LIKE '%.jpeg%' OR c.attachments LIKE '%.png% OR c.attachments LIKE %.gif% OR c.attachments LIKE %.webp%')", null);
+    //served by the (chat_record_id, kind) index of chat_attachment
+    private static ChatRecordSearchFilter<AttachmentKind> createHasAttachmentKindFilter(AttachmentKind kind) {
+        String parameterName = "kind";
+        return new ChatRecordSearchFilter<>("(EXISTS (SELECT 1 FROM ChatAttachment a WHERE a.chatRecordId = c.id AND a.kind = :" + parameterName + "))", Map.of(parameterName, kind));
+    }
+
+    public static ChatRecordSearchFilter<AttachmentKind> createHasImageFilter() {
+        return createHasAttachmentKindFilter(AttachmentKind.IMAGE);
     }
 
     public static ChatRecordSearchFilter<Void> createHasPollFilter() {
         return new ChatRecordSearchFilter<>("(c.poll IS NOT NULL)", null);
     }
 
-    public static ChatRecordSearchFilter<Void> createHasVideoFilter() {
-        return new ChatRecordSearchFilter<>("(c.attachments IS NOT NULL AND c.attachments LIKE '%.mp4%' OR c.attachments LIKE '%.webm%')", null);
+    public static ChatRecordSearchFilter<AttachmentKind> createHasVideoFilter() {
+        return createHasAttachmentKindFilter(AttachmentKind.VIDEO);
     }
 
-    public static ChatRecordSearchFilter<Void> createHasSoundFilter() {
-        return new ChatRecordSearchFilter<>("(c.attachments IS NOT NULL AND c.attachments LIKE '%.mp3%' OR c.attachments LIKE '%.ogg%' OR c.attachments LIKE '%.wav%')", null);
+    public static ChatRecordSearchFilter<AttachmentKind> createHasSoundFilter() {
+        return createHasAttachmentKindFilter(AttachmentKind.SOUND);
     }
 
     public static ChatRecordSearchFilter<Void> createHasReplyFilter() {
@@ -87,7 +105,7 @@ public class ChatRecordSearchFilter<T> {
 
         ZonedDateTime kstDate = TimeUtils.convertToKST(date, ZoneId.of(localTimeZone));
 
-        String parameterName = "date" + randomParameterID();
+        String parameterName = "date";
         return new ChatRecordSearchFilter<>("(c.date < :" + parameterName + ")", Map.of(parameterName, kstDate));
     }
 
@@ -95,7 +113,7 @@ public class ChatRecordSearchFilter<T> {
 
         ZonedDateTime kstDate = TimeUtils.convertToKST(Date.from(localDate.plusDays(1).atStartOfDay().atZone(ZoneId.of(localTimeZone)).toInstant()), ZoneId.of(localTimeZone));
 
-        String parameterName = "date" + randomParameterID();
+        String parameterName = "date";
         return new ChatRecordSearchFilter<>("(c.date >= :" + parameterName + ")", Map.of(parameterName, kstDate));
     }
 
@@ -104,7 +122,7 @@ public class ChatRecordSearchFilter<T> {
         Date date = Date.from(localDate.atStartOfDay().plusDays(1).atZone(ZoneId.of(localTimeZone)).toInstant());
 
         ZonedDateTime kstDate = TimeUtils.convertToKST(date, ZoneId.of(localTimeZone));
-        String parameterName = "date" + randomParameterID();
+        String parameterName = "date";
         return new ChatRecordSearchFilter<>("(c.date < :" + parameterName + ")", Map.of(parameterName, kstDate));
     }
 
@@ -112,7 +130,7 @@ public class ChatRecordSearchFilter<T> {
 
         ZonedDateTime kstDate = TimeUtils.convertToKST(Date.from(localDate.atStartOfDay().atZone(ZoneId.of(localTimeZone)).toInstant()), ZoneId.of(localTimeZone));
 
-        String parameterName = "date" + randomParameterID();
+        String parameterName = "date";
         return new ChatRecordSearchFilter<>("(c.date >= :" + parameterName + ")", Map.of(parameterName, kstDate));
     }
 
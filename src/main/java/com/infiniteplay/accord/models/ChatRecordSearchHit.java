@@ -0,0 +1,41 @@
+package com.infiniteplay.accord.models;
+
+import com.infiniteplay.accord.entities.ChatRecord;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@Getter
+@AllArgsConstructor
+public class ChatRecordSearchHit {
+
+    private static final int SNIPPET_RADIUS = 40;
+
+    private ChatRecord chatRecord;
+    //bigram similarity of the message to the search query, higher is more relevant
+    private float score;
+    //part of the message around the first match, with the match wrapped in [h] tags
+    private String snippet;
+
+    public static String createSnippet(String message, String query) {
+        if (message == null) {
+            return "";
+        }
+        Matcher matcher = Pattern.compile(Pattern.quote(query), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE).matcher(message);
+        if (!matcher.find()) {
+            return message.length() <= SNIPPET_RADIUS * 2 ? message : message.substring(0, SNIPPET_RADIUS * 2) + "...";
+        }
+        int matchStart = matcher.start();
+        int matchEnd = matcher.end();
+        int start = Math.max(0, matchStart - SNIPPET_RADIUS);
+        int end = Math.min(message.length(), matchEnd + SNIPPET_RADIUS);
+
+        return (start > 0 ? "..." : "") +
+                message.substring(start, matchStart) +
+                "[h]" + message.substring(matchStart, matchEnd) + "[h]" +
+                message.substring(matchEnd, end) +
+                (end < message.length() ? "..." : "");
+    }
+}
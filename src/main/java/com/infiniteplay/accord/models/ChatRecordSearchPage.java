@@ -0,0 +1,16 @@
+package com.infiniteplay.accord.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.lang.Nullable;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class ChatRecordSearchPage {
+    private List<ChatRecordSearchHit> hits;
+    //pass back to fetch the next page; null when there are no more results
+    @Nullable
+    private String nextCursor;
+}
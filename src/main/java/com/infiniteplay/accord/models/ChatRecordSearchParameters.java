@@ -3,6 +3,7 @@ package com.infiniteplay.accord.models;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
+import org.springframework.lang.Nullable;
 
 import java.util.List;
 
@@ -16,4 +17,7 @@ public class ChatRecordSearchParameters {
     private String content;
     private List<String> tags;
     private String localTimezone;
+    //date of the cursor record, only used when searching all chatrooms
+    @Nullable
+    private String cursorDate;
 }
@@ -0,0 +1,25 @@
+package com.infiniteplay.accord.models;
+
+import com.infiniteplay.accord.entities.ChatRecord;
+import com.infiniteplay.accord.entities.ChatRoom;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.ZonedDateTime;
+
+//what a new message changes about its chatroom. sent with chat message events in place of the whole ChatRoom,
+//whose participants, sounds and backgrounds do not change with a message; those changes arrive through
+//onEditChatRoom, onCreateChatRoom and onInviteChatRoom, and a client that does not know the room fetches it by id
+@Getter
+@AllArgsConstructor
+public class ChatRoomSummary {
+    private int id;
+    private ZonedDateTime recentMessageDate;
+    //number of records the event adds. whether they count as unread depends on the receiver's notification settings
+    private int unreadIncrement;
+    private int lastChatRecordId;
+
+    public static ChatRoomSummary of(ChatRoom chatRoom, ChatRecord lastChatRecord, int unreadIncrement) {
+        return new ChatRoomSummary(chatRoom.getId(), chatRoom.getRecentMessageDate(), unreadIncrement, lastChatRecord.getId());
+    }
+}
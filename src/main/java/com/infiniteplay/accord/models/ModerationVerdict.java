@@ -0,0 +1,11 @@
+package com.infiniteplay.accord.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class ModerationVerdict {
+    private boolean nsfw;
+    private boolean spam;
+}
@@ -0,0 +1,19 @@
+package com.infiniteplay.accord.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.lang.Nullable;
+
+import java.util.List;
+import java.util.Map;
+
+@Getter
+@AllArgsConstructor
+public class PollSummary {
+    //answer index -> number of votes, answers without votes are left out
+    private Map<Integer, Integer> answerCounts;
+    private int totalVotes;
+    //answers the user the record was loaded for voted for. null in broadcasts, where the receivers' own votes did not change
+    @Nullable
+    private List<Integer> votedAnswerIndices;
+}
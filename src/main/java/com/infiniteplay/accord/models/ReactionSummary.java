@@ -0,0 +1,19 @@
+package com.infiniteplay.accord.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.lang.Nullable;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class ReactionSummary {
+    private String code;
+    private int count;
+    //whether the user the page was loaded for reacted with this code. null in broadcasts, where the receivers' own reactions did not change
+    @Nullable
+    private Boolean reacted;
+    //names of the first few reactors, the rest are paged through the reactors endpoint
+    private List<String> sampleReactorNames;
+}
@@ -0,0 +1,38 @@
+package com.infiniteplay.accord.models;
+
+import org.springframework.lang.Nullable;
+
+import java.util.Arrays;
+
+//the attributes of a chat record that decide whether a viewer sees it in a chatroom page.
+//nsfw and spam are kept as stored, null included, since the database filters treat null differently from false
+public record RecentChatRecordEntry(int id, @Nullable Integer senderId, String type, @Nullable Boolean nsfw, @Nullable Boolean spam) {
+
+    //in-memory version of the filters of CustomChatRecordRepositoryImpl.getNextPageByChatRoomIdBlockFiltered,
+    //including how sql evaluates them on null columns: a condition on null is never true
+    public boolean isVisibleTo(int viewerId, int[] blockedIds, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
+        if (type == null) {
+            return false;
+        }
+        if (type.equals("text") && isBlocked(blockedIds)) {
+            return false;
+        }
+        if (type.startsWith("system_private") && !type.startsWith("system_private_" + viewerId + "_")) {
+            return false;
+        }
+        return matches(nsfwFlag, nsfw) && matches(spamFlag, spam);
+    }
+
+    //not_blocked(c.sender.id, :blockedIds), i.e. sender_id <> ALL(blocked). with a null sender it is only true for an empty array
+    private boolean isBlocked(int[] blockedIds) {
+        if (senderId == null) {
+            return blockedIds.length > 0;
+        }
+        return Arrays.binarySearch(blockedIds, senderId) >= 0;
+    }
+
+    //c.isNsfw = TRUE / FALSE, neither matches null
+    private static boolean matches(ContentFilterFlag flag, @Nullable Boolean value) {
+        return flag == ContentFilterFlag.ANY || (value != null && (flag == ContentFilterFlag.INCLUDE) == value);
+    }
+}
@@ -0,0 +1,20 @@
+package com.infiniteplay.accord.repositories;
+
+import org.hibernate.boot.model.FunctionContributions;
+import org.hibernate.boot.model.FunctionContributor;
+import org.hibernate.type.StandardBasicTypes;
+
+//registered through META-INF/services, so it is also picked up when hibernate is bootstrapped without spring.
+//not_blocked(c.sender.id, :blockedIds) compares the id with an array literal like '{1,2,3}' bound as one parameter,
+//the same comparison the native queries use. unlike an IN list, the query string does not change with the number of blocked ids.
+//a null id is unknown against a non-empty array and passes an empty one, like 'not in' with an empty list.
+public class BlockedIdsFunctionContributor implements FunctionContributor {
+
+    public static final String NOT_BLOCKED = "not_blocked";
+
+    @Override
+    public void contributeFunctions(FunctionContributions functionContributions) {
+        functionContributions.getFunctionRegistry().registerPattern(NOT_BLOCKED, "(?1 <> ALL(CAST(?2 AS integer[])))",
+                functionContributions.getTypeConfiguration().getBasicTypeRegistry().resolve(StandardBasicTypes.BOOLEAN));
+    }
+}
@@ -0,0 +1,41 @@
+package com.infiniteplay.accord.repositories;
+
+import com.infiniteplay.accord.entities.ChatAttachment;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+public interface ChatAttachmentRepository extends CrudRepository<ChatAttachment, Integer> {
+
+    List<ChatAttachment> findAllByChatRecordIdIn(Collection<Integer> chatRecordIds);
+
+    @Modifying
+    @Query(value = "DELETE FROM chat_attachment WHERE chat_record_id=?1", nativeQuery = true)
+    void deleteByChatRecordId(Integer chatRecordId);
+
+    @Modifying
+    @Query(value = "DELETE FROM chat_attachment WHERE chat_record_id IN ?1", nativeQuery = true)
+    void deleteByChatRecordIds(List<Integer> chatRecordIds);
+
+    @Modifying
+    @Query(value = "DELETE FROM chat_attachment WHERE chatroom_id=?1", nativeQuery = true)
+    void deleteByChatRoomId(Integer chatRoomId);
+
+    @Modifying
+    @Query(value = "DELETE FROM chat_attachment WHERE chat_record_id=?1 AND uuid=?2", nativeQuery = true)
+    void deleteByChatRecordIdAndUuid(Integer chatRecordId, UUID uuid);
+
+    //scheduled messages are re-sent as new chat records; their attachments follow them
+    @Modifying
+    @Query(value = "UPDATE chat_attachment SET chat_record_id=?2 WHERE chat_record_id=?1", nativeQuery = true)
+    void moveToChatRecord(Integer fromChatRecordId, Integer toChatRecordId);
+
+    //chat records whose attachments were stored before this table existed
+    @Query(value = "SELECT c.id FROM chat_record c WHERE c.id > ?1 AND c.attachments IS NOT NULL AND c.attachments <> '' " +
+            "AND NOT EXISTS (SELECT 1 FROM chat_attachment a WHERE a.chat_record_id = c.id) ORDER BY c.id LIMIT ?2", nativeQuery = true)
+    List<Integer> findChatRecordIdsWithoutAttachmentRows(Integer afterId, Integer limit);
+}
@@ -19,6 +19,26 @@ public interface ChatNotificationCountRepository extends CrudRepository<ChatNoti
 
     @Query("SELECT c FROM ChatNotificationCount c WHERE c.chatRoomId=:chatRoomId AND c.userId IN :userIds")
     List<ChatNotificationCount> findByChatRoomIdAndUserIds(@Param("chatRoomId") Integer chatRoomId,@Param("userIds") List<Integer> userIds);
+
+    //atomically registers unread messages for the given users; the oldest unread message id / timestamp are only set
+    //when the user has no unread messages yet. version is bumped so that entity based writers still detect the change
+    @Modifying
+    @Query(value = "UPDATE chat_notification_count SET " +
+            "count = CASE WHEN latest_message_id IS NULL THEN :increment ELSE count + :increment END, " +
+            "first_unread_timestamp = CASE WHEN latest_message_id IS NULL THEN :firstUnreadTimestamp ELSE first_unread_timestamp END, " +
+            "latest_message_id = COALESCE(latest_message_id, :latestMessageId), " +
+            "version = COALESCE(version, 0) + 1 " +
+            "WHERE chatroom_id=:chatRoomId AND user_id IN :userIds", nativeQuery = true)
+    int incrementCounts(@Param("chatRoomId") Integer chatRoomId, @Param("userIds") List<Integer> userIds, @Param("increment") Integer increment,
+                        @Param("latestMessageId") Integer latestMessageId, @Param("firstUnreadTimestamp") Long firstUnreadTimestamp);
+
+    //marks the chatroom read without an entity read-modify-write, so it cannot fail on the version bumped by a concurrent incrementCounts
+    @Modifying
+    @Query(value = "UPDATE chat_notification_count SET count = 0, latest_message_id = NULL, first_unread_timestamp = :readTimestamp, " +
+            "version = COALESCE(version, 0) + 1 " +
+            "WHERE chatroom_id=:chatRoomId AND user_id=:userId", nativeQuery = true)
+    int markAllRead(@Param("chatRoomId") Integer chatRoomId, @Param("userId") Integer userId, @Param("readTimestamp") Long readTimestamp);
+
     void deleteByChatRoomId(Integer chatroomId);
 
     void deleteByUserIdAndChatRoomId(Integer userId, Integer chatroomId);
@@ -3,7 +3,11 @@ package com.infiniteplay.accord.repositories;
 import com.infiniteplay.accord.entities.ChatReaction;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
 
     public interface ChatReactionRepository extends CrudRepository<ChatReaction,Integer> {
         @Modifying
@@ -18,6 +22,11 @@ import org.springframework.data.repository.CrudRepository;
         @Query(value="UPDATE chat_reaction SET reactor_name=?1, reactor_username=?2 WHERE reactor_id=?3", nativeQuery = true)
         void updateChatReactionReactorNameByReactorId(String reactorName, String reactorUsername, Integer reactorId);
 
+        @Query("SELECT r FROM ChatReaction r WHERE r.chatRecord.id=:chatRecordId AND r.reactorId=:reactorId AND r.code=:code")
+        ChatReaction findByChatRecordIdAndReactorIdAndCode(@Param("chatRecordId") Integer chatRecordId, @Param("reactorId") Integer reactorId, @Param("code") String code);
 
+        //reactors of one code in reaction order, paged by the id of the last reaction of the previous page
+        @Query("SELECT r FROM ChatReaction r WHERE r.chatRecord.id=:chatRecordId AND r.code=:code AND r.id > :cursorId ORDER BY r.id")
+        List<ChatReaction> findReactors(@Param("chatRecordId") Integer chatRecordId, @Param("code") String code, @Param("cursorId") Integer cursorId, Pageable pageable);
 
 }
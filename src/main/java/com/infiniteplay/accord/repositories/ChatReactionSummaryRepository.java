@@ -0,0 +1,38 @@
+package com.infiniteplay.accord.repositories;
+
+import com.infiniteplay.accord.entities.ChatReactionSummary;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+public interface ChatReactionSummaryRepository extends CrudRepository<ChatReactionSummary, Integer> {
+
+    //concurrent first reactions of the same code meet on the unique constraint instead of inserting two rows
+    @Modifying
+    @Query(value = "INSERT INTO chat_reaction_summary (chat_record_id, chatroom_id, code, count) VALUES (:chatRecordId, :chatRoomId, :code, 1) " +
+            "ON CONFLICT (chat_record_id, code) DO UPDATE SET count = chat_reaction_summary.count + 1", nativeQuery = true)
+    void increment(@Param("chatRecordId") Integer chatRecordId, @Param("chatRoomId") Integer chatRoomId, @Param("code") String code);
+
+    @Modifying
+    @Query(value = "UPDATE chat_reaction_summary SET count = count - 1 WHERE chat_record_id=:chatRecordId AND code=:code", nativeQuery = true)
+    void decrement(@Param("chatRecordId") Integer chatRecordId, @Param("code") String code);
+
+    @Modifying
+    @Query(value = "DELETE FROM chat_reaction_summary WHERE chat_record_id=:chatRecordId AND code=:code AND count <= 0", nativeQuery = true)
+    void deleteIfEmpty(@Param("chatRecordId") Integer chatRecordId, @Param("code") String code);
+
+    @Query(value = "SELECT COUNT(*) FROM chat_reaction_summary WHERE chat_record_id=?1", nativeQuery = true)
+    long countCodesByChatRecordId(Integer chatRecordId);
+
+    @Query(value = "SELECT EXISTS(SELECT 1 FROM chat_reaction_summary WHERE chat_record_id=?1 AND code=?2)", nativeQuery = true)
+    boolean existsByChatRecordIdAndCode(Integer chatRecordId, String code);
+
+    @Modifying
+    @Query(value = "DELETE FROM chat_reaction_summary WHERE chatroom_id=?1", nativeQuery = true)
+    void deleteByChatRoomId(Integer chatRoomId);
+
+    @Modifying
+    @Query(value = "DELETE FROM chat_reaction_summary WHERE chat_record_id=?1", nativeQuery = true)
+    void deleteByChatRecordId(Integer chatRecordId);
+}
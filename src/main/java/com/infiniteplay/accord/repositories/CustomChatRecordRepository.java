@@ -3,39 +3,62 @@ package com.infiniteplay.accord.repositories;
 import com.infiniteplay.accord.entities.ChatRecord;
 import com.infiniteplay.accord.entities.ChatRoom;
 import com.infiniteplay.accord.entities.User;
+import com.infiniteplay.accord.models.ChatRecordExportRow;
 import com.infiniteplay.accord.models.ChatRecordSearchFilter;
+import com.infiniteplay.accord.models.ChatRecordSearchHit;
 import com.infiniteplay.accord.models.ContentFilterFlag;
+import com.infiniteplay.accord.models.RecentChatRecordEntry;
 import com.infiniteplay.accord.models.SearchOrder;
 import com.infiniteplay.accord.utils.GenericException;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.repository.query.Param;
 import org.springframework.lang.Nullable;
 
+import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public interface CustomChatRecordRepository {
-    List<ChatRecord> getNextPageByChatRoomIdBlockFiltered(ChatRoom chatRoom, Set<User> blockeds, Integer prevPageLastId, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag);
+    List<ChatRecord> getNextPageByChatRoomIdBlockFiltered(ChatRoom chatRoom, int[] blockedIds, Integer prevPageLastId, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag);
 
-    List<ChatRecord> getPrevPageByChatRoomIdBlockFiltered(ChatRoom chatRoom, Set<User> blockeds, Integer nextPageFirstId, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag);
+    List<ChatRecord> getPrevPageByChatRoomIdBlockFiltered(ChatRoom chatRoom, int[] blockedIds, Integer nextPageFirstId, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag);
 
-    List<ChatRecord> getAllPinnedByChatRoomIdBlockFiltered(ChatRoom chatRoom, Set<User> blockeds, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag);
+    List<ChatRecord> getAllPinnedByChatRoomIdBlockFiltered(ChatRoom chatRoom, int[] blockedIds, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag);
 
     List<ChatRecord> getAllPinnedByChatRoomId(ChatRoom chatRoom, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag);
 
-    boolean hasChatRecordById(ChatRoom chatRoom, Set<User> blockeds, Integer id, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag);
+    boolean hasChatRecordById(ChatRoom chatRoom, int[] blockedIds, Integer id, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag);
 
-    boolean hasSpamChatRecordById(Set<ChatRoom> userChatRooms, Set<User> blockeds, Integer id, ContentFilterFlag nsfwFla, @Nullable Set<User> customUserFilter);
+    boolean hasSpamChatRecordById(Set<ChatRoom> userChatRooms, int[] blockedIds, Integer id, ContentFilterFlag nsfwFla, @Nullable Set<User> customUserFilter);
 
-    List<ChatRecord> searchChatRecord(@Nullable  ChatRoom chatRoom, Set<User> blockeds, List<ChatRecordSearchFilter> filters, Integer cursorId, SearchOrder order, boolean previous, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag,
-                                      boolean forSpam, @Nullable Set<ChatRoom> userChatRooms, @Nullable Set<User> customUserFilter) throws GenericException;
+    //forEverywhere searches every chatroom forUserId belongs to and pages by (date, id), so cursorDate is the date of the cursor record
+    List<ChatRecord> searchChatRecord(@Nullable  ChatRoom chatRoom, int[] blockedIds, List<ChatRecordSearchFilter> filters, Integer cursorId, SearchOrder order, boolean previous, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag,
+                                      boolean forSpam, @Nullable Set<ChatRoom> userChatRooms, @Nullable Set<User> customUserFilter,
+                                      boolean forEverywhere, @Nullable ZonedDateTime cursorDate) throws GenericException;
 
 
-    List<ChatRecord> getNextPageSpam(Set<ChatRoom> userChatRooms, Integer prevPageLastId, Set<User> blockeds, ContentFilterFlag nsfwFlag, Set<User> customUserFilter);
+    List<ChatRecordSearchHit> searchRankedChatRecord(ChatRoom chatRoom, int[] blockedIds, String query, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag,
+                                                     @Nullable Float cursorScore, @Nullable Integer cursorId, int limit);
 
-    List<ChatRecord> getPrevPageSpam(Set<ChatRoom> userChatRooms, Integer nextPageFirstId, Set<User> blockeds, ContentFilterFlag nsfwFlag, Set<User> customUserFilter);
+    List<ChatRecord> getNextPageSpam(Set<ChatRoom> userChatRooms, Integer prevPageLastId, int[] blockedIds, ContentFilterFlag nsfwFlag, Set<User> customUserFilter, int forUserId);
+
+    List<ChatRecord> getPrevPageSpam(Set<ChatRoom> userChatRooms, Integer nextPageFirstId, int[] blockedIds, ContentFilterFlag nsfwFlag, Set<User> customUserFilter, int forUserId);
 
     List<ChatRecord> getScheduledRecords(@Nullable ChatRoom chatRoom, @Nullable User scheduler, @Nullable Long currentTime);
 
+    //newest sent records of the chatroom without any viewer filter, newest first
+    List<RecentChatRecordEntry> getRecentEntries(ChatRoom chatRoom, int limit);
+
+    //the records of the given ids with everything a page needs fetched, in the order of the ids
+    List<ChatRecord> getAllByIdsOrdered(List<Integer> ids, int forUserId);
+
+    //reaction summaries of a record that is broadcast to all participants, without the reacted flag of any viewer
+    void attachBroadcastReactionSummaries(ChatRecord chatRecord);
+
+    //must be called inside a transaction; rows are handed to the consumer as they are read from the cursor
+    void streamChatRecords(ChatRoom chatRoom, int[] blockedIds, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag,
+                           @Nullable ZonedDateTime from, @Nullable ZonedDateTime to, Consumer<ChatRecordExportRow> consumer);
+
 
 }
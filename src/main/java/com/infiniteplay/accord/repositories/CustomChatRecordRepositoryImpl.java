@@ -3,8 +3,13 @@ package com.infiniteplay.accord.repositories;
 import com.infiniteplay.accord.entities.ChatRecord;
 import com.infiniteplay.accord.entities.ChatRoom;
 import com.infiniteplay.accord.entities.User;
+import com.infiniteplay.accord.models.ChatRecordExportRow;
 import com.infiniteplay.accord.models.ChatRecordSearchFilter;
+import com.infiniteplay.accord.models.ChatRecordSearchHit;
 import com.infiniteplay.accord.models.ContentFilterFlag;
+import com.infiniteplay.accord.models.PollSummary;
+import com.infiniteplay.accord.models.ReactionSummary;
+import com.infiniteplay.accord.models.RecentChatRecordEntry;
 import com.infiniteplay.accord.models.SearchOrder;
 import com.infiniteplay.accord.utils.ChatException;
 import com.infiniteplay.accord.utils.GenericException;
@@ -12,12 +17,18 @@ import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
 import jakarta.persistence.Query;
 import jakarta.persistence.TypedQuery;
+import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Pageable;
 import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Repository;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.function.Consumer;
 
 @SuppressWarnings("UnusedAssignment")
 @Repository
@@ -26,243 +37,228 @@ public class CustomChatRecordRepositoryImpl implements CustomChatRecordRepositor
     private EntityManager em;
     @Value("${chatrecord.perpagecount}")
     private int perPageCount;
+    @Value("${chatrecord.export.fetchsize}")
+    private int exportFetchSize;
+
+    private static final int SEARCH_PAGE_SIZE = 30;
+    private static final int SEARCH_QUERY_CACHE_SIZE = 512;
+    private static final int REACTION_SAMPLE_SIZE = 3;
+
+    //bounded LRU of search query strings by shape; hibernate keeps the parsed plan of each string in its own plan cache
+    private final Map<SearchQueryShape, String> searchQueryCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SearchQueryShape, String> eldest) {
+            return size() > SEARCH_QUERY_CACHE_SIZE;
+        }
+    };
 
     public CustomChatRecordRepositoryImpl() {
     }
 
     @Override
-    public List<ChatRecord> searchChatRecord(@Nullable ChatRoom chatRoom, Set<User> blockeds, List<ChatRecordSearchFilter> filters, Integer cursorId, SearchOrder order, boolean previous, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag
-            , boolean querySpam, @Nullable Set<ChatRoom> userChatRooms, @Nullable Set<User> customUserFilter) throws GenericException {
-        //default query to fetch a page of chat record without any filter applied.
-        List<ChatRecord> records = new ArrayList<>();
-        StringBuilder queryBuilder = new StringBuilder();
-        StringBuilder queryBuilder2 = new StringBuilder();
-        String defaultQuery = "SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.chatReactions cr where";
-        String defaultQuery2 = "SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.pollVotes p LEFT JOIN FETCH p.voter where";
-        queryBuilder.append(defaultQuery);
-        queryBuilder2.append(defaultQuery2);
-
-
-        String orderString = "";
-
-        if (cursorId > 0) {
-            if (previous && order == SearchOrder.NEW) {
-                queryBuilder.append(" (c.id > " + cursorId + ")");
-                queryBuilder2.append(" (c.id > " + cursorId + ")");
-                orderString = "order by c.id ASC";
-            } else if (previous && order == SearchOrder.OLD) {
-                queryBuilder.append(" (c.id < " + cursorId + ")");
-                queryBuilder2.append(" (c.id < " + cursorId + ")");
-                orderString = "order by c.id DESC";
-            } else if (!previous && order == SearchOrder.NEW) {
-                queryBuilder.append(" (c.id < " + cursorId + ")");
-                queryBuilder2.append(" (c.id < " + cursorId + ")");
-                orderString = "order by c.id DESC";
-            } else if (!previous && order == SearchOrder.OLD) {
-                queryBuilder.append(" (c.id > " + cursorId + ")");
-                queryBuilder2.append(" (c.id > " + cursorId + ")");
-                orderString = "order by c.id ASC";
-            }
-        } else {
-            if (order == SearchOrder.NEW) {
-                orderString = "order by c.id DESC";
-            } else {
-                orderString = "order by c.id ASC";
-            }
-        }
-
-        if (!querySpam) {
-            if (cursorId > 0) {
-                queryBuilder.append(" AND (c.chatRoom= :chatRoom) AND (c.type <> 'text' or c.sender not in :blockeds) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and c.scheduledTime IS NULL");
-                queryBuilder2.append(" AND (c.chatRoom= :chatRoom) AND (c.type <> 'text' or c.sender not in :blockeds) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and c.scheduledTime IS NULL");
-            } else {
-                queryBuilder.append(" (c.chatRoom= :chatRoom) AND (c.type <> 'text' or c.sender not in :blockeds) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and c.scheduledTime IS NULL");
-                queryBuilder2.append(" (c.chatRoom= :chatRoom) AND (c.type <> 'text' or c.sender not in :blockeds) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and c.scheduledTime IS NULL");
-            }
-        } else {
-            if (cursorId > 0) {
-                queryBuilder.append(" AND (c.chatRoom in :chatRooms) AND (c.type = 'text' and c.sender not in :blockeds) AND c.scheduledTime IS NULL");
-                queryBuilder2.append(" AND (c.chatRoom in :chatRooms) AND (c.type = 'text' and c.sender not in :blockeds) AND c.scheduledTime IS NULL");
-            } else {
-                queryBuilder.append(" (c.chatRoom in :chatRooms) AND (c.type = 'text' and c.sender not in :blockeds) AND c.scheduledTime IS NULL");
-                queryBuilder2.append(" (c.chatRoom in :chatRooms) AND (c.type = 'text' and c.sender not in :blockeds) AND c.scheduledTime IS NULL");
-            }
-        }
-
-
-        for (ChatRecordSearchFilter filter : filters) {
-            queryBuilder.append(" AND " + filter.getQuery());
-            queryBuilder2.append(" AND " + filter.getQuery());
+    public List<ChatRecord> searchChatRecord(@Nullable ChatRoom chatRoom, int[] blockedIds, List<ChatRecordSearchFilter> filters, Integer cursorId, SearchOrder order, boolean previous, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag
+            , boolean querySpam, @Nullable Set<ChatRoom> userChatRooms, @Nullable Set<User> customUserFilter,
+                                             boolean queryEverywhere, @Nullable ZonedDateTime cursorDate) throws GenericException {
+        boolean hasCursor = cursorId > 0 && (!queryEverywhere || cursorDate != null);
+        //a previous page walks away from the requested order
+        boolean ascending = hasCursor ? previous == (order == SearchOrder.NEW) : order == SearchOrder.OLD;
+
+        List<String> filterQueries = new ArrayList<>(filters.size());
+        for (int i = 0; i < filters.size(); i++) {
+            filterQueries.add(filters.get(i).getQualifiedQuery(i));
         }
 
         if (querySpam) {
             spamFlag = ContentFilterFlag.INCLUDE;
         }
 
-        queryBuilder.append(getFlags(nsfwFlag, spamFlag));
-        queryBuilder2.append(getFlags(nsfwFlag, spamFlag));
-
-        if (customUserFilter != null) {
-            queryBuilder.append(" and c.sender in :users");
-            queryBuilder2.append(" and c.sender in :users");
+        SearchQueryShape shape = new SearchQueryShape(querySpam, queryEverywhere, hasCursor, ascending, filterQueries, nsfwFlag, spamFlag, customUserFilter != null);
+        String jpql;
+        synchronized (searchQueryCache) {
+            jpql = searchQueryCache.computeIfAbsent(shape, CustomChatRecordRepositoryImpl::buildSearchQuery);
         }
 
+        TypedQuery<Integer> searchQuery = em.createQuery(jpql, Integer.class);
 
-        queryBuilder.append(" " + orderString);
-        queryBuilder2.append(" " + orderString);
-
-        System.out.println("QUERYMATCHER::" + queryBuilder.toString());
-        System.out.println("QUERYMATCHER::" + queryBuilder2.toString());
-
-        TypedQuery<ChatRecord> searchQuery = em.createQuery(queryBuilder.toString(), ChatRecord.class);
-        TypedQuery<ChatRecord> searchQuery2 = em.createQuery(queryBuilder2.toString(), ChatRecord.class);
-
-
-        searchQuery.setParameter("blockeds", blockeds);
-        searchQuery2.setParameter("blockeds", blockeds);
-        if (!querySpam) {
+        searchQuery.setParameter("blockedIds", toArrayLiteral(blockedIds));
+        if (queryEverywhere) {
+            searchQuery.setParameter("userId", forUserId);
+            searchQuery.setParameter("forUserId", privateTypePrefix(forUserId));
+        } else if (!querySpam) {
             searchQuery.setParameter("chatRoom", chatRoom);
-            searchQuery.setParameter("forUserId", "system_private_" + forUserId + "_");
-            searchQuery2.setParameter("chatRoom", chatRoom);
-            searchQuery2.setParameter("forUserId", "system_private_" + forUserId + "_");
+            searchQuery.setParameter("forUserId", privateTypePrefix(forUserId));
         } else {
             searchQuery.setParameter("chatRooms", userChatRooms);
-            searchQuery2.setParameter("chatRooms", userChatRooms);
+        }
+
+        if (hasCursor) {
+            searchQuery.setParameter("cursorId", cursorId);
+            if (queryEverywhere) {
+                searchQuery.setParameter("cursorDate", cursorDate);
+            }
         }
 
         if (customUserFilter != null) {
             searchQuery.setParameter("users", customUserFilter);
-            searchQuery2.setParameter("users", customUserFilter);
         }
 
-        for (ChatRecordSearchFilter filter : filters) {
-            if (filter.getQueryParameters() != null) {
-                filter.getQueryParameters().forEach((key, value) -> {
-                    searchQuery.setParameter((String) key, value);
-                    searchQuery2.setParameter((String) key, value);
+        for (int i = 0; i < filters.size(); i++) {
+            Map<String, ?> parameters = filters.get(i).getQueryParameters();
+            if (parameters != null) {
+                int position = i;
+                parameters.forEach((key, value) -> {
+                    searchQuery.setParameter(ChatRecordSearchFilter.qualifiedParameterName(position, key), value);
                 });
             }
         }
 
-        records = searchQuery.setMaxResults(30).getResultList();
-        records = searchQuery2.setMaxResults(30).getResultList();
+        List<ChatRecord> records = loadByIds(searchQuery.setMaxResults(SEARCH_PAGE_SIZE).getResultList(), forUserId);
 
         if (previous) {
             Collections.reverse(records);
         }
 
-
         return records;
     }
 
-    @Override
-    public List<ChatRecord> getNextPageSpam(Set<ChatRoom> userChatRooms, Integer prevPageLastId, Set<User> blockeds, ContentFilterFlag nsfwFlag,
-                                            @Nullable Set<User> customUserFilter) {
-        if (prevPageLastId.equals(0)) {
-            //simply fetch the first 20 entries
-            List<ChatRecord> records = null;
-
-
-            TypedQuery<ChatRecord> recordsQuery = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.chatReactions cr where" +
-                            " (c.chatRoom in :chatRooms) and (c.type = 'text') and (c.sender not in :blockeds) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, ContentFilterFlag.INCLUDE) +
-                            (customUserFilter != null ? " and c.sender in :users" : "") +
-                            " order by c.id desc", ChatRecord.class)
-                    .setParameter("chatRooms", userChatRooms)
-                    .setParameter("blockeds", blockeds)
-                    .setMaxResults(perPageCount);
-            if (customUserFilter != null) {
-                recordsQuery.setParameter("users", customUserFilter);
-            }
+    //everything that changes the text of a search query. values are always bound as parameters,
+    //so requests with the same shape share one query string and one parsed plan
+    record SearchQueryShape(boolean querySpam, boolean queryEverywhere, boolean hasCursor, boolean ascending, List<String> filterQueries,
+                            ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag, boolean hasUserFilter) {
+    }
 
-            records = recordsQuery.getResultList();
+    static String buildSearchQuery(SearchQueryShape shape) {
+        StringBuilder queryBuilder = new StringBuilder("SELECT c.id from ChatRecord c where");
 
+        if (shape.queryEverywhere()) {
+            //membership is resolved through the chatrooms join table instead of binding every chatroom of the user
+            queryBuilder.append(" c.chatRoom.id in (SELECT r.id FROM User u JOIN u.chatRooms r WHERE u.id = :userId) AND (c.type <> 'text' or not_blocked(c.sender.id, :blockedIds)) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and c.scheduledTime IS NULL");
+        } else if (!shape.querySpam()) {
+            queryBuilder.append(" (c.chatRoom= :chatRoom) AND (c.type <> 'text' or not_blocked(c.sender.id, :blockedIds)) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and c.scheduledTime IS NULL");
+        } else {
+            queryBuilder.append(" (c.chatRoom in :chatRooms) AND (c.type = 'text' and not_blocked(c.sender.id, :blockedIds)) AND c.scheduledTime IS NULL");
+        }
 
-            recordsQuery = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.pollVotes p LEFT JOIN FETCH p.voter where" +
-                            " (c.chatRoom in :chatRoom) and (c.type = 'text') and (c.sender not in :blockeds) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, ContentFilterFlag.INCLUDE) +
-                            (customUserFilter != null ? " and c.sender in :users" : "") +
-                            " order by c.id desc", ChatRecord.class)
-                    .setParameter("chatRoom", userChatRooms)
-                    .setParameter("blockeds", blockeds)
-                    .setMaxResults(perPageCount);
-            if (customUserFilter != null) {
-                recordsQuery.setParameter("users", customUserFilter);
+        if (shape.hasCursor()) {
+            if (shape.queryEverywhere()) {
+                //ids are only ordered within a chatroom's history, across chatrooms the page order is (date, id)
+                queryBuilder.append(shape.ascending() ? " AND (c.date > :cursorDate OR (c.date = :cursorDate AND c.id > :cursorId))" :
+                        " AND (c.date < :cursorDate OR (c.date = :cursorDate AND c.id < :cursorId))");
+            } else {
+                queryBuilder.append(shape.ascending() ? " AND (c.id > :cursorId)" : " AND (c.id < :cursorId)");
             }
-            records = recordsQuery.getResultList();
+        }
 
-            return records;
+        for (String filterQuery : shape.filterQueries()) {
+            queryBuilder.append(" AND ").append(filterQuery);
+        }
+
+        queryBuilder.append(getFlags(shape.nsfwFlag(), shape.spamFlag()));
+
+        if (shape.hasUserFilter()) {
+            queryBuilder.append(" and c.sender in :users");
+        }
+
+        if (shape.queryEverywhere()) {
+            queryBuilder.append(shape.ascending() ? " order by c.date ASC, c.id ASC" : " order by c.date DESC, c.id DESC");
         } else {
-            List<ChatRecord> records = null;
-            TypedQuery<ChatRecord> recordsQuery = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.chatReactions cr where" +
-                            " c.id < :lastId and (c.chatRoom in :chatRooms) and (c.type = 'text') and (c.sender not in :blockeds) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, ContentFilterFlag.INCLUDE) +
-                            (customUserFilter != null ? " and c.sender in :users" : "") +
-                            " order by c.id desc", ChatRecord.class)
-                    .setParameter("chatRooms", userChatRooms)
-                    .setParameter("blockeds", blockeds)
-                    .setParameter("lastId", prevPageLastId)
-                    .setMaxResults(perPageCount);
-
-            if (customUserFilter != null) {
-                recordsQuery.setParameter("users", customUserFilter);
-            }
+            queryBuilder.append(shape.ascending() ? " order by c.id ASC" : " order by c.id DESC");
+        }
+        return queryBuilder.toString();
+    }
 
-            records = recordsQuery.getResultList();
+    @Override
+    public List<ChatRecordSearchHit> searchRankedChatRecord(ChatRoom chatRoom, int[] blockedIds, String query, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag,
+                                                            @Nullable Float cursorScore, @Nullable Integer cursorId, int limit) {
+        //chatroom_id and the bigram match are served together by the composite idx_chatrecord_room_message index,
+        //so only the matches of this chatroom are visited
+        boolean hasCursor = cursorScore != null && cursorId != null;
+
+        Query rankQuery = em.createNativeQuery("SELECT r.id, r.score FROM (SELECT c.id AS id, bigm_similarity(c.message, :query) AS score FROM chat_record c" +
+                        " WHERE c.chatroom_id = :chatRoomId AND c.message LIKE likequery(:query)" +
+                        " AND (c.type <> 'text' OR c.sender_id <> ALL(CAST(:blockedIds AS integer[]))) AND (c.type NOT LIKE 'system_private%' OR c.type LIKE CONCAT(:forUserId,'%'))" +
+                        " AND c.scheduled_time IS NULL" + getNativeFlags(nsfwFlag, spamFlag) + ") r" +
+                        (hasCursor ? " WHERE r.score < CAST(:cursorScore AS real) OR (r.score = CAST(:cursorScore AS real) AND r.id < :cursorId)" : "") +
+                        " ORDER BY r.score DESC, r.id DESC LIMIT :limit")
+                .setParameter("query", query)
+                .setParameter("chatRoomId", chatRoom.getId())
+                .setParameter("blockedIds", toArrayLiteral(blockedIds))
+                .setParameter("forUserId", privateTypePrefix(forUserId))
+                .setParameter("limit", limit);
+        if (hasCursor) {
+            rankQuery.setParameter("cursorScore", cursorScore);
+            rankQuery.setParameter("cursorId", cursorId);
+        }
+
+        List<Object[]> ranked = rankQuery.getResultList();
+        if (ranked.isEmpty()) {
+            return List.of();
+        }
+        List<Integer> ids = ranked.stream().map(row -> ((Number) row[0]).intValue()).toList();
+
+        List<ChatRecord> records = loadByIds(ids, forUserId);
 
-            recordsQuery = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.pollVotes p LEFT JOIN FETCH p.voter where" +
-                            " c.id < :lastId and (c.chatRoom in :chatRooms) and (c.type = 'text') and (c.sender not in :blockeds) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, ContentFilterFlag.INCLUDE) +
-                            (customUserFilter != null ? " and c.sender in :users" : "") +
-                            " order by c.id desc", ChatRecord.class)
-                    .setParameter("chatRooms", userChatRooms)
-                    .setParameter("blockeds", blockeds)
-                    .setParameter("lastId", prevPageLastId)
-                    .setMaxResults(perPageCount);
+        Map<Integer, ChatRecord> recordsById = new HashMap<>();
+        for (ChatRecord record : records) {
+            recordsById.put(record.getId(), record);
+        }
 
-            if (customUserFilter != null) {
-                recordsQuery.setParameter("users", customUserFilter);
+        List<ChatRecordSearchHit> hits = new ArrayList<>();
+        for (Object[] row : ranked) {
+            ChatRecord record = recordsById.get(((Number) row[0]).intValue());
+            if (record != null) {
+                hits.add(new ChatRecordSearchHit(record, ((Number) row[1]).floatValue(), ChatRecordSearchHit.createSnippet(record.getMessage(), query)));
             }
-            records = recordsQuery.getResultList();
-            return records;
         }
+        return hits;
     }
 
     @Override
-    public List<ChatRecord> getPrevPageSpam(Set<ChatRoom> userChatRooms, Integer nextPageFirstId, Set<User> blockeds, ContentFilterFlag nsfwFlag,
-                                            @Nullable Set<User> customUserFilter) {
-
-        List<ChatRecord> records = null;
-        TypedQuery<ChatRecord> recordsQuery = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.chatReactions cr where" +
-                        " c.id > :firstId and (c.chatRoom in :chatRooms) and (c.type = 'text') and (c.sender not in :blockeds) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, ContentFilterFlag.INCLUDE) +
+    public List<ChatRecord> getNextPageSpam(Set<ChatRoom> userChatRooms, Integer prevPageLastId, int[] blockedIds, ContentFilterFlag nsfwFlag,
+                                            @Nullable Set<User> customUserFilter, int forUserId) {
+        //the first page starts from the latest record
+        boolean firstPage = prevPageLastId.equals(0);
+        TypedQuery<Integer> idQuery = em.createQuery("SELECT c.id from ChatRecord c where" +
+                        (firstPage ? "" : " c.id < :lastId and") +
+                        " (c.chatRoom in :chatRooms) and (c.type = 'text') and (not_blocked(c.sender.id, :blockedIds)) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, ContentFilterFlag.INCLUDE) +
                         (customUserFilter != null ? " and c.sender in :users" : "") +
-                        " order by c.id asc", ChatRecord.class)
+                        " order by c.id desc", Integer.class)
                 .setParameter("chatRooms", userChatRooms)
-                .setParameter("blockeds", blockeds)
-                .setParameter("firstId", nextPageFirstId)
-                .setParameter("users", customUserFilter)
+                .setParameter("blockedIds", toArrayLiteral(blockedIds))
                 .setMaxResults(perPageCount);
-
+        if (!firstPage) {
+            idQuery.setParameter("lastId", prevPageLastId);
+        }
         if (customUserFilter != null) {
-            recordsQuery.setParameter("users", customUserFilter);
+            idQuery.setParameter("users", customUserFilter);
         }
-        records = recordsQuery.getResultList();
-        recordsQuery = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.pollVotes p LEFT JOIN FETCH p.voter where" +
-                        " c.id > :firstId and (c.chatRoom in :chatRooms) and (c.type = 'text') and (c.sender not in :blockeds) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, ContentFilterFlag.INCLUDE) +
+
+        return loadByIds(idQuery.getResultList(), forUserId);
+    }
+
+    @Override
+    public List<ChatRecord> getPrevPageSpam(Set<ChatRoom> userChatRooms, Integer nextPageFirstId, int[] blockedIds, ContentFilterFlag nsfwFlag,
+                                            @Nullable Set<User> customUserFilter, int forUserId) {
+
+        TypedQuery<Integer> idQuery = em.createQuery("SELECT c.id from ChatRecord c where" +
+                        " c.id > :firstId and (c.chatRoom in :chatRooms) and (c.type = 'text') and (not_blocked(c.sender.id, :blockedIds)) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, ContentFilterFlag.INCLUDE) +
                         (customUserFilter != null ? " and c.sender in :users" : "") +
-                        " order by c.id asc", ChatRecord.class)
+                        " order by c.id asc", Integer.class)
                 .setParameter("chatRooms", userChatRooms)
-                .setParameter("blockeds", blockeds)
+                .setParameter("blockedIds", toArrayLiteral(blockedIds))
                 .setParameter("firstId", nextPageFirstId)
-                .setParameter("users", customUserFilter)
                 .setMaxResults(perPageCount);
 
         if (customUserFilter != null) {
-            recordsQuery.setParameter("users", customUserFilter);
+            idQuery.setParameter("users", customUserFilter);
         }
-        records = recordsQuery.getResultList();
+        List<ChatRecord> records = loadByIds(idQuery.getResultList(), forUserId);
         Collections.reverse(records);
 
         return records;
     }
 
-    private String getFlags(ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
+    static String getFlags(ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
         String flags = "";
         if (nsfwFlag == ContentFilterFlag.INCLUDE && spamFlag == ContentFilterFlag.INCLUDE) {
             flags = " AND c.isSpam = TRUE and c.isNsfw = TRUE";
@@ -285,33 +281,38 @@ public class CustomChatRecordRepositoryImpl implements CustomChatRecordRepositor
     }
 
 
+    private String getNativeFlags(ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
+        return getFlags(nsfwFlag, spamFlag).replace("c.isSpam", "c.is_spam").replace("c.isNsfw", "c.is_nsfw");
+    }
+
+
     @Override
-    public boolean hasChatRecordById(ChatRoom chatRoom, Set<User> blockeds, Integer id, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
+    public boolean hasChatRecordById(ChatRoom chatRoom, int[] blockedIds, Integer id, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
 
 
         Long count = (Long) (em.createQuery("SELECT COUNT(c) from ChatRecord c WHERE c.id = :id and c.chatRoom = :chatRoom and " +
-                "(c.type <> 'text' or c.sender not in :blockeds) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag)))
+                "(c.type <> 'text' or not_blocked(c.sender.id, :blockedIds)) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag)))
                 .setParameter("id", id)
                 .setParameter("chatRoom", chatRoom)
-                .setParameter("blockeds", blockeds)
-                .setParameter("forUserId", "system_private_" + forUserId + "_")
+                .setParameter("blockedIds", toArrayLiteral(blockedIds))
+                .setParameter("forUserId", privateTypePrefix(forUserId))
                 .getSingleResult();
 
         return count > 0;
     }
 
     @Override
-    public boolean hasSpamChatRecordById(Set<ChatRoom> userChatRooms, Set<User> blockeds, Integer id, ContentFilterFlag nsfwFlag,
+    public boolean hasSpamChatRecordById(Set<ChatRoom> userChatRooms, int[] blockedIds, Integer id, ContentFilterFlag nsfwFlag,
                                          @Nullable Set<User> customUserFilter) {
 
 
         Query countQuery = em.createQuery("SELECT COUNT(c) from ChatRecord c WHERE c.id = :id and c.chatRoom in :chatRooms and " +
-                        "(c.type = 'text' and c.sender not in :blockeds) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, ContentFilterFlag.INCLUDE)
+                        "(c.type = 'text' and not_blocked(c.sender.id, :blockedIds)) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, ContentFilterFlag.INCLUDE)
                         + (customUserFilter != null ? " and c.sender in :users" : "")
                 )
                 .setParameter("id", id)
                 .setParameter("chatRooms", userChatRooms)
-                .setParameter("blockeds", blockeds);
+                .setParameter("blockedIds", toArrayLiteral(blockedIds));
 
         if (customUserFilter != null) {
             countQuery.setParameter("users", customUserFilter);
@@ -321,114 +322,64 @@ public class CustomChatRecordRepositoryImpl implements CustomChatRecordRepositor
     }
 
     @Override
-    public List<ChatRecord> getNextPageByChatRoomIdBlockFiltered(ChatRoom chatRoom, Set<User> blockeds, Integer prevPageLastId, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
-        if (prevPageLastId.equals(0)) {
-            //simply fetch the first 20 entries
-            List<ChatRecord> records = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.chatReactions cr where" +
-                            " (c.chatRoom= :chatRoom and (c.type <> 'text' or c.sender not in :blockeds)) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
-                            " order by c.id desc", ChatRecord.class)
-                    .setParameter("chatRoom", chatRoom)
-                    .setParameter("blockeds", blockeds)
-                    .setParameter("forUserId", "system_private_" + forUserId + "_")
-                    .setMaxResults(perPageCount)
-                    .getResultList();
-
-            records = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.pollVotes p LEFT JOIN FETCH p.voter where" +
-                            " (c.chatRoom= :chatRoom and (c.type <> 'text' or c.sender not in :blockeds)) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
-                            " order by c.id desc", ChatRecord.class)
-                    .setParameter("chatRoom", chatRoom)
-                    .setParameter("blockeds", blockeds)
-                    .setParameter("forUserId", "system_private_" + forUserId + "_")
-                    .setMaxResults(perPageCount)
-                    .getResultList();
-            return records;
-        } else {
-            List<ChatRecord> records = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.chatReactions cr where" +
-                            " c.id < :lastId and (c.chatRoom= :chatRoom and (c.type <> 'text' or c.sender not in :blockeds)) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
-                            " order by c.id desc", ChatRecord.class)
-                    .setParameter("chatRoom", chatRoom)
-                    .setParameter("blockeds", blockeds)
-                    .setParameter("lastId", prevPageLastId)
-                    .setParameter("forUserId", "system_private_" + forUserId + "_")
-                    .setMaxResults(perPageCount)
-                    .getResultList();
-
-            records = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.pollVotes p LEFT JOIN FETCH p.voter where" +
-                            " c.id < :lastId and (c.chatRoom= :chatRoom and (c.type <> 'text' or c.sender not in :blockeds)) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
-                            " order by c.id desc", ChatRecord.class)
-                    .setParameter("chatRoom", chatRoom)
-                    .setParameter("blockeds", blockeds)
-                    .setParameter("lastId", prevPageLastId)
-                    .setParameter("forUserId", "system_private_" + forUserId + "_")
-                    .setMaxResults(perPageCount)
-                    .getResultList();
-
-            return records;
+    public List<ChatRecord> getNextPageByChatRoomIdBlockFiltered(ChatRoom chatRoom, int[] blockedIds, Integer prevPageLastId, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
+        //the first page starts from the latest record
+        boolean firstPage = prevPageLastId.equals(0);
+        TypedQuery<Integer> idQuery = em.createQuery("SELECT c.id from ChatRecord c where" +
+                        (firstPage ? "" : " c.id < :lastId and") +
+                        " (c.chatRoom= :chatRoom and (c.type <> 'text' or not_blocked(c.sender.id, :blockedIds))) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
+                        " order by c.id desc", Integer.class)
+                .setParameter("chatRoom", chatRoom)
+                .setParameter("blockedIds", toArrayLiteral(blockedIds))
+                .setParameter("forUserId", privateTypePrefix(forUserId))
+                .setMaxResults(perPageCount);
+        if (!firstPage) {
+            idQuery.setParameter("lastId", prevPageLastId);
         }
+
+        return loadByIds(idQuery.getResultList(), forUserId);
     }
 
     @Override
-    public List<ChatRecord> getPrevPageByChatRoomIdBlockFiltered(ChatRoom chatRoom, Set<User> blockeds, Integer nextPageFirstId, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
-        List<ChatRecord> records = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.chatReactions cr where" +
-                        " c.id > :firstId and (c.chatRoom= :chatRoom and (c.type <> 'text' or c.sender not in :blockeds)) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
-                        " order by c.id asc", ChatRecord.class)
-                .setParameter("chatRoom", chatRoom)
-                .setParameter("blockeds", blockeds)
-                .setParameter("firstId", nextPageFirstId)
-                .setParameter("forUserId", "system_private_" + forUserId + "_")
-                .setMaxResults(perPageCount)
-                .getResultList();
-
-        records = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.pollVotes p LEFT JOIN FETCH p.voter where" +
-                        " c.id > :firstId and (c.chatRoom= :chatRoom and (c.type <> 'text' or c.sender not in :blockeds)) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
-                        " order by c.id asc", ChatRecord.class)
+    public List<ChatRecord> getPrevPageByChatRoomIdBlockFiltered(ChatRoom chatRoom, int[] blockedIds, Integer nextPageFirstId, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
+        List<Integer> ids = em.createQuery("SELECT c.id from ChatRecord c where" +
+                        " c.id > :firstId and (c.chatRoom= :chatRoom and (c.type <> 'text' or not_blocked(c.sender.id, :blockedIds))) and (c.type NOT LIKE 'system_private%' or c.type LIKE CONCAT(:forUserId,'%')) and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
+                        " order by c.id asc", Integer.class)
                 .setParameter("chatRoom", chatRoom)
-                .setParameter("blockeds", blockeds)
+                .setParameter("blockedIds", toArrayLiteral(blockedIds))
                 .setParameter("firstId", nextPageFirstId)
-                .setParameter("forUserId", "system_private_" + forUserId + "_")
+                .setParameter("forUserId", privateTypePrefix(forUserId))
                 .setMaxResults(perPageCount)
                 .getResultList();
 
+        List<ChatRecord> records = loadByIds(ids, forUserId);
         Collections.reverse(records);
 
         return records;
     }
 
     @Override
-    public List<ChatRecord> getAllPinnedByChatRoomIdBlockFiltered(ChatRoom chatRoom, Set<User> blockeds, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
-        List<ChatRecord> records = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.chatReactions cr where" +
-                        " (c.chatRoom= :chatRoom and c.sender not in :blockeds) and c.pinned = true and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
-                        " order by c.date desc", ChatRecord.class)
-                .setParameter("chatRoom", chatRoom)
-                .setParameter("blockeds", blockeds)
-                .getResultList();
-
-        records = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.pollVotes p LEFT JOIN FETCH p.voter where" +
-                        " (c.chatRoom= :chatRoom and c.sender not in :blockeds) and c.pinned = true and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
-                        " order by c.date desc", ChatRecord.class)
+    public List<ChatRecord> getAllPinnedByChatRoomIdBlockFiltered(ChatRoom chatRoom, int[] blockedIds, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
+        List<Integer> ids = em.createQuery("SELECT c.id from ChatRecord c where" +
+                        " (c.chatRoom= :chatRoom and not_blocked(c.sender.id, :blockedIds)) and c.pinned = true and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
+                        " order by c.date desc", Integer.class)
                 .setParameter("chatRoom", chatRoom)
-                .setParameter("blockeds", blockeds)
+                .setParameter("blockedIds", toArrayLiteral(blockedIds))
                 .getResultList();
 
-        return records;
+        return loadByIds(ids, forUserId);
     }
 
     @Override
     public List<ChatRecord> getAllPinnedByChatRoomId(ChatRoom chatRoom, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
 
-        List<ChatRecord> records = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.chatReactions cr where" +
+        List<Integer> ids = em.createQuery("SELECT c.id from ChatRecord c where" +
                         " c.chatRoom= :chatRoom and c.pinned = true and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
-                        " order by c.date desc", ChatRecord.class)
+                        " order by c.date desc", Integer.class)
                 .setParameter("chatRoom", chatRoom)
                 .getResultList();
 
-        records = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.pollVotes p LEFT JOIN FETCH p.voter where" +
-                        " c.chatRoom= :chatRoom and c.pinned = true and (c.scheduledTime IS NULL)" + getFlags(nsfwFlag, spamFlag) +
-                        " order by c.date desc", ChatRecord.class)
-                .setParameter("chatRoom", chatRoom)
-                .getResultList();
-
-        return records;
+        return loadByIds(ids, 0);
     }
 
     @Override
@@ -448,29 +399,234 @@ public class CustomChatRecordRepositoryImpl implements CustomChatRecordRepositor
         }
         String extraQuery = extraQueryBuilder.toString();
         extraQuery = extraQuery.substring(extraQuery.indexOf(" and") + " and".length());
-        TypedQuery<ChatRecord> recordQuery = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.chatReactions cr where" +
+        TypedQuery<Integer> idQuery = em.createQuery("SELECT c.id from ChatRecord c where" +
                 extraQuery +
-                " order by c.date desc", ChatRecord.class);
+                " order by c.date desc", Integer.class);
 
-        TypedQuery<ChatRecord> recordQuery2 = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender LEFT JOIN FETCH c.pollVotes p LEFT JOIN FETCH p.voter where" +
-                extraQuery +
-                " order by c.date desc", ChatRecord.class);
         if (chatRoom != null) {
-            recordQuery.setParameter("chatRoom", chatRoom);
-            recordQuery2.setParameter("chatRoom", chatRoom);
+            idQuery.setParameter("chatRoom", chatRoom);
         }
         if (scheduler != null) {
-            recordQuery.setParameter("sender", scheduler);
-            recordQuery2.setParameter("sender", scheduler);
+            idQuery.setParameter("sender", scheduler);
         }
         if (currentTime != null) {
-            recordQuery.setParameter("currentTime", currentTime);
-            recordQuery2.setParameter("currentTime", currentTime);
+            idQuery.setParameter("currentTime", currentTime);
         }
 
-        List<ChatRecord> records = recordQuery.getResultList();
-        records = recordQuery2.getResultList();
+        return loadByIds(idQuery.getResultList(), scheduler != null ? scheduler.getId() : 0);
+    }
 
-        return records;
+    @Override
+    public List<RecentChatRecordEntry> getRecentEntries(ChatRoom chatRoom, int limit) {
+        List<Object[]> rows = em.createQuery("SELECT c.id, c.sender.id, c.type, c.isNsfw, c.isSpam from ChatRecord c where" +
+                        " c.chatRoom= :chatRoom and (c.scheduledTime IS NULL)" +
+                        " order by c.id desc", Object[].class)
+                .setParameter("chatRoom", chatRoom)
+                .setMaxResults(limit)
+                .getResultList();
+
+        List<RecentChatRecordEntry> entries = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            entries.add(new RecentChatRecordEntry((Integer) row[0], (Integer) row[1], (String) row[2],
+                    (Boolean) row[3], (Boolean) row[4]));
+        }
+        return entries;
+    }
+
+    @Override
+    public List<ChatRecord> getAllByIdsOrdered(List<Integer> ids, int forUserId) {
+        return loadByIds(ids, forUserId);
+    }
+
+    @Override
+    public void attachBroadcastReactionSummaries(ChatRecord chatRecord) {
+        Map<Integer, ChatRecord> recordsById = new HashMap<>();
+        recordsById.put(chatRecord.getId(), chatRecord);
+        attachReactionSummaries(recordsById, null);
+    }
+
+    @Override
+    public void streamChatRecords(ChatRoom chatRoom, int[] blockedIds, int forUserId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag,
+                                  @Nullable ZonedDateTime from, @Nullable ZonedDateTime to, Consumer<ChatRecordExportRow> consumer) {
+        //same filtering as getNextPageByChatRoomIdBlockFiltered, read in chronological order
+        String sql = "SELECT c.id, c.chatroom_id, c.type, c.message, c.date, c.sender_id, u.username, u.nickname, c.reply_target_id, c.attachments," +
+                " c.edited, c.pinned, c.is_nsfw, c.is_spam FROM chat_record c LEFT JOIN accord_user u ON u.id = c.sender_id" +
+                " WHERE c.chatroom_id = ? AND (c.type <> 'text' OR c.sender_id <> ALL(?)) AND (c.type NOT LIKE 'system_private%' OR c.type LIKE ?)" +
+                " AND c.scheduled_time IS NULL" +
+                (from != null ? " AND c.date >= ?" : "") +
+                (to != null ? " AND c.date < ?" : "") +
+                getNativeFlags(nsfwFlag, spamFlag) +
+                " ORDER BY c.id ASC";
+        Integer[] blockedIdArray = Arrays.stream(blockedIds).boxed().toArray(Integer[]::new);
+
+        em.unwrap(Session.class).doWork(connection -> {
+            //the postgres driver only reads through a cursor with a fetch size inside a transaction, otherwise the whole result is buffered
+            try (PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                statement.setFetchSize(exportFetchSize);
+                int index = 1;
+                statement.setInt(index++, chatRoom.getId());
+                statement.setArray(index++, connection.createArrayOf("integer", blockedIdArray));
+                statement.setString(index++, privateTypePrefix(forUserId) + "%");
+                if (from != null) {
+                    statement.setObject(index++, from.toOffsetDateTime());
+                }
+                if (to != null) {
+                    statement.setObject(index++, to.toOffsetDateTime());
+                }
+
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        OffsetDateTime date = resultSet.getObject("date", OffsetDateTime.class);
+                        consumer.accept(new ChatRecordExportRow(
+                                resultSet.getInt("id"),
+                                resultSet.getInt("chatroom_id"),
+                                resultSet.getString("type"),
+                                resultSet.getString("message"),
+                                date != null ? date.toString() : null,
+                                resultSet.getObject("sender_id", Integer.class),
+                                resultSet.getString("username"),
+                                resultSet.getString("nickname"),
+                                resultSet.getObject("reply_target_id", Integer.class),
+                                resultSet.getString("attachments"),
+                                resultSet.getBoolean("edited"),
+                                resultSet.getObject("pinned", Boolean.class),
+                                resultSet.getObject("is_nsfw", Boolean.class),
+                                resultSet.getObject("is_spam", Boolean.class)));
+                    }
+                }
+            }
+        });
+    }
+
+    //the type prefix of the private system messages of a user, matched with LIKE CONCAT(:forUserId,'%').
+    //_ is a LIKE wildcard and is escaped with postgres' default escape character, otherwise user 100 would also
+    //match system_private_1000_...
+    private static String privateTypePrefix(int forUserId) {
+        return "system\\_private\\_" + forUserId + "\\_";
+    }
+
+    //'{1,2,3}', cast to integer[] and compared with <> ALL(...) by the native queries and by not_blocked(...) in jpql,
+    //so one query string serves any number of blocked ids
+    private static String toArrayLiteral(int[] ids) {
+        StringBuilder literal = new StringBuilder("{");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                literal.append(',');
+            }
+            literal.append(ids[i]);
+        }
+        return literal.append('}').toString();
+    }
+
+    //loads the chat records of a page whose ids were already selected, keeping the order of the ids.
+    //the page itself is limited in the database by the id query, since fetch joins with setMaxResults page in memory.
+    //reactions and poll votes are attached as summaries for viewerId instead of loading their rows
+    private List<ChatRecord> loadByIds(List<Integer> ids, int viewerId) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<ChatRecord> records = em.createQuery("SELECT c from ChatRecord c LEFT JOIN FETCH c.sender LEFT JOIN FETCH c.poll LEFT JOIN FETCH c.replyTargetSender where" +
+                        " c.id in :ids", ChatRecord.class)
+                .setParameter("ids", ids)
+                .getResultList();
+
+        Map<Integer, ChatRecord> recordsById = new HashMap<>();
+        for (ChatRecord record : records) {
+            recordsById.put(record.getId(), record);
+        }
+        attachReactionSummaries(recordsById, viewerId);
+        attachPollSummaries(recordsById, viewerId);
+
+        List<ChatRecord> ordered = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            ChatRecord record = recordsById.get(id);
+            if (record != null) {
+                ordered.add(record);
+            }
+        }
+        return ordered;
+    }
+
+    //one row per sampled reactor of every code; the sample and the viewer lookup are read through the
+    //(chat_record_id, code, id) index and the unique (chat_record_id, reactor_id, code) constraint, never the whole reaction list
+    private void attachReactionSummaries(Map<Integer, ChatRecord> recordsById, @Nullable Integer viewerId) {
+        if (recordsById.isEmpty()) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = em.createNativeQuery("SELECT s.chat_record_id, s.code, s.count," +
+                        " EXISTS(SELECT 1 FROM chat_reaction m WHERE m.chat_record_id = s.chat_record_id AND m.reactor_id = :viewerId AND m.code = s.code)," +
+                        " r.reactor_name FROM chat_reaction_summary s" +
+                        " LEFT JOIN LATERAL (SELECT x.id, x.reactor_name FROM chat_reaction x WHERE x.chat_record_id = s.chat_record_id AND x.code = s.code" +
+                        " ORDER BY x.id LIMIT :sampleSize) r ON TRUE" +
+                        " WHERE s.chat_record_id IN (:ids) AND s.count > 0" +
+                        " ORDER BY s.chat_record_id, s.id, r.id")
+                .setParameter("viewerId", viewerId != null ? viewerId : 0)
+                .setParameter("sampleSize", REACTION_SAMPLE_SIZE)
+                .setParameter("ids", recordsById.keySet())
+                .getResultList();
+
+        for (ChatRecord record : recordsById.values()) {
+            //the same managed record can be part of several pages within one transaction
+            record.setReactionSummaries(new ArrayList<>());
+        }
+        ReactionSummary current = null;
+        int currentRecordId = 0;
+        for (Object[] row : rows) {
+            int recordId = ((Number) row[0]).intValue();
+            String code = (String) row[1];
+            if (current == null || recordId != currentRecordId || !current.getCode().equals(code)) {
+                current = new ReactionSummary(code, ((Number) row[2]).intValue(),
+                        viewerId != null ? Boolean.TRUE.equals(row[3]) : null, new ArrayList<>());
+                currentRecordId = recordId;
+                recordsById.get(recordId).getReactionSummaries().add(current);
+            }
+            if (row[4] != null) {
+                current.getSampleReactorNames().add((String) row[4]);
+            }
+        }
+    }
+
+    private void attachPollSummaries(Map<Integer, ChatRecord> recordsById, int viewerId) {
+        List<Integer> pollRecordIds = new ArrayList<>();
+        for (ChatRecord record : recordsById.values()) {
+            if (record.getPoll() != null) {
+                pollRecordIds.add(record.getId());
+            }
+        }
+        if (pollRecordIds.isEmpty()) {
+            return;
+        }
+
+        Map<Integer, Map<Integer, Integer>> answerCounts = new HashMap<>();
+        Map<Integer, List<Integer>> votedAnswerIndices = new HashMap<>();
+        for (Integer id : pollRecordIds) {
+            answerCounts.put(id, new TreeMap<>());
+            votedAnswerIndices.put(id, new ArrayList<>());
+        }
+
+        List<Object[]> tallies = em.createQuery("SELECT t.chatRecordId, t.answerIndex, t.count FROM PollTally t WHERE" +
+                        " t.chatRecordId in :ids and t.count > 0", Object[].class)
+                .setParameter("ids", pollRecordIds)
+                .getResultList();
+        for (Object[] tally : tallies) {
+            answerCounts.get((Integer) tally[0]).put((Integer) tally[1], (Integer) tally[2]);
+        }
+
+        //read through the unique (record_id, voter_id, answer_index) constraint
+        List<Object[]> votes = em.createQuery("SELECT v.record.id, v.answerIndex FROM Vote v WHERE" +
+                        " v.record.id in :ids and v.voter.id = :viewerId order by v.answerIndex", Object[].class)
+                .setParameter("ids", pollRecordIds)
+                .setParameter("viewerId", viewerId)
+                .getResultList();
+        for (Object[] vote : votes) {
+            votedAnswerIndices.get((Integer) vote[0]).add((Integer) vote[1]);
+        }
+
+        for (Integer id : pollRecordIds) {
+            Map<Integer, Integer> counts = answerCounts.get(id);
+            int totalVotes = counts.values().stream().mapToInt(Integer::intValue).sum();
+            recordsById.get(id).setPollSummary(new PollSummary(counts, totalVotes, votedAnswerIndices.get(id)));
+        }
     }
 }
@@ -0,0 +1,36 @@
+package com.infiniteplay.accord.repositories;
+
+import com.infiniteplay.accord.entities.PollTally;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
+
+public interface PollTallyRepository extends CrudRepository<PollTally, Integer> {
+
+    //concurrent first votes of the same answer meet on the unique constraint instead of inserting two rows
+    @Modifying
+    @Query(value = "INSERT INTO poll_tally (chat_record_id, chatroom_id, answer_index, count) VALUES (:chatRecordId, :chatRoomId, :answerIndex, 1) " +
+            "ON CONFLICT (chat_record_id, answer_index) DO UPDATE SET count = poll_tally.count + 1", nativeQuery = true)
+    void increment(@Param("chatRecordId") Integer chatRecordId, @Param("chatRoomId") Integer chatRoomId, @Param("answerIndex") Integer answerIndex);
+
+    @Modifying
+    @Query(value = "UPDATE poll_tally SET count = count - 1 WHERE chat_record_id=:chatRecordId AND answer_index IN :answerIndices", nativeQuery = true)
+    void decrement(@Param("chatRecordId") Integer chatRecordId, @Param("answerIndices") List<Integer> answerIndices);
+
+    @Query("SELECT t FROM PollTally t WHERE t.chatRecordId=:chatRecordId ORDER BY t.answerIndex")
+    List<PollTally> findByChatRecordId(@Param("chatRecordId") Integer chatRecordId);
+
+    @Query(value = "SELECT COALESCE(SUM(count), 0) FROM poll_tally WHERE chat_record_id=?1", nativeQuery = true)
+    long sumCountsByChatRecordId(Integer chatRecordId);
+
+    @Modifying
+    @Query(value = "DELETE FROM poll_tally WHERE chatroom_id=?1", nativeQuery = true)
+    void deleteByChatRoomId(Integer chatRoomId);
+
+    @Modifying
+    @Query(value = "DELETE FROM poll_tally WHERE chat_record_id=?1", nativeQuery = true)
+    void deleteByChatRecordId(Integer chatRecordId);
+}
@@ -13,6 +13,7 @@ import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -47,6 +48,16 @@ public interface UserRepository extends JpaRepository<User, Integer> {
     @Query(value = "SELECT COUNT(*) > 0 FROM blocked WHERE blocked_of_id=?1 AND blocked_id=?2", nativeQuery = true)
     boolean isBlocked(Integer blockerId, Integer blockedId);
 
+    @Query(value = "SELECT friend_of_id FROM friends WHERE friends_id=:userId AND friend_of_id IN :candidateIds", nativeQuery = true)
+    List<Integer> findFriendIdsAmong(@Param("userId") Integer userId, @Param("candidateIds") Collection<Integer> candidateIds);
+
+    @Query(value = "SELECT blocked_of_id FROM blocked WHERE blocked_id=:blockedId AND blocked_of_id IN :candidateIds", nativeQuery = true)
+    List<Integer> findBlockerIdsAmong(@Param("blockedId") Integer blockedId, @Param("candidateIds") Collection<Integer> candidateIds);
+
+    //ids of the users this user blocked and of the users who blocked this user
+    @Query(value = "SELECT blocked_id FROM blocked WHERE blocked_of_id=:userId UNION SELECT blocked_of_id FROM blocked WHERE blocked_id=:userId", nativeQuery = true)
+    List<Integer> findBlockedAssociationIds(@Param("userId") Integer userId);
+
 
 
 }
@@ -2,6 +2,7 @@ package com.infiniteplay.accord.repositories;
 
 import com.infiniteplay.accord.entities.Poll;
 import com.infiniteplay.accord.entities.Vote;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
@@ -17,4 +18,15 @@ public interface VoteRepository extends CrudRepository<Vote, Integer> {
     @Query("DELETE FROM Vote v WHERE v.id in :ids")
     @Modifying
     void bulkDeleteByIds(@Param("ids") List<Integer> ids);
-}
\ No newline at end of file
+
+    @Query("DELETE FROM Vote v WHERE v.record.id = :recordId AND v.voter.id = :voterId")
+    @Modifying
+    int deleteByRecordIdAndVoterId(@Param("recordId") Integer recordId, @Param("voterId") Integer voterId);
+
+    @Query("SELECT v.answerIndex FROM Vote v WHERE v.record.id = :recordId AND v.voter.id = :voterId ORDER BY v.answerIndex")
+    List<Integer> findAnswerIndices(@Param("recordId") Integer recordId, @Param("voterId") Integer voterId);
+
+    //voters of one answer in voting order, paged by the id of the last vote of the previous page
+    @Query("SELECT v FROM Vote v JOIN FETCH v.voter WHERE v.record.id = :recordId AND v.answerIndex = :answerIndex AND v.id > :cursorId ORDER BY v.id")
+    List<Vote> findVoters(@Param("recordId") Integer recordId, @Param("answerIndex") Integer answerIndex, @Param("cursorId") Integer cursorId, Pageable pageable);
+}
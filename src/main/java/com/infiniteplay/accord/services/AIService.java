@@ -1,30 +1,80 @@
 package com.infiniteplay.accord.services;
 
 
-import ai.djl.inference.Predictor;
 import ai.djl.modality.Classifications;
 import ai.djl.modality.cv.Image;
 import ai.djl.modality.cv.ImageFactory;
 import ai.djl.translate.TranslateException;
+import com.infiniteplay.accord.ai.BatchedTextClassifier;
+import com.infiniteplay.accord.ai.ClassificationCache;
+import com.infiniteplay.accord.ai.ImageDecoder;
+import com.infiniteplay.accord.ai.PredictorPool;
+import com.infiniteplay.accord.ai.PredictorPoolExhaustedException;
 import com.infiniteplay.accord.utils.GenericException;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 @Service
 public class AIService {
 
-    private final Predictor<String, Classifications> nsfwTextDetector;
-    private final Predictor<String, Classifications> spamTextDetector;
-    private final Predictor<Image, Classifications> nsfwImageDetector;
+    private static final Logger log = LoggerFactory.getLogger(AIService.class);
+    //input size of the image classifier, see ImageClassificationTranslator
+    private static final int IMAGE_INPUT_SIZE = 224;
 
-    public AIService(@Qualifier("nsfwTextDetector") Predictor<String, Classifications> nsfwTextDetector, @Qualifier("spamTextDetector") Predictor<String, Classifications> spamTextDetector, @Qualifier("nsfwImageDetector") Predictor<Image, Classifications> nsfwImageDetector) {
-        this.nsfwTextDetector = nsfwTextDetector;
-        this.spamTextDetector = spamTextDetector;
+    private final BatchedTextClassifier nsfwTextClassifier;
+    private final BatchedTextClassifier spamTextClassifier;
+    private final PredictorPool<Image, Classifications> nsfwImageDetector;
+    //identical texts and images (repeated replies, reposted memes, unchanged edits) skip inference
+    private final ClassificationCache classificationCache;
+    private final ThreadPoolExecutor imageExecutor;
+    private final long imageDeadlineNanos;
+    //verdict for images that were not classified in time, either past the deadline or because the workers and their queue were full
+    private final boolean imageDeadlineFailOpen;
+
+    private final LongAdder imageCount = new LongAdder();
+    private final LongAdder imageTotalNanos = new LongAdder();
+    private final AtomicLong imageMaxNanos = new AtomicLong();
+    private final LongAdder imageDeadlineCount = new LongAdder();
+    private final LongAdder imageRejectedCount = new LongAdder();
+
+    public AIService(@Qualifier("nsfwTextClassifier") BatchedTextClassifier nsfwTextClassifier, @Qualifier("spamTextClassifier") BatchedTextClassifier spamTextClassifier, @Qualifier("nsfwImageDetector") PredictorPool<Image, Classifications> nsfwImageDetector,
+                     @Value("${aimodels.cache.maxentries}") int cacheMaxEntries, @Value("${aimodels.cache.ttlminutes}") long cacheTtlMinutes,
+                     @Value("${aimodels.image.workers}") int imageWorkers, @Value("${aimodels.image.deadlinems}") long imageDeadlineMs,
+                     @Value("${aimodels.image.deadlinefailopen}") boolean imageDeadlineFailOpen) {
+        this.nsfwTextClassifier = nsfwTextClassifier;
+        this.spamTextClassifier = spamTextClassifier;
         this.nsfwImageDetector = nsfwImageDetector;
+        this.classificationCache = new ClassificationCache(cacheMaxEntries, cacheTtlMinutes);
+        this.imageDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(imageDeadlineMs);
+        this.imageDeadlineFailOpen = imageDeadlineFailOpen;
+        AtomicInteger threadCount = new AtomicInteger();
+        //when all workers are busy and the queue is full, submissions are rejected and the message gets the timeout verdict.
+        //the request thread never classifies by itself, it would not be bound by the deadline
+        this.imageExecutor = new ThreadPoolExecutor(imageWorkers, imageWorkers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(imageWorkers * 10),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "ImageClassifier-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
     }
 
     public boolean detectNSFW(String input) throws GenericException {
@@ -33,19 +83,12 @@ public class AIService {
             return false;
         }
         try {
-            Classifications result = nsfwTextDetector.predict(input);
-            double max = Integer.MIN_VALUE;
-            String maxClassName = "";
-
-            for(int i=0; i<result.getProbabilities().size(); i++) {
-                if(result.getProbabilities().get(i)>max) {
-                    max = result.getProbabilities().get(i);
-                    maxClassName = result.getClassNames().get(i);
-                }
-            }
-
-            return maxClassName.equals("nsfw");
+            Classifications result = classifyText(nsfwTextClassifier, "nsfwText", input);
+            return getTopClassName(result).equals("nsfw");
 
+        } catch (PredictorPoolExhaustedException e) {
+            log.warn(e.getMessage());
+            return e.isFlagged();
         } catch (TranslateException e) {
             throw new GenericException("Error while applying content filter");
         }
@@ -59,19 +102,12 @@ public class AIService {
             return false;
         }
         try {
-            Classifications result = spamTextDetector.predict(input);
-            double max = Integer.MIN_VALUE;
-            String maxClassName = "";
-
-            for(int i=0; i<result.getProbabilities().size(); i++) {
-                if(result.getProbabilities().get(i)>max) {
-                    max = result.getProbabilities().get(i);
-                    maxClassName = result.getClassNames().get(i);
-                }
-            }
-
-            return maxClassName.equals("spam");
+            Classifications result = classifyText(spamTextClassifier, "spamText", input);
+            return getTopClassName(result).equals("spam");
 
+        } catch (PredictorPoolExhaustedException e) {
+            log.warn(e.getMessage());
+            return e.isFlagged();
         } catch (TranslateException e) {
             throw new GenericException("Error while applying content filter");
         }
@@ -80,39 +116,171 @@ public class AIService {
     }
 
     public boolean detectNSFW(MultipartFile imageFile) throws GenericException {
+        return detectAnyNSFW(List.of(imageFile));
+    }
 
-        if(!isImageFile(imageFile)) {
+    //classifies the images of one message concurrently and stops at the first nsfw image.
+    //a single image goes through the workers as well, so the deadline applies to it too.
+    //images that are not classified within aimodels.image.deadlinems count as nsfw unless aimodels.image.deadlinefailopen is set
+    public boolean detectAnyNSFW(List<? extends InputStreamSource> images) throws GenericException {
+        if (images.isEmpty()) {
             return false;
         }
+
+        CompletionService<Boolean> completionService = new ExecutorCompletionService<>(imageExecutor);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        long deadline = System.nanoTime() + imageDeadlineNanos;
         try {
-            Classifications result = nsfwImageDetector.predict(ImageFactory.getInstance().fromInputStream(imageFile.getInputStream()));
-            double max = Integer.MIN_VALUE;
-            String maxClassName = "";
-
-            for(int i=0; i<result.getProbabilities().size(); i++) {
-                if(result.getProbabilities().get(i)>max) {
-                    max = result.getProbabilities().get(i);
-                    maxClassName = result.getClassNames().get(i);
+            for (InputStreamSource image : images) {
+                try {
+                    futures.add(completionService.submit(() -> detectImageNSFW(image)));
+                } catch (RejectedExecutionException e) {
+                    imageRejectedCount.increment();
+                    log.warn("Image classification rejected, all image classifier workers are busy");
+                    return !imageDeadlineFailOpen;
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                long remaining = deadline - System.nanoTime();
+                Future<Boolean> done = remaining > 0 ? completionService.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (done == null) {
+                    imageDeadlineCount.increment();
+                    log.warn("Image classification did not finish within " + TimeUnit.NANOSECONDS.toMillis(imageDeadlineNanos) + "ms");
+                    return !imageDeadlineFailOpen;
                 }
+                if (done.get()) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GenericException("Error while applying content filter");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GenericException genericException) {
+                throw genericException;
+            }
+            throw new GenericException("Error while applying content filter");
+        } finally {
+            //the remaining images cannot change the verdict anymore
+            for (Future<Boolean> future : futures) {
+                future.cancel(true);
             }
+        }
+    }
 
-            return maxClassName.equals("nsfw");
+    private boolean detectImageNSFW(InputStreamSource image) throws GenericException {
+        long start = System.nanoTime();
+        try {
+            Classifications result = classifyImage(image);
+            return result != null && getTopClassName(result).equals("nsfw");
 
+        } catch (PredictorPoolExhaustedException e) {
+            log.warn(e.getMessage());
+            return e.isFlagged();
         } catch (TranslateException | IOException e) {
             throw new GenericException("Error while applying content filter");
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            imageCount.increment();
+            imageTotalNanos.add(elapsed);
+            imageMaxNanos.accumulateAndGet(elapsed, Math::max);
         }
+    }
 
+    private Classifications classifyText(BatchedTextClassifier classifier, String model, String input) throws TranslateException {
+        String key = ClassificationCache.textKey(model, input);
+        Classifications cached = classificationCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        Classifications result = classifier.classify(input);
+        classificationCache.put(key, result);
+        return result;
+    }
 
+    //returns null if the content is not an image
+    private Classifications classifyImage(InputStreamSource imageSource) throws TranslateException, IOException {
+        //only the header is read, so videos and other files are skipped before the whole content is hashed
+        try (InputStream input = imageSource.getInputStream()) {
+            if (ImageDecoder.readDimensions(input) == null) {
+                return null;
+            }
+        }
+
+        String key;
+        try (InputStream input = imageSource.getInputStream()) {
+            key = ClassificationCache.contentKey("nsfwImage", input);
+        }
+        Classifications cached = classificationCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        BufferedImage image;
+        try (InputStream input = imageSource.getInputStream()) {
+            image = ImageDecoder.decode(input, IMAGE_INPUT_SIZE);
+        }
+        if (image == null) {
+            return null;
+        }
+        Classifications result = nsfwImageDetector.predict(ImageFactory.getInstance().fromImage(image));
+        classificationCache.put(key, result);
+        return result;
     }
 
+    @Scheduled(fixedDelay = 60000)
+    public void logClassificationStats() {
+        if (classificationCache.getHitCount() + classificationCache.getMissCount() > 0) {
+            log.info(String.format("classification cache: %d entries, %d hits, %d misses (hit ratio %.2f)",
+                    classificationCache.getSize(), classificationCache.getHitCount(), classificationCache.getMissCount(),
+                    classificationCache.getHitRatio()));
+        }
+        long images = imageCount.sum();
+        if (images > 0) {
+            log.info(String.format("image classification: %d images (avg %.2fms, max %.2fms), %d messages past the deadline, %d rejected",
+                    images, imageTotalNanos.sum() / 1_000_000.0 / images, imageMaxNanos.get() / 1_000_000.0, imageDeadlineCount.sum(),
+                    imageRejectedCount.sum()));
+        }
+        //the text pools are only used by the batch dispatchers, one per predictor, so they never wait; their overflow is counted by the classifiers
+        for (BatchedTextClassifier classifier : List.of(nsfwTextClassifier, spamTextClassifier)) {
+            if (classifier.getQueuedCount() == 0 && classifier.getOverflowCount() == 0) {
+                continue;
+            }
+            log.info(String.format("%s: %d requests, %d queued, %d overflowed",
+                    classifier.getName(), classifier.getRequestCount(), classifier.getQueuedCount(), classifier.getOverflowCount()));
+        }
+        if (nsfwImageDetector.getWaitCount() > 0) {
+            log.info(String.format("%s: %d borrows, %d waited (avg %.2fms, max %.2fms), %d overflowed",
+                    nsfwImageDetector.getName(), nsfwImageDetector.getBorrowCount(), nsfwImageDetector.getWaitCount(),
+                    nsfwImageDetector.getAverageWaitMillis(), nsfwImageDetector.getMaxWaitMillis(), nsfwImageDetector.getOverflowCount()));
+        }
+    }
 
-    public boolean isImageFile(MultipartFile imageFile) {
-        try {
+    private String getTopClassName(Classifications result) {
+        double max = Integer.MIN_VALUE;
+        String maxClassName = "";
 
-            return ImageIO.read(imageFile.getInputStream()) != null;
+        for(int i=0; i<result.getProbabilities().size(); i++) {
+            if(result.getProbabilities().get(i)>max) {
+                max = result.getProbabilities().get(i);
+                maxClassName = result.getClassNames().get(i);
+            }
+        }
+        return maxClassName;
+    }
+
+    public boolean isImageFile(MultipartFile imageFile) {
+        try (InputStream input = imageFile.getInputStream()) {
+            return ImageDecoder.decode(input, IMAGE_INPUT_SIZE) != null;
         } catch (IOException e) {
             return false;
         }
     }
 
+    @PreDestroy
+    public void shutdown() {
+        imageExecutor.shutdownNow();
+    }
+
 }
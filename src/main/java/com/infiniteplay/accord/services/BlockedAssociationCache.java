@@ -0,0 +1,91 @@
+package com.infiniteplay.accord.services;
+
+import com.infiniteplay.accord.repositories.UserRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//sorted ids of the users that a user blocked or is blocked by, so read paths can filter by id
+//without loading the blocked user entities. entries are dropped when a block or unblock commits
+@Component
+public class BlockedAssociationCache {
+
+    private final UserRepository userRepository;
+    private final int maxEntries;
+    private final LinkedHashMap<Integer, int[]> entries;
+    //bumped on every invalidation, so a load that raced with a block change is not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    public BlockedAssociationCache(UserRepository userRepository, @Value("${user.blockcache.maxentries}") int maxEntries) {
+        this.userRepository = userRepository;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                return size() > BlockedAssociationCache.this.maxEntries;
+            }
+        };
+    }
+
+    //the returned array is shared and must not be modified
+    public int[] get(int userId) {
+        synchronized (this) {
+            int[] cached = entries.get(userId);
+            if (cached != null) {
+                hitCount.increment();
+                return cached;
+            }
+        }
+        missCount.increment();
+
+        long loadGeneration = generation.get();
+        List<Integer> ids = userRepository.findBlockedAssociationIds(userId);
+        int[] sorted = ids.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+
+        synchronized (this) {
+            if (generation.get() == loadGeneration) {
+                entries.put(userId, sorted);
+            }
+        }
+        return sorted;
+    }
+
+    public synchronized void invalidate(int... userIds) {
+        generation.incrementAndGet();
+        for (int userId : userIds) {
+            entries.remove(userId);
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public static boolean contains(int[] sortedIds, int id) {
+        return Arrays.binarySearch(sortedIds, id) >= 0;
+    }
+
+    //returns a new sorted array with the extra ids added, e.g. to also exclude the user itself or its friends
+    public static int[] union(int[] sortedIds, Collection<Integer> extraIds) {
+        int[] merged = Arrays.copyOf(sortedIds, sortedIds.length + extraIds.size());
+        int i = sortedIds.length;
+        for (Integer extraId : extraIds) {
+            merged[i++] = extraId;
+        }
+        return Arrays.stream(merged).sorted().distinct().toArray();
+    }
+}
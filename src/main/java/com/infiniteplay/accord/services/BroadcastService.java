@@ -0,0 +1,102 @@
+package com.infiniteplay.accord.services;
+
+import com.infiniteplay.accord.entities.User;
+import lombok.RequiredArgsConstructor;
+import org.springframework.lang.Nullable;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.util.Collection;
+
+//sends one event to many users. the payload is converted once into a message with an immutable byte[] body,
+//and every user destination gets a copy of the headers that shares that body, instead of converting the payload
+//again for each recipient and destination as convertAndSendToUser does
+@Service
+@RequiredArgsConstructor
+public class BroadcastService {
+
+    private final SimpMessagingTemplate broker;
+    private final SocketFrameStats socketFrameStats;
+
+    //destinations of a chatroom event, plus the aggregated spam destination for spam records
+    public static String[] roomDestinations(String prefix, int chatRoomId, boolean spam) {
+        return spam ? new String[]{prefix + chatRoomId, prefix + "-1"} : new String[]{prefix + chatRoomId};
+    }
+
+    public void sendToUsers(Collection<User> recipients, @Nullable Integer excludedUserId, Object payload, String... destinations) {
+        Message<?> message = null;
+        long convertNanos = 0;
+        int sends = 0;
+        for (User recipient : recipients) {
+            if (excludedUserId != null && excludedUserId.equals(recipient.getId())) {
+                continue;
+            }
+            if (message == null) {
+                long start = System.nanoTime();
+                message = toMessage(payload);
+                convertNanos = System.nanoTime() - start;
+            }
+            for (String destination : destinations) {
+                send(recipient.getUsername() + "@" + recipient.getId(), destination, message);
+                sends++;
+            }
+        }
+        recordConversion(message, convertNanos, sends, destinations);
+    }
+
+    public void sendToUsernames(Collection<String> usernameWithIds, @Nullable String excludedUsernameWithId, Object payload, String... destinations) {
+        Message<?> message = null;
+        long convertNanos = 0;
+        int sends = 0;
+        for (String usernameWithId : usernameWithIds) {
+            if (usernameWithId.equals(excludedUsernameWithId)) {
+                continue;
+            }
+            if (message == null) {
+                long start = System.nanoTime();
+                message = toMessage(payload);
+                convertNanos = System.nanoTime() - start;
+            }
+            for (String destination : destinations) {
+                send(usernameWithId, destination, message);
+                sends++;
+            }
+        }
+        recordConversion(message, convertNanos, sends, destinations);
+    }
+
+    //the conversion is counted under the first destination, the others of the same event share it
+    private void recordConversion(@Nullable Message<?> message, long convertNanos, int sends, String[] destinations) {
+        if (message == null || destinations.length == 0) {
+            return;
+        }
+        int bytes = message.getPayload() instanceof byte[] body ? body.length : 0;
+        socketFrameStats.recordConversion(broker.getUserDestinationPrefix() + destinations[0].substring(1), bytes, convertNanos, sends);
+    }
+
+    //same conversion as convertAndSendToUser: strings are sent as text, everything else through the broker's jackson converter
+    private Message<?> toMessage(Object payload) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setLeaveMutable(true);
+        Message<?> message = broker.getMessageConverter().toMessage(payload, accessor.getMessageHeaders());
+        if (message == null) {
+            throw new MessageConversionException("Unable to convert payload of type " + payload.getClass().getName());
+        }
+        //immutable headers make the template copy them for each destination instead of writing into the shared message
+        MessageHeaderAccessor messageAccessor = MessageHeaderAccessor.getAccessor(message, MessageHeaderAccessor.class);
+        if (messageAccessor != null) {
+            messageAccessor.setImmutable();
+        }
+        return message;
+    }
+
+    private void send(String usernameWithId, String destination, Message<?> message) {
+        broker.send(broker.getUserDestinationPrefix() + StringUtils.replace(usernameWithId, "/", "%2F") + destination, message);
+    }
+}
@@ -32,6 +32,8 @@ public class CallAsyncService {
     @Autowired
     SimpMessagingTemplate broker;
     @Autowired
+    private BroadcastService broadcastService;
+    @Autowired
     private ChatRoomService chatRoomService;
 
     public CallAsyncService(ChatRoomRepository chatRoomRepository, CallRepository callRepository, UserRepository userRepository) {
@@ -157,17 +159,13 @@ public class CallAsyncService {
                 @Override
                 public void afterCommit() {
                     //broadcast the call rejection to the chatroom participants
-                    for (User participant : currentParticipants) {
-                        for (User user : rejecters) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onRejectCall/" + chatRoom.getId(), user.getId());
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onRejectCall", Map.of("remainingPendings", remainingPendings, "chatRoomId", chatRoom.getId()));
-                        }
-
-                    }
+                    Map<String, Object> rejectPayload = Map.of("remainingPendings", remainingPendings, "chatRoomId", chatRoom.getId());
                     for (User user : rejecters) {
-                        //notify the rejecters of the auto reject call timeout
-                        broker.convertAndSendToUser(user.getUsername() + "@" + user.getId(), "/general/onRejectCallTimeout", chatRoomId);
+                        broadcastService.sendToUsers(currentParticipants, null, user.getId(), "/general/onRejectCall/" + chatRoom.getId());
+                        broadcastService.sendToUsers(currentParticipants, null, rejectPayload, "/general/onRejectCall");
                     }
+                    //notify the rejecters of the auto reject call timeout
+                    broadcastService.sendToUsers(rejecters, null, chatRoomId, "/general/onRejectCallTimeout");
                 }
             });
 
@@ -43,6 +43,8 @@ public class CallService {
     @Autowired
     SimpMessagingTemplate broker;
     @Autowired
+    private BroadcastService broadcastService;
+    @Autowired
     private ChatRoomService chatRoomService;
     @Autowired
     private UserService userService;
@@ -177,9 +179,10 @@ public class CallService {
 
                 schedulerService.scheduleTask(() -> {
 
+                    broadcastService.sendToUsers(chatRoomParticipants, user.getId(), "", "/general/onCallAbort/" + chatRoomId);
+                    //the kick payload names each recipient, so it is still converted per user
                     for (User participant : chatRoomParticipants) {
                         if (!participant.getId().equals(user.getId())) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onCallAbort/" + chatRoomId, "");
                             broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onCallKicked", Map.of("chatRoomId", chatRoom.getId(), "userId", participant.getId(),
                                     "callEnded", true, "callAborted", true));
                         }
@@ -324,13 +327,9 @@ public class CallService {
 
                 schedulerService.scheduleTask(() -> {
 
-                    for (User participant : finalParticipants) {
-                        if (!participant.getId().equals(user.getId())) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onLeaveCall/" + chatRoomId, user);
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onLeaveCall", Map.of("chatRoomId", chatRoomId, "callEnded", finalCallDeleted,
-                                    "userId", user.getId()));
-                        }
-                    }
+                    broadcastService.sendToUsers(finalParticipants, user.getId(), user, "/general/onLeaveCall/" + chatRoomId);
+                    broadcastService.sendToUsers(finalParticipants, user.getId(), Map.of("chatRoomId", chatRoomId, "callEnded", finalCallDeleted,
+                            "userId", user.getId()), "/general/onLeaveCall");
                 }, Instant.now().plusMillis(500));
 
                 cleanStreamPreview(user.getId(), String.valueOf(chatRoomId));
@@ -383,12 +382,8 @@ public class CallService {
             @Override
             public void afterCommit() {
                 //broadcast the call rejection to its participants
-                for (User participant : participants) {
-                    if (!participant.getId().equals(user.getId())) {
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onRejectCall/" + chatRoom.getId(), user.getId());
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onRejectCall", payload);
-                    }
-                }
+                broadcastService.sendToUsers(participants, user.getId(), user.getId(), "/general/onRejectCall/" + chatRoom.getId());
+                broadcastService.sendToUsers(participants, user.getId(), payload, "/general/onRejectCall");
             }
         });
 
@@ -466,12 +461,8 @@ public class CallService {
 
                     } else
                         payload.put("joinSoundFile", user.getEntranceSound());
-                    for (User participant : participants) {
-                        if (!participant.getId().equals(user.getId())) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onJoinCall/" + chatRoom.getId(), user);
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onJoinCall", payload);
-                        }
-                    }
+                    broadcastService.sendToUsers(participants, user.getId(), user, "/general/onJoinCall/" + chatRoom.getId());
+                    broadcastService.sendToUsers(participants, user.getId(), payload, "/general/onJoinCall");
                 }
             });
         } catch (Exception e) {
@@ -740,11 +731,7 @@ public class CallService {
                     //broadcast the call to other chatroom participants
 
                     schedulerService.scheduleTask(() -> {
-                        for (User participant : participants) {
-                            if (!participant.getId().equals(user.getId())) {
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onCall", Map.of("chatRoom", chatRoom, "starterId", user.getId()));
-                            }
-                        }
+                        broadcastService.sendToUsers(participants, user.getId(), Map.of("chatRoom", chatRoom, "starterId", user.getId()), "/general/onCall");
 
                     }, Instant.now().plusMillis(500));
 
@@ -790,11 +777,7 @@ public class CallService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                for (User p : activeParticipants) {
-                    if (!user.getId().equals(p.getId())) {
-                        broker.convertAndSendToUser(p.getUsername() + "@" + p.getId(), "/general/onCallEmoji", Map.of("userId", userId, "shortCodes", shortCodes));
-                    }
-                }
+                broadcastService.sendToUsers(activeParticipants, user.getId(), Map.of("userId", userId, "shortCodes", shortCodes), "/general/onCallEmoji");
             }
         });
     }
@@ -827,11 +810,7 @@ public class CallService {
 
         List<User> activeParticipants = call.getActiveParticipants();
 
-        for (User p : activeParticipants) {
-            if (p.getId() != userId) {
-                broker.convertAndSendToUser(p.getUsername() + "@" + p.getId(), "/general/onCallSound", Map.of("userId", userId, "sound", sound));
-            }
-        }
+        broadcastService.sendToUsers(activeParticipants, userId, Map.of("userId", userId, "sound", sound), "/general/onCallSound");
     }
 
 
@@ -857,11 +836,12 @@ public class CallService {
 
             if (p.getId() != userId) {
                 activeParticipantIds.add(p.getId());
-                payload.put("serverTimestamp", System.currentTimeMillis());
-                broker.convertAndSendToUser(p.getUsername() + "@" + p.getId(), "/general/onCallMusicSync", payload);
             }
 
         }
+        //one timestamp for every listener, the payload is converted once
+        payload.put("serverTimestamp", System.currentTimeMillis());
+        broadcastService.sendToUsers(call.getActiveParticipants(), userId, payload, "/general/onCallMusicSync");
 
 
         if (eventType.equals("PLAY") || eventType.equals("STOP")) {
@@ -880,16 +860,7 @@ public class CallService {
             TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
                 @Override
                 public void afterCommit() {
-                    for (User p : excludedParticipants) {
-                        if (p.getId() != userId) {
-                            if (eventType.equals("PLAY"))
-                                broker.convertAndSendToUser(p.getUsername() + "@" + p.getId(), "/general/onCallMusicState/" + chatRoom.getId(),
-                                        Map.of("playing", true));
-                            else
-                                broker.convertAndSendToUser(p.getUsername() + "@" + p.getId(), "/general/onCallMusicState/" + chatRoom.getId(),
-                                        Map.of("playing", false));
-                        }
-                    }
+                    broadcastService.sendToUsers(excludedParticipants, userId, Map.of("playing", eventType.equals("PLAY")), "/general/onCallMusicState/" + chatRoom.getId());
                 }
             });
 
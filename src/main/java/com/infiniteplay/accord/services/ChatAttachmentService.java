@@ -0,0 +1,143 @@
+package com.infiniteplay.accord.services;
+
+import com.infiniteplay.accord.ai.ImageDecoder;
+import com.infiniteplay.accord.entities.AttachmentKind;
+import com.infiniteplay.accord.entities.ChatAttachment;
+import com.infiniteplay.accord.entities.ChatRecord;
+import com.infiniteplay.accord.repositories.ChatAttachmentRepository;
+import com.infiniteplay.accord.repositories.ChatRecordRepository;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+//keeps the chat_attachment table in sync with the encoded ChatRecord.attachments column
+@Service
+@RequiredArgsConstructor
+public class ChatAttachmentService {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatAttachmentService.class);
+    private static final int BACKFILL_BATCH_SIZE = 200;
+
+    private final ChatAttachmentRepository chatAttachmentRepository;
+    private final ChatRecordRepository chatRecordRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${filestorage.path}")
+    private String fileStoragePath;
+
+    public static AttachmentKind kindOf(String filename) {
+        String extension = filename.contains(".") ? filename.substring(filename.lastIndexOf('.') + 1).toLowerCase() : "";
+        return switch (extension) {
+            case "jpg", "jpeg", "png", "gif", "webp" -> AttachmentKind.IMAGE;
+            case "mp4", "webm" -> AttachmentKind.VIDEO;
+            case "mp3", "ogg", "wav" -> AttachmentKind.SOUND;
+            case "txt", "java", "cpp" -> AttachmentKind.TEXT;
+            default -> AttachmentKind.FILE;
+        };
+    }
+
+    //attachmentsCode is the encoded "uuid;size in MB;filename," list of the chat record.
+    //uploads are read from the multipart files when given, otherwise from the file storage
+    public List<ChatAttachment> saveAttachments(ChatRecord chatRecord, String attachmentsCode, @Nullable MultipartFile[] uploads) {
+        List<ChatAttachment> attachments = new ArrayList<>();
+        String[] files = attachmentsCode.split(",");
+        int chatRoomId = chatRecord.getChatRoomIdReference() != null ? chatRecord.getChatRoomIdReference() : chatRecord.getChatRoom().getId();
+
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].isEmpty()) {
+                continue;
+            }
+            String[] data = files[i].split(";");
+            UUID uuid = UUID.fromString(data[0]);
+            String filename = data[2];
+            AttachmentKind kind = kindOf(filename);
+            MultipartFile upload = uploads != null && i < uploads.length ? uploads[i] : null;
+            Path storedPath = Paths.get(fileStoragePath, uuid + "_" + filename);
+
+            long size;
+            if (upload != null) {
+                size = upload.getSize();
+            } else {
+                try {
+                    size = Files.size(storedPath);
+                } catch (IOException e) {
+                    //the file is gone, fall back to the size recorded in the attachments code
+                    size = Math.round(Double.parseDouble(data[1]) * 1000000);
+                }
+            }
+
+            String mimeType = upload != null && upload.getContentType() != null ? upload.getContentType() : URLConnection.guessContentTypeFromName(filename);
+
+            ChatAttachment attachment = new ChatAttachment(chatRecord.getId(), chatRoomId, uuid, filename, mimeType, size, kind);
+            if (kind == AttachmentKind.IMAGE) {
+                Dimension dimension = readDimensions(upload != null ? upload : new FileSystemResource(storedPath));
+                if (dimension != null) {
+                    attachment.setWidth(dimension.width);
+                    attachment.setHeight(dimension.height);
+                }
+            }
+            attachments.add(attachment);
+        }
+
+        chatAttachmentRepository.saveAll(attachments);
+        return attachments;
+    }
+
+    private Dimension readDimensions(InputStreamSource image) {
+        try (InputStream input = image.getInputStream()) {
+            return ImageDecoder.readDimensions(input);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    //fills chat_attachment for chat records that were stored before the table existed
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillAttachments() {
+        int lastId = 0;
+        int backfilled = 0;
+        while (true) {
+            List<Integer> chatRecordIds = chatAttachmentRepository.findChatRecordIdsWithoutAttachmentRows(lastId, BACKFILL_BATCH_SIZE);
+            if (chatRecordIds.isEmpty()) {
+                break;
+            }
+            lastId = chatRecordIds.get(chatRecordIds.size() - 1);
+
+            Integer count = transactionTemplate.execute(status -> {
+                int saved = 0;
+                for (ChatRecord chatRecord : chatRecordRepository.findAllById(chatRecordIds)) {
+                    try {
+                        saved += saveAttachments(chatRecord, chatRecord.getAttachments(), null).size();
+                    } catch (RuntimeException e) {
+                        log.warn("Skipping malformed attachments of chat record " + chatRecord.getId() + ": " + e.getMessage());
+                    }
+                }
+                return saved;
+            });
+            backfilled += count == null ? 0 : count;
+        }
+        if (backfilled > 0) {
+            log.info("Backfilled " + backfilled + " chat attachments");
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.infiniteplay.accord.services;
 
 import com.infiniteplay.accord.annotations.EnsureConsistency;
 import com.infiniteplay.accord.entities.*;
+import com.infiniteplay.accord.interceptors.RoomSubscriptionInterceptor;
 import com.infiniteplay.accord.models.*;
 import com.infiniteplay.accord.repositories.*;
 import com.infiniteplay.accord.utils.*;
@@ -12,7 +13,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.lang.Nullable;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionSynchronization;
@@ -43,15 +43,21 @@ public class ChatRoomService {
     private final UserRepository userRepository;
     private final ChatRoomRepository chatRoomRepository;
     private final UserService userService;
-    private final SimpMessagingTemplate broker;
+    private final BroadcastService broadcastService;
     private final ChatRecordRepository chatRecordRepository;
     private final ChatReactionRepository chatReactionRepository;
+    private final ChatReactionSummaryRepository chatReactionSummaryRepository;
+    private final PollTallyRepository pollTallyRepository;
+    private final ChatAttachmentRepository chatAttachmentRepository;
     private final ChatNotificationCountRepository chatNotificationCountRepository;
     private final SoundRepository soundRepository;
     private final BackgroundRepository backgroundRepository;
     private final ChatRoomRoleSettingsRepository chatRoomRoleSettingsRepository;
     private final ChatRoomInvitationRepository chatRoomInvitationRepository;
     private final PushNotificationService pushNotificationService;
+    private final NotificationCountAggregator notificationCountAggregator;
+    private final RecentChatRecordCache recentChatRecordCache;
+    private final RoomSubscriptionInterceptor roomSubscriptionInterceptor;
     @Value("${filestorage.path}")
     String fileStoragePath;
     @Value("${chatroom.defaultsounds}")
@@ -82,10 +88,7 @@ public class ChatRoomService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                for (User participant : chatRoom.getParticipants())
-                    if (!participant.getId().equals(user.getId())) {
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onSetPublic/" + chatRoom.getId(), isPublic);
-                    }
+                broadcastService.sendToUsers(chatRoom.getParticipants(), user.getId(), isPublic, "/general/onSetPublic/" + chatRoom.getId());
             }
         });
 
@@ -236,11 +239,8 @@ public class ChatRoomService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                for (User participant : chatRoom.getParticipants())
-                    if (!participant.getId().equals(userId)) {
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onGenerateInvitationCode/" + chatRoom.getId(), Map.of("code", "", "permanent", true));
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onGenerateInvitationCode/" + chatRoom.getId(), Map.of("code", "", "permanent", false));
-                    }
+                broadcastService.sendToUsers(chatRoom.getParticipants(), userId, Map.of("code", "", "permanent", true), "/general/onGenerateInvitationCode/" + chatRoom.getId());
+                broadcastService.sendToUsers(chatRoom.getParticipants(), userId, Map.of("code", "", "permanent", false), "/general/onGenerateInvitationCode/" + chatRoom.getId());
             }
         });
     }
@@ -344,6 +344,7 @@ public class ChatRoomService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
+                List<User> recipients = new ArrayList<>();
                 for (User participant : chatRoom.getParticipants())
                     if (!participant.getId().equals(userId)) {
                         boolean isUserOwner = chatRoom.getOwnerId().equals(participant.getId());
@@ -358,8 +359,9 @@ public class ChatRoomService {
                         if (permanent && !isUserOwner) {
                             continue;
                         }
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onGenerateInvitationCode/" + chatRoom.getId(), Map.of("code", finalShortCode, "permanent", permanent));
+                        recipients.add(participant);
                     }
+                broadcastService.sendToUsers(recipients, null, Map.of("code", finalShortCode, "permanent", permanent), "/general/onGenerateInvitationCode/" + chatRoom.getId());
             }
         });
 
@@ -407,9 +409,7 @@ public class ChatRoomService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                for (User participant : chatRoom.getParticipants())
-                    if (!participant.getId().equals(userId))
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onUpdateModeratorRole/" + chatRoom.getId(), chatRoom.getModIds() == null ? "empty" : chatRoom.getModIds());
+                broadcastService.sendToUsers(chatRoom.getParticipants(), userId, chatRoom.getModIds() == null ? "empty" : chatRoom.getModIds(), "/general/onUpdateModeratorRole/" + chatRoom.getId());
             }
         });
 
@@ -468,11 +468,7 @@ public class ChatRoomService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                for (User participant : chatRoom.getParticipants()) {
-                    if (!participant.getId().equals(userId))
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onUpdateModeratorRole/" + chatRoom.getId(),
-                                chatRoom.getModIds() == null ? "empty" : chatRoom.getModIds());
-                }
+                broadcastService.sendToUsers(chatRoom.getParticipants(), userId, chatRoom.getModIds() == null ? "empty" : chatRoom.getModIds(), "/general/onUpdateModeratorRole/" + chatRoom.getId());
             }
         });
 
@@ -558,10 +554,7 @@ public class ChatRoomService {
             public void afterCommit() {
                 int userId = userService.extractId(usernameWithId);
 
-                for (User participant : chatRoom.getParticipants()) {
-                    if (!participant.getId().equals(userId))
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onRoleSettingsUpdate/" + chatRoom.getId(), current);
-                }
+                broadcastService.sendToUsers(chatRoom.getParticipants(), userId, current, "/general/onRoleSettingsUpdate/" + chatRoom.getId());
 
             }
         });
@@ -605,19 +598,8 @@ public class ChatRoomService {
             if (withNotification) {
                 for (int i = 0; i < participants.size(); i++) {
                     User participant = participants.get(i);
-                    ChatNotificationCount cnt = chatNotificationCountRepository.findByChatRoomIdAndUserId(Integer.parseInt(chatroomId), participant.getId());
-                    if (cnt == null) {
-                        throw new GenericException("Unexpected error while updating chat notification data");
-                    }
-                    if (cnt.getLatestMessageId() == null) {
-                        //latest message as in oldest unread message
-                        cnt.setLatestMessageId(chatRecords.get(i).getId());
-                        cnt.setCount(1);
-                    } else
-                        cnt.setCount(cnt.getCount() + chatRecords.size());
-                    chatNotificationCountRepository.save(cnt);
-
-
+                    //latest message as in oldest unread message
+                    notificationCountAggregator.increment(chatRoom.getId(), List.of(participant.getId()), chatRecords.size(), chatRecords.get(i));
                 }
             }
 
@@ -627,7 +609,7 @@ public class ChatRoomService {
                 @Override
                 public void afterCommit() {
                     Map<String, Object> payload = new HashMap<>();
-                    payload.put("chatRoom", chatRoom);
+                    payload.put("chatRoom", ChatRoomSummary.of(chatRoom, chatRecords.get(chatRecords.size() - 1), chatRecords.size()));
                     payload.put("chatRecord", chatRecords.get(chatRecords.size() - 1));
 
                     //send push notifications to offline users
@@ -639,12 +621,9 @@ public class ChatRoomService {
                     }
 
                     //broadcast the system message to all the participants, all at once
-                    for (int i = 0; i < participants.size(); i++) {
-                        User participant = participants.get(i);
-                        for (ChatRecord chatRecord : chatRecords)
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessage/" + chatroomId, Map.of("chatRecord", chatRecord));
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessage", payload);
-                    }
+                    for (ChatRecord chatRecord : chatRecords)
+                        broadcastService.sendToUsers(participants, null, Map.of("chatRecord", chatRecord), "/general/onChatMessage/" + chatroomId);
+                    broadcastService.sendToUsers(participants, null, payload, "/general/onChatMessage");
                 }
             });
 
@@ -688,22 +667,9 @@ public class ChatRoomService {
 
             //optionally, update notifications for participants
             if (withNotification) {
-                for (User participant : participants) {
-                    ChatNotificationCount cnt = chatNotificationCountRepository.findByChatRoomIdAndUserId(Integer.parseInt(chatroomId), participant.getId());
-                    if (cnt == null) {
-                        throw new GenericException("Unexpected error while updating chat notification data");
-                    }
-                    if (cnt.getLatestMessageId() == null) {
-                        //latest message as in oldest unread message
-                        cnt.setLatestMessageId(chatRecords.get(0).getId());
-                        cnt.setCount(1);
-                    } else
-                        cnt.setCount(cnt.getCount() + chatRecords.size());
-
-                    chatNotificationCountRepository.save(cnt);
-
-
-                }
+                //latest message as in oldest unread message
+                notificationCountAggregator.increment(chatRoom.getId(), participants.stream().map(User::getId).collect(Collectors.toCollection(ArrayList::new)),
+                        chatRecords.size(), chatRecords.get(0));
                 chatRoom.setRecentMessageDate(TimeUtils.getCurrentKST());
             }
 
@@ -712,7 +678,7 @@ public class ChatRoomService {
                 @Override
                 public void afterCommit() {
                     Map<String, Object> payload = new HashMap<>();
-                    payload.put("chatRoom", chatRoom);
+                    payload.put("chatRoom", ChatRoomSummary.of(chatRoom, chatRecords.get(chatRecords.size() - 1), chatRecords.size()));
                     payload.put("chatRecord", chatRecords.get(chatRecords.size() - 1));
 
 
@@ -725,12 +691,10 @@ public class ChatRoomService {
                     }
 
                     //broadcast the system message to all the participants, all at once
-                    for (User participant : participants) {
-                        for (ChatRecord chatRecord : chatRecords) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessage/" + chatroomId, Map.of("chatRecord", chatRecord));
-                        }
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessage", payload);
+                    for (ChatRecord chatRecord : chatRecords) {
+                        broadcastService.sendToUsers(participants, null, Map.of("chatRecord", chatRecord), "/general/onChatMessage/" + chatroomId);
                     }
+                    broadcastService.sendToUsers(participants, null, payload, "/general/onChatMessage");
                 }
             });
 
@@ -752,7 +716,9 @@ public class ChatRoomService {
             }
 
             Set<User> participants = chatRoom.getParticipants();
-            if (record.getPollVotes() == null || record.getPollVotes().isEmpty()) {
+            List<PollTally> tallies = pollTallyRepository.findByChatRecordId(record.getId());
+            int maxValue = tallies.stream().mapToInt(PollTally::getCount).max().orElse(0);
+            if (maxValue <= 0) {
                 announceSystemMessagesBatch(chatroomId, List.of(new SystemMessageDetails(
                         "poll_expired_" + record.getId(),
                         sender,
@@ -764,19 +730,9 @@ public class ChatRoomService {
 
             List<String> winners = new ArrayList<>();
             String[] options = record.getPoll().getAnswers().split(";");
-            SortedMap<Integer, Integer> voteCount = new TreeMap<>(Comparator.reverseOrder());
-            for (Vote vote : record.getPollVotes()) {
-                voteCount.putIfAbsent(vote.getAnswerIndex(), 0);
-                voteCount.put(vote.getAnswerIndex(), voteCount.get(vote.getAnswerIndex()) + 1);
-            }
-            int maxValue = voteCount.getOrDefault(voteCount.firstKey(), 0);
-            if (maxValue > 0) {
-                for (Map.Entry<Integer, Integer> entry : voteCount.entrySet()) {
-                    if (entry.getValue() == maxValue) {
-                        winners.add(options[entry.getKey()] + " (" + maxValue + " Vote(s))");
-                    } else {
-                        break;
-                    }
+            for (PollTally tally : tallies) {
+                if (tally.getCount() == maxValue) {
+                    winners.add(options[tally.getAnswerIndex()] + " (" + maxValue + " Vote(s))");
                 }
             }
 
@@ -819,10 +775,7 @@ public class ChatRoomService {
             TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
                 @Override
                 public void afterCommit() {
-                    for (User participant : participants) {
-                        if (!participant.getId().equals(user.getId()))
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onTransferOwnership/" + chatRoomId, newOwnerId);
-                    }
+                    broadcastService.sendToUsers(participants, user.getId(), newOwnerId, "/general/onTransferOwnership/" + chatRoomId);
                 }
             });
 
@@ -836,16 +789,19 @@ public class ChatRoomService {
     public long markAllMessagesRead(String usernameWithId, String chatRoomId) throws GenericException {
         try {
             int userId = userService.extractId(usernameWithId);
-            ChatNotificationCount chatNotificationCount = chatNotificationCountRepository.findByChatRoomIdAndUserId(Integer.parseInt(chatRoomId), userId);
-            if (chatNotificationCount == null) {
-                throw new GenericException("Unexpected error while updating chat notification data");
-            }
-            chatNotificationCount.setLatestMessageId(null);
-            chatNotificationCount.setCount(0);
+            int notificationChatRoomId = Integer.parseInt(chatRoomId);
             //update first unread time stamp to current time
             long serverReadTime = System.currentTimeMillis();
-            chatNotificationCount.setFirstUnreadTimestamp(serverReadTime);
-            chatNotificationCountRepository.save(chatNotificationCount);
+            if (chatNotificationCountRepository.markAllRead(notificationChatRoomId, userId, serverReadTime) == 0) {
+                throw new GenericException("Unexpected error while updating chat notification data");
+            }
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    //buffered increments are read as well; only once the read is committed, a rollback keeps them
+                    notificationCountAggregator.discard(notificationChatRoomId, userId);
+                }
+            });
 
             if(chatRoomId.equals("-1")) {
                 //spam inbox
@@ -857,14 +813,7 @@ public class ChatRoomService {
             TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
                 @Override
                 public void afterCommit() {
-                    for (User participant : chatRoom.getParticipants()) {
-
-                        if (!participant.getId().equals(userId)) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onReadMessages/" + chatRoomId, Map.of("userId", userId, "firstUnreadTime", serverReadTime));
-
-                        }
-
-                    }
+                    broadcastService.sendToUsers(chatRoom.getParticipants(), userId, Map.of("userId", userId, "firstUnreadTime", serverReadTime), "/general/onReadMessages/" + chatRoomId);
 
                 }
             });
@@ -885,7 +834,7 @@ public class ChatRoomService {
         Map<Integer, ChatNotificationCount> map = new HashMap<>();
 
         for (ChatNotificationCount chatNotificationCount : chatNotificationCounts) {
-            map.put(chatNotificationCount.getChatRoomId(), chatNotificationCount);
+            map.put(chatNotificationCount.getChatRoomId(), notificationCountAggregator.withPending(chatNotificationCount));
         }
         Set<ChatRoom> chatRooms = user.getChatRooms();
 
@@ -932,6 +881,7 @@ public class ChatRoomService {
         if (chatNotificationCount == null) {
             throw new GenericException("Unexpected error while fetching chat notification data");
         }
+        chatNotificationCount = notificationCountAggregator.withPending(chatNotificationCount);
         if (chatNotificationCount.getLatestMessageId() != null) {
             chatRoom.setNotificationCount(chatNotificationCount.getCount());
             chatRoom.setLatestMessageId(chatNotificationCount.getLatestMessageId());
@@ -948,6 +898,7 @@ public class ChatRoomService {
             if (chatNotificationCount == null) {
                 throw new GenericException("Unexpected error while fetching chat notification data");
             }
+            chatNotificationCount = notificationCountAggregator.withPending(chatNotificationCount);
             if (chatNotificationCount.getLatestMessageId() != null) {
                 return List.of(chatNotificationCount.getCount(), chatNotificationCount.getLatestMessageId());
             }
@@ -1043,6 +994,10 @@ public class ChatRoomService {
 
         //delete chat reactions
         chatReactionRepository.deleteChatReactionsByChatRoomId(chatRoom.getId());
+        chatReactionSummaryRepository.deleteByChatRoomId(chatRoom.getId());
+        pollTallyRepository.deleteByChatRoomId(chatRoom.getId());
+        //delete attachment metadata
+        chatAttachmentRepository.deleteByChatRoomId(chatRoom.getId());
         //delete the chat records as well
         chatRecordRepository.deleteChatRecords(chatRoom.getId());
 
@@ -1069,12 +1024,12 @@ public class ChatRoomService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
+                //the records were bulk deleted, bypassing the entity listener
+                recentChatRecordCache.evict(chatRoom.getId());
                 for (User participant : participants) {
-                    if ((participant.getUsername() + "@" + participant.getId()).equals(usernameWithId)) {
-                        continue;
-                    }
-                    broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onDeleteChatRoom", chatRoom.getId());
+                    roomSubscriptionInterceptor.revoke(participant.getId(), chatRoom.getId());
                 }
+                broadcastService.sendToUsers(participants, userService.extractId(usernameWithId), chatRoom.getId(), "/general/onDeleteChatRoom");
                 //delete room images, if any
                 try {
                     Files.delete(Paths.get(fileStoragePath, roomImagePath));
@@ -1133,6 +1088,10 @@ public class ChatRoomService {
 
             //delete chat reactions
             chatReactionRepository.deleteChatReactionsByChatRoomId(chatRoom.getId());
+            chatReactionSummaryRepository.deleteByChatRoomId(chatRoom.getId());
+            pollTallyRepository.deleteByChatRoomId(chatRoom.getId());
+            //delete attachment metadata
+            chatAttachmentRepository.deleteByChatRoomId(chatRoom.getId());
             //delete the chat records as well
             chatRecordRepository.deleteChatRecords(chatRoom.getId());
 
@@ -1183,9 +1142,8 @@ public class ChatRoomService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                for (User participant : participants) {
-                    broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onLeaveChatRoom", leaveData);
-                }
+                roomSubscriptionInterceptor.revoke(user.getId(), chatRoom.getId());
+                broadcastService.sendToUsers(participants, null, leaveData, "/general/onLeaveChatRoom");
                 if (roomImagePathToDelete.get() != null) {
                     try {
                         Files.delete(Paths.get(fileStoragePath, roomImagePathToDelete.get()));
@@ -1397,25 +1355,18 @@ public class ChatRoomService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                for (String invited : invites) {
-                    broker.convertAndSendToUser(invited, "/general/onInviteChatRoom", currentChatRoom);
-                }
+                broadcastService.sendToUsernames(invites, null, currentChatRoom, "/general/onInviteChatRoom");
+                broadcastService.sendToUsernames(kicked, null, currentChatRoom.getId(), "/general/onKickChatRoom");
+                broadcastService.sendToUsernames(existing, null, currentChatRoom, "/general/onEditChatRoom");
 
                 for (String kick : kicked) {
-                    broker.convertAndSendToUser(kick, "/general/onKickChatRoom", currentChatRoom.getId());
-                }
-
-                for (String exist : existing) {
-                    broker.convertAndSendToUser(exist, "/general/onEditChatRoom", currentChatRoom);
-
-                    for (String kick : kicked) {
-                        System.out.println("kicked being sent: " + kick);
-                        Map<String, String> leaveData = new HashMap<>();
-                        leaveData.put("leftUser", kick);
-                        leaveData.put("chatRoomId", currentChatRoom.getId().toString());
-                        leaveData.put("newOwner", "-1");
-                        broker.convertAndSendToUser(exist, "/general/onLeaveChatRoom", leaveData);
-                    }
+                    roomSubscriptionInterceptor.revoke(Integer.parseInt(kick.split("@")[1]), currentChatRoom.getId());
+                    System.out.println("kicked being sent: " + kick);
+                    Map<String, String> leaveData = new HashMap<>();
+                    leaveData.put("leftUser", kick);
+                    leaveData.put("chatRoomId", currentChatRoom.getId().toString());
+                    leaveData.put("newOwner", "-1");
+                    broadcastService.sendToUsernames(existing, null, leaveData, "/general/onLeaveChatRoom");
                 }
 
                 if (roomImagePathToSave.get() != null) {
@@ -1492,12 +1443,7 @@ public class ChatRoomService {
                 TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
                     @Override
                     public void afterCommit() {
-                        for (User participant : chatRoom.getParticipants()) {
-                            if (!Objects.equals(participant.getId(), user.getId())) {
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onEditChatRoom", chatRoom);
-                            }
-
-                        }
+                        broadcastService.sendToUsers(chatRoom.getParticipants(), user.getId(), chatRoom, "/general/onEditChatRoom");
                     }
                 });
 
@@ -1572,12 +1518,7 @@ public class ChatRoomService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                for (User participant : participants) {
-                    if (!Objects.equals(participant.getId(), user.getId())) {
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onCreateChatRoom", finalChatRoom);
-                    }
-
-                }
+                broadcastService.sendToUsers(participants, user.getId(), finalChatRoom, "/general/onCreateChatRoom");
             }
         });
 
@@ -1638,11 +1579,7 @@ public class ChatRoomService {
                     throw new RuntimeException(e);
                 }
                 //broadcast live to others
-                for (User participant : chatRoom.getParticipants()) {
-                    if (!Objects.equals(participant.getId(), userService.extractId(usernameWithId))) {
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onDeleteSound/" + chatRoomId, Map.of("name", soundName, "type", type));
-                    }
-                }
+                broadcastService.sendToUsers(chatRoom.getParticipants(), userService.extractId(usernameWithId), Map.of("name", soundName, "type", type), "/general/onDeleteSound/" + chatRoomId);
             }
         });
 
@@ -1683,12 +1620,7 @@ public class ChatRoomService {
             @Override
             public void afterCommit() {
                 //broadcast live to others
-                for (User participant : chatRoom.getParticipants()) {
-                    if (!Objects.equals(participant.getId(), userService.extractId(usernameWithId))) {
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onMusicReorder/" + chatRoomId, order);
-
-                    }
-                }
+                broadcastService.sendToUsers(chatRoom.getParticipants(), userService.extractId(usernameWithId), order, "/general/onMusicReorder/" + chatRoomId);
             }
         });
 
@@ -1777,11 +1709,7 @@ public class ChatRoomService {
                 //actually save the file
                 saveFile(soundData.getSoundFile(), sound.getFile());
                 //broadcast live to others
-                for (User participant : chatRoom.getParticipants()) {
-                    if (!Objects.equals(participant.getId(), userService.extractId(usernameWithId))) {
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onAddSound/" + chatRoomId, sound);
-                    }
-                }
+                broadcastService.sendToUsers(chatRoom.getParticipants(), userService.extractId(usernameWithId), sound, "/general/onAddSound/" + chatRoomId);
             }
         });
 
@@ -1857,11 +1785,7 @@ public class ChatRoomService {
                 //actually save the file
                 saveFile(file, background.getFile());
                 //broadcast live to others
-                for (User participant : chatRoom.getParticipants()) {
-                    if (!Objects.equals(participant.getId(), userService.extractId(usernameWithId))) {
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onAddBackground/" + chatRoomId, background);
-                    }
-                }
+                broadcastService.sendToUsers(chatRoom.getParticipants(), userService.extractId(usernameWithId), background, "/general/onAddBackground/" + chatRoomId);
             }
         });
 
@@ -1912,11 +1836,7 @@ public class ChatRoomService {
                     throw new RuntimeException(e);
                 }
                 //broadcast live to others
-                for (User participant : chatRoom.getParticipants()) {
-                    if (!Objects.equals(participant.getId(), userService.extractId(usernameWithId))) {
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onDeleteBackground/" + chatRoomId, Map.of("name", name));
-                    }
-                }
+                broadcastService.sendToUsers(chatRoom.getParticipants(), userService.extractId(usernameWithId), Map.of("name", name), "/general/onDeleteBackground/" + chatRoomId);
             }
         });
 
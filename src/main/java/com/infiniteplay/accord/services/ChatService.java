@@ -2,6 +2,7 @@ package com.infiniteplay.accord.services;
 
 import ai.djl.inference.Predictor;
 import ai.djl.translate.TranslateException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.infiniteplay.accord.annotations.EnsureConsistency;
 import com.infiniteplay.accord.entities.*;
 import com.infiniteplay.accord.models.*;
@@ -10,6 +11,8 @@ import com.infiniteplay.accord.utils.ChatException;
 import com.infiniteplay.accord.utils.GenericException;
 import com.infiniteplay.accord.utils.RegexConstants;
 import com.infiniteplay.accord.utils.TimeUtils;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.validation.constraints.Null;
 import org.hibernate.Hibernate;
 import org.slf4j.Logger;
@@ -22,21 +25,25 @@ import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.lang.Nullable;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionSynchronization;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.time.*;
@@ -45,6 +52,8 @@ import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAdjusters;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -52,14 +61,23 @@ import java.util.stream.Collectors;
 public class ChatService {
 
     private static final Logger log = LoggerFactory.getLogger(ChatService.class);
+    private static final int RANKED_SEARCH_PAGE_SIZE = 30;
+    private static final int REACTORS_PAGE_SIZE = 50;
+    private static final int POLL_VOTERS_PAGE_SIZE = 50;
+    //post-classified messages whose unread counts and push notifications wait for a verdict, with their notifySelf.
+    //the first verdict that matches the current text of the message sends them, whether it was queued by the send or an edit
+    private final Map<Integer, Boolean> pendingModerationFanOuts = new ConcurrentHashMap<>();
     @Autowired
     private ChatRoomService chatRoomService;
+    //the application's mapper, so exported rows are written like the records of the other endpoints
+    @Autowired
+    private ObjectMapper objectMapper;
 
     @Autowired
     private UserService userService;
 
     @Autowired
-    private SimpMessagingTemplate broker;
+    private BroadcastService broadcastService;
 
     @Autowired
     private AIService aiService;
@@ -72,6 +90,8 @@ public class ChatService {
     @Autowired
     private ChatReactionRepository chatReactionRepository;
     @Autowired
+    private ChatReactionSummaryRepository chatReactionSummaryRepository;
+    @Autowired
     private ChatNotificationCountRepository chatNotificationCountRepository;
     @Value("${filestorage.path}")
     String fileStoragePath;
@@ -82,12 +102,51 @@ public class ChatService {
     @Autowired
     private VoteRepository voteRepository;
     @Autowired
+    private PollTallyRepository pollTallyRepository;
+    @Autowired
     private SchedulerService schedulerService;
 
     @Autowired
     private ChatRoomRoleSettingsRepository chatRoomRoleSettingsRepository;
     @Autowired
     private PushNotificationService pushNotificationService;
+    @Autowired
+    private NotificationCountAggregator notificationCountAggregator;
+    @Autowired
+    private ModerationService moderationService;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    @Autowired
+    private ChatAttachmentService chatAttachmentService;
+    @Autowired
+    private ChatAttachmentRepository chatAttachmentRepository;
+    @Autowired
+    private RecentChatRecordCache recentChatRecordCache;
+    @Value("${chatrecord.perpagecount}")
+    int perPageCount;
+    @Value("${filestorage.writers}")
+    int fileStorageWriters;
+    //writes the attachments of one message concurrently
+    private ThreadPoolExecutor attachmentStorageExecutor;
+
+
+    @PostConstruct
+    public void initAttachmentStorage() {
+        AtomicInteger threadCount = new AtomicInteger();
+        attachmentStorageExecutor = new ThreadPoolExecutor(fileStorageWriters, fileStorageWriters, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(fileStorageWriters * 25),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "AttachmentStorage-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @PreDestroy
+    public void shutdownAttachmentStorage() {
+        attachmentStorageExecutor.shutdown();
+    }
 
 
     @Transactional
@@ -111,14 +170,8 @@ public class ChatService {
                 @Override
                 public void afterCommit() {
                     //broadcast embed hide
-                    for (User participant : participants) {
-                        if (participant.getId() != userId) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageHideEmbed/" + chatRoom.getId(), chatRecordId);
-                            if (chatRecord.getSpam()) {
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageHideEmbed/-1", chatRecordId);
-                            }
-                        }
-                    }
+                    broadcastService.sendToUsers(participants, userId, chatRecordId,
+                            BroadcastService.roomDestinations("/general/onChatMessageHideEmbed/", chatRoom.getId(), chatRecord.getSpam()));
                 }
             });
         } catch (NumberFormatException e) {
@@ -190,9 +243,13 @@ public class ChatService {
                 chatRecordRepository.updateReplyTargetMessage("This message has been deleted.", chatRecord.getId());
                 //delete chat reactions
                 chatReactionRepository.deleteChatReactionsByChatRecordId(chatRecord.getId());
+                chatReactionSummaryRepository.deleteByChatRecordId(chatRecord.getId());
+                pollTallyRepository.deleteByChatRecordId(chatRecord.getId());
+                chatAttachmentRepository.deleteByChatRecordId(chatRecord.getId());
                 //delete chat record message
                 chatRecordRepository.delete(chatRecord);
             } else {
+                chatAttachmentRepository.deleteByChatRecordIdAndUuid(chatRecord.getId(), attachmentId);
                 chatRecordRepository.save(chatRecord);
             }
 
@@ -222,21 +279,12 @@ public class ChatService {
                     } catch (IOException e) {
                         throw new ChatException("Failed to delete attachments");
                     }
-                    for (User participant : participants) {
-                        if (participant.getId() != userId) {
-                            if (!finalDeleted)
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageDeleteAttachment/" + chatRoom.getId(), information);
-                            else
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageDelete/" + chatRoom.getId(), chatRecord.getId());
-
-                            if (chatRecord.getSpam()) {
-                                if (!finalDeleted)
-                                    broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageDeleteAttachment/-1", information);
-                                else
-                                    broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageDelete/-1", chatRecord.getId());
-                            }
-                        }
-                    }
+                    if (!finalDeleted)
+                        broadcastService.sendToUsers(participants, userId, information,
+                                BroadcastService.roomDestinations("/general/onChatMessageDeleteAttachment/", chatRoom.getId(), chatRecord.getSpam()));
+                    else
+                        broadcastService.sendToUsers(participants, userId, chatRecord.getId(),
+                                BroadcastService.roomDestinations("/general/onChatMessageDelete/", chatRoom.getId(), chatRecord.getSpam()));
                 }
             });
 
@@ -284,6 +332,9 @@ public class ChatService {
             chatRecordRepository.updateReplyTargetMessage("This message has been deleted.", chatRecord.getId());
             //delete chat reactions
             chatReactionRepository.deleteChatReactionsByChatRecordId(chatRecord.getId());
+            chatReactionSummaryRepository.deleteByChatRecordId(chatRecord.getId());
+            pollTallyRepository.deleteByChatRecordId(chatRecord.getId());
+            chatAttachmentRepository.deleteByChatRecordId(chatRecord.getId());
             //delete chat record message
             chatRecordRepository.delete(chatRecord);
 
@@ -313,14 +364,8 @@ public class ChatService {
                     }
 
                     //broadcast message deletion to its participants
-                    for (User participant : participants) {
-                        if (participant.getId() != userId) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageDelete/" + finalChatRoom.getId(), chatRecordId);
-                            if (chatRecord.getSpam()) {
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageDelete/-1", chatRecordId);
-                            }
-                        }
-                    }
+                    broadcastService.sendToUsers(participants, userId, chatRecordId,
+                            BroadcastService.roomDestinations("/general/onChatMessageDelete/", finalChatRoom.getId(), chatRecord.getSpam()));
                 }
             });
         } catch (NumberFormatException e) {
@@ -346,44 +391,52 @@ public class ChatService {
             chatRecord.setMessage(message.getPayload());
 
             //reapply content filters
+            boolean postClassify = moderationService.isPostClassify();
+            boolean wasSpam = chatRecord.getSpam();
+            boolean isSpam = wasSpam;
 
-            boolean isTextNSFW = aiService.detectNSFW(chatRecord.getMessage());
+            if (postClassify) {
+                //flags are kept until the moderation workers reclassify the edited message
+                chatRecord.setModerationPending(true);
+            } else {
+                boolean isTextNSFW = aiService.detectNSFW(chatRecord.getMessage());
 
 
-            chatRecord.setNsfw(isTextNSFW);
+                chatRecord.setNsfw(isTextNSFW);
 
-            boolean wasSpam = chatRecord.getSpam();
-
-            boolean isSpam = aiService.detectSpam(chatRecord.getMessage());
-            chatRecord.setSpam(isSpam);
+                isSpam = aiService.detectSpam(chatRecord.getMessage());
+                chatRecord.setSpam(isSpam);
+            }
 
             chatRecord.setEdited(true);
             chatRecordRepository.save(chatRecord);
             chatRecordRepository.updateReplyTargetMessage(message.getPayload(), chatRecord.getId());
+            chatRecordRepository.attachBroadcastReactionSummaries(chatRecord);
 
 
             ChatRoom chatRoom = chatRoomService.findChatRoomById(usernameWithId, chatroomId);
 
             Set<User> participants = chatRoom.getParticipants();
+            boolean finalIsSpam = isSpam;
 
             TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
                 @Override
                 public void afterCommit() {
                     //broadcast message update to its participants
-                    for (User participant : participants) {
-                        if (participant.getId() != userId) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageEdit/" + chatRoom.getId(), chatRecord);
-                            if (chatRecord.getSpam()) {
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageEdit/-1", chatRecord);
-                            }
-                            if (wasSpam && !isSpam) {
-
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageDelete/-1", chatRecord.getId());
-
-                            } else if (!wasSpam && isSpam) {
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessage/-1", Map.of("chatRecord", chatRecord, "chatRoom", chatRoom));
-                            }
-                        }
+                    broadcastService.sendToUsers(participants, userId, chatRecord,
+                            BroadcastService.roomDestinations("/general/onChatMessageEdit/", chatRoom.getId(), chatRecord.getSpam()));
+                    if (wasSpam && !finalIsSpam) {
+                        broadcastService.sendToUsers(participants, userId, chatRecord.getId(), "/general/onChatMessageDelete/-1");
+                    } else if (!wasSpam && finalIsSpam) {
+                        //an edit moves the record into the spam mailbox, it is not a new message
+                        broadcastService.sendToUsers(participants, userId, Map.of("chatRecord", chatRecord, "chatRoom", ChatRoomSummary.of(chatRoom, chatRecord, 0)), "/general/onChatMessage/-1");
+                    }
+
+                    if (postClassify) {
+                        String classifiedMessage = chatRecord.getMessage();
+                        //edits only reclassify the message text
+                        moderationService.submit(() -> applyModerationVerdict(chatRecord.getId(), classifiedMessage,
+                                moderationService.classify(classifiedMessage, null, List.of()), wasSpam, userId, false));
                     }
                 }
             });
@@ -395,6 +448,73 @@ public class ChatService {
 
     }
 
+    private void applyModerationVerdict(int chatRecordId, String classifiedMessage, ModerationVerdict verdict, boolean wasSpam,
+                                        int userId, boolean notifySelf) {
+        //always a transaction of its own, so the verdict is committed and its broadcasts fire even when this
+        //runs on a thread that is still bound to the already committed transaction of the message
+        TransactionTemplate verdictTransaction = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        verdictTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        verdictTransaction.executeWithoutResult(status -> {
+            ChatRecord chatRecord = chatRecordRepository.findById(chatRecordId).orElse(null);
+            if (chatRecord == null) {
+                //deleted before it was classified
+                pendingModerationFanOuts.remove(chatRecordId);
+                return;
+            }
+            if (!chatRecord.getMessage().equals(classifiedMessage)) {
+                //the message was edited meanwhile. its flags do not belong to the current text, so nothing is counted, pushed
+                //or broadcast; the moderation task of the edit applies its verdict and sends the pending notifications
+                return;
+            }
+            chatRecord.setNsfw(verdict.isNsfw());
+            chatRecord.setSpam(verdict.isSpam());
+            chatRecord.setModerationPending(false);
+            chatRecordRepository.save(chatRecord);
+
+            ChatRoom chatRoom = chatRoomService.findChatRoomByIdOnly(chatRecord.getChatRoomIdReference());
+            Set<User> participants = chatRoom.getParticipants();
+            Boolean fanOutNotifySelf = pendingModerationFanOuts.remove(chatRecordId);
+            boolean fanOutNotifications = fanOutNotifySelf != null;
+            if (fanOutNotifications) {
+                fanOutNotificationCounts(chatRoom, chatRecord, userId, fanOutNotifySelf);
+            }
+            chatRecordRepository.attachBroadcastReactionSummaries(chatRecord);
+            boolean isSpam = chatRecord.getSpam();
+
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED && fanOutNotifications) {
+                        //the next verdict sends them
+                        pendingModerationFanOuts.putIfAbsent(chatRecordId, fanOutNotifySelf);
+                    }
+                }
+
+                @Override
+                public void afterCommit() {
+                    //send push notifications to offline users, now that the content filters are known
+                    if (fanOutNotifications) {
+                        try {
+                            pushNotificationService.sendChatNotifications(participants, List.of(chatRecord), chatRoom);
+                        } catch (Exception e) {
+                            log.error("Error while sending push notification: " + e.getMessage());
+                        }
+                    }
+
+                    //broadcast the moderated flags to its participants
+                    Integer excludedUserId = notifySelf ? null : userId;
+                    broadcastService.sendToUsers(participants, excludedUserId, chatRecord, "/general/onChatMessageModerated/" + chatRoom.getId());
+                    if (wasSpam && !isSpam) {
+                        broadcastService.sendToUsers(participants, excludedUserId, chatRecord.getId(), "/general/onChatMessageDelete/-1");
+                    } else if (!wasSpam && isSpam) {
+                        broadcastService.sendToUsers(participants, excludedUserId, Map.of("chatRecord", chatRecord,
+                                "chatRoom", ChatRoomSummary.of(chatRoom, chatRecord, fanOutNotifications ? 1 : 0)), "/general/onChatMessage/-1");
+                    }
+                }
+            });
+        });
+    }
+
     public boolean isValidFilename(String filename) {
         return Pattern.compile(RegexConstants.FILENAME_REGEX, Pattern.CASE_INSENSITIVE)
                 .matcher(filename)
@@ -454,16 +574,35 @@ public class ChatService {
 
     public void saveAttachments(MultipartFile[] attachments, String actualPaths) {
         String[] paths = actualPaths.split(",");
-        ;
 
+        if (attachments.length == 1) {
+            saveAttachment(attachments[0], Paths.get(fileStoragePath, paths[0]));
+            return;
+        }
+
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[attachments.length];
         for (int i = 0; i < attachments.length; i++) {
             MultipartFile attachment = attachments[i];
-            String path = paths[i];
-            try {
-                try (InputStream is = attachment.getInputStream()) {
-                    Files.copy(is, Paths.get(fileStoragePath, path), StandardCopyOption.REPLACE_EXISTING);
-                }
-            } catch (IOException e) {
+            Path target = Paths.get(fileStoragePath, paths[i]);
+            writes[i] = CompletableFuture.runAsync(() -> saveAttachment(attachment, target), attachmentStorageExecutor);
+        }
+        //the spooled uploads are deleted when the request ends, so wait for every write
+        try {
+            CompletableFuture.allOf(writes).join();
+        } catch (CompletionException e) {
+            throw new ChatException("Attachment upload failed");
+        }
+    }
+
+    private void saveAttachment(MultipartFile attachment, Path target) {
+        try {
+            //the servlet container moves its spooled temp file into place when it is on the same file system,
+            //instead of copying the upload through a stream
+            attachment.transferTo(target.toAbsolutePath().toFile());
+        } catch (IOException | IllegalStateException e) {
+            try (InputStream is = attachment.getInputStream()) {
+                Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
                 throw new ChatException("Attachment upload failed");
             }
         }
@@ -492,22 +631,19 @@ public class ChatService {
                 throw new ChatException("Invalid poll answers");
             }
 
-            //max 100 votes
-            if (poll.getRecord().getPollVotes().size() + answerIndices.size() > 100) {
-                throw new ChatException("At most 100 votes allowed!");
-            }
-
             //create vote
             ChatRecord record = poll.getRecord();
 
-            for (Vote vote_ : record.getPollVotes()) {
-                if (vote_.getVoter().getId().equals(user.getId())) {
-                    for (int answerIndex : answerIndices) {
-                        if (vote_.getAnswerIndex().equals(answerIndex)) {
-                            throw new ChatException("User already voted");
-                        }
-                    }
+            //max 100 votes
+            if (pollTallyRepository.sumCountsByChatRecordId(record.getId()) + answerIndices.size() > 100) {
+                throw new ChatException("At most 100 votes allowed!");
+            }
 
+            //concurrent duplicates that pass this check are rejected by the unique (record, voter, answer) constraint
+            List<Integer> votedAnswerIndices = voteRepository.findAnswerIndices(record.getId(), user.getId());
+            for (int answerIndex : answerIndices) {
+                if (votedAnswerIndices.contains(answerIndex)) {
+                    throw new ChatException("User already voted");
                 }
             }
 
@@ -516,14 +652,16 @@ public class ChatService {
                 vote.setVoter(user);
                 vote.setRecord(record);
                 vote.setAnswerIndex(answerIndex);
-                record.getPollVotes().add(vote);
                 voteRepository.save(vote);
+                pollTallyRepository.increment(record.getId(), chatRoom.getId(), answerIndex);
             }
 
             pollRepository.save(poll);
 
             record.incrementVersion();
             chatRecordRepository.save(record);
+            record.setPollSummary(createBroadcastPollSummary(record.getId()));
+            chatRecordRepository.attachBroadcastReactionSummaries(record);
 
             Set<User> participants = chatRoom.getParticipants();
 
@@ -531,16 +669,8 @@ public class ChatService {
                 @Override
                 public void afterCommit() {
                     //broadcast message to its participants
-                    for (User participant : participants) {
-                        if (participant.getId() != user.getId()) {
-
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageEdit/" + chatRoom.getId(), poll.getRecord());
-                            if (record.getSpam()) {
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageEdit/-1", poll.getRecord());
-                            }
-
-                        }
-                    }
+                    broadcastService.sendToUsers(participants, user.getId(), poll.getRecord(),
+                            BroadcastService.roomDestinations("/general/onChatMessageEdit/", chatRoom.getId(), record.getSpam()));
                 }
             });
 
@@ -569,47 +699,31 @@ public class ChatService {
                 throw new ChatException("Poll expired");
             }
 
-            List<Vote> filtered = poll.getRecord().getPollVotes().stream()
-                    .filter(vote_ -> !vote_.getVoter().getId().equals(user.getId())).collect(Collectors.toCollection(ArrayList::new));
-
-            List<Vote> deleteds = poll.getRecord().getPollVotes().stream()
-                    .filter(vote_ -> vote_.getVoter().getId().equals(user.getId())).collect(Collectors.toCollection(ArrayList::new));
+            ChatRecord chatRecord = poll.getRecord();
+            List<Integer> votedAnswerIndices = voteRepository.findAnswerIndices(chatRecord.getId(), user.getId());
 
-            if (deleteds.isEmpty()) {
+            if (votedAnswerIndices.isEmpty()) {
                 throw new ChatException("User never voted");
             }
 
-            ChatRecord chatRecord = poll.getRecord();
-            chatRecord.setPollVotes(filtered);
+            voteRepository.deleteByRecordIdAndVoterId(chatRecord.getId(), user.getId());
+            pollTallyRepository.decrement(chatRecord.getId(), votedAnswerIndices);
 
             chatRecord.incrementVersion();
 
             chatRecordRepository.save(chatRecord);
-
-            voteRepository.bulkDeleteByIds(deleteds.stream().map(Vote::getId).collect(Collectors.toCollection(ArrayList::new)));
+            chatRecord.setPollSummary(createBroadcastPollSummary(chatRecord.getId()));
+            chatRecordRepository.attachBroadcastReactionSummaries(chatRecord);
 
             Set<User> participants = chatRoom.getParticipants();
 
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("id", poll.getRecord().getId());
-            payload.put("votes", filtered);
-
 
             TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
                 @Override
                 public void afterCommit() {
                     //broadcast message to its participants
-                    for (User participant : participants) {
-                        if (participant.getId() != user.getId()) {
-
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageEdit/" + chatRoom.getId(), poll.getRecord());
-                            if (poll.getRecord().getSpam()) {
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageEdit/-1", poll.getRecord());
-                            }
-
-
-                        }
-                    }
+                    broadcastService.sendToUsers(participants, user.getId(), poll.getRecord(),
+                            BroadcastService.roomDestinations("/general/onChatMessageEdit/", chatRoom.getId(), poll.getRecord().getSpam()));
                 }
             });
 
@@ -619,14 +733,44 @@ public class ChatService {
     }
 
 
-    public void dispatchTypingEvent(String usernamewithId, int chatRoomId, List<String> participantUsernameWithIds) throws GenericException {
+    //vote counts of a poll for the other participants, whose own votes did not change
+    private PollSummary createBroadcastPollSummary(int chatRecordId) {
+        Map<Integer, Integer> answerCounts = new TreeMap<>();
+        int totalVotes = 0;
+        for (PollTally tally : pollTallyRepository.findByChatRecordId(chatRecordId)) {
+            if (tally.getCount() > 0) {
+                answerCounts.put(tally.getAnswerIndex(), tally.getCount());
+                totalVotes += tally.getCount();
+            }
+        }
+        return new PollSummary(answerCounts, totalVotes, null);
+    }
 
-        for (String user : participantUsernameWithIds) {
-            if (!user.equals(usernamewithId))
-                broker.convertAndSendToUser(user, "/general/onUserType/" + chatRoomId, userService.extractId(usernamewithId));
+    //voters of one answer in voting order, cursorId is the id of the last vote of the previous page
+    @Transactional(readOnly = true)
+    public List<Vote> getPollVoters(String usernameWithId, String chatroomId, String pollId, int answerIndex, int cursorId) throws GenericException {
+        try {
+            //validate user belongs to the chatroom
+            ChatRoom chatRoom = chatRoomService.findChatRoomById(usernameWithId, chatroomId);
+            Poll poll = pollRepository.findById(Integer.parseInt(pollId)).orElse(null);
+            if (poll == null) {
+                throw new ChatException("Poll not found");
+            }
+            //validate poll belongs to the chatroom
+            if (!poll.getRecord().getChatRoom().getId().equals(chatRoom.getId())) {
+                throw new ChatException("Poll does not belong to the chatroom");
+            }
+            return voteRepository.findVoters(poll.getRecord().getId(), answerIndex, cursorId, PageRequest.of(0, POLL_VOTERS_PAGE_SIZE));
+        } catch (NumberFormatException e) {
+            throw new ChatException("Invalid id format");
         }
     }
 
+    public void dispatchTypingEvent(String usernamewithId, int chatRoomId, List<String> participantUsernameWithIds) throws GenericException {
+
+        broadcastService.sendToUsernames(participantUsernameWithIds, usernamewithId, userService.extractId(usernamewithId), "/general/onUserType/" + chatRoomId);
+    }
+
     @Transactional
     public ChatRecord sendPoll(String usernameWithId, String chatroomId, PollMessage pollMessage) throws GenericException {
         //basic validation
@@ -709,26 +853,7 @@ public class ChatService {
         Set<User> participants = chatRoom.getParticipants();
 
         //update notifications for participants
-        for (User participant : participants) {
-            if (participant.getId() != userId) {
-                //if the participant has blocked this user, do not update the participant's notification count
-                if (userRepository.isBlocked(participant.getId(), userId)) {
-                    continue;
-                }
-                ChatNotificationCount cnt = chatNotificationCountRepository.findByChatRoomIdAndUserId(Integer.parseInt(chatroomId), participant.getId());
-                if (cnt == null) {
-                    throw new GenericException("Unexpected error while updating chat notification data");
-                }
-                if (cnt.getLatestMessageId() == null) {
-                    //latest message as in oldest unread message
-                    cnt.setLatestMessageId(recorded.getId());
-                    cnt.setFirstUnreadTimestamp(recorded.getDate().toInstant().toEpochMilli());
-                    cnt.setCount(1);
-                } else
-                    cnt.setCount(cnt.getCount() + 1);
-                chatNotificationCountRepository.save(cnt);
-            }
-        }
+        fanOutNotificationCounts(chatRoom, recorded, userId, false);
 
 
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
@@ -740,8 +865,9 @@ public class ChatService {
                     chatRoomService.announcePollExpiration(chatroomId, recorded.getId(), user.getId());
                 }, later.toInstant());
 
+                ChatRoomSummary chatRoomSummary = ChatRoomSummary.of(chatRoom, recorded, 1);
                 Map<String, Object> payload = new HashMap<>();
-                payload.put("chatRoom", chatRoom);
+                payload.put("chatRoom", chatRoomSummary);
                 payload.put("chatRecord", chatRecord);
 
                 //send push notifications to offline users
@@ -752,17 +878,10 @@ public class ChatService {
                 }
 
                 //broadcast message to its participants
-                for (User participant : participants) {
-                    if (participant.getId() != userId) {
-
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessage/" + chatRoom.getId(), Map.of("chatRecord", chatRecord));
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessage", payload);
-
-                        if (chatRecord.getSpam()) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessage/-1", Map.of("chatRecord", chatRecord, "chatRoom", chatRoom));
-                        }
-
-                    }
+                broadcastService.sendToUsers(participants, userId, Map.of("chatRecord", chatRecord), "/general/onChatMessage/" + chatRoom.getId());
+                broadcastService.sendToUsers(participants, userId, payload, "/general/onChatMessage");
+                if (chatRecord.getSpam()) {
+                    broadcastService.sendToUsers(participants, userId, Map.of("chatRecord", chatRecord, "chatRoom", chatRoomSummary), "/general/onChatMessage/-1");
                 }
             }
         });
@@ -792,8 +911,10 @@ public class ChatService {
             String chatRoomId = scheduled.getChatRoomIdReference().toString();
             ChatMessage message = new ChatMessage(scheduled.getMessage(), scheduled.getReplyTargetId() == null ? null : scheduled.getReplyTargetId().toString(),
                     scheduled.getReplyTargetSender() == null ? null : scheduled.getReplyTargetSender().getId().toString(), scheduled.getReplyTargetMessage());
-            sendMessage(usernameWithId, chatRoomId, message, null, null, null, null,
+            ChatRecord sent = sendMessage(usernameWithId, chatRoomId, message, null, null, null, null,
                     scheduled.getAttachments(), scheduled.getAttachmentsMetadata(), true);
+            //the attachment metadata was stored when the message was scheduled
+            chatAttachmentRepository.moveToChatRecord(scheduled.getId(), sent.getId());
         }
         //delete the scheduled messages
         chatRecordRepository.deleteAll(scheduledChatRecords);
@@ -818,6 +939,7 @@ public class ChatService {
 
         //no need to handle deleting chat reactions or other associated entities because scheduled messages can't have one
 
+        chatAttachmentRepository.deleteByChatRecordId(chatRecord.getId());
         chatRecordRepository.delete(chatRecord);
         String attachmentsCode = chatRecord.getAttachments();
 
@@ -864,6 +986,89 @@ public class ChatService {
         chatRecordRepository.save(chatRecord);
     }
 
+    private boolean shouldUpdateSpamNotification(User participant, ChatRecord recorded, boolean isGroupChat, boolean isFriends) {
+        String spamFilterMode = participant.getSpamFilterMode();
+        if (spamFilterMode.equals("Groups") && !isGroupChat) {
+            return false;
+        } else if (spamFilterMode.equals("Friends") && (!isFriends || isGroupChat)) {
+            return false;
+        } else if (spamFilterMode.equals("Others") && (isFriends || isGroupChat)) {
+            return false;
+        } else if (spamFilterMode.equals("None")) {
+            return false;
+        }
+        return !isNsfwBlockedFor(participant, recorded, isGroupChat, isFriends);
+    }
+
+    private boolean shouldUpdateNotification(User participant, ChatRecord recorded, boolean isGroupChat, boolean isFriends) {
+        if (recorded.getSpam()) {
+            String spamFilterMode = participant.getSpamFilterMode();
+            if (spamFilterMode.equals("Groups") && isGroupChat) {
+                return false;
+            } else if (spamFilterMode.equals("Friends") && isFriends && !isGroupChat) {
+                return false;
+            } else if (spamFilterMode.equals("Others") && !isFriends && !isGroupChat) {
+                return false;
+            } else if (spamFilterMode.equals("All")) {
+                return false;
+            }
+        }
+        return !isNsfwBlockedFor(participant, recorded, isGroupChat, isFriends);
+    }
+
+    private boolean isNsfwBlockedFor(User participant, ChatRecord recorded, boolean isGroupChat, boolean isFriends) {
+        if (!recorded.getNsfw()) {
+            return false;
+        }
+        if (isGroupChat && participant.getNsfwGroups().equals("Block")) {
+            return true;
+        }
+        if (!isGroupChat && isFriends && participant.getNsfwDmFriends().equals("Block")) {
+            return true;
+        }
+        return !isGroupChat && !isFriends && participant.getNsfwDmOthers().equals("Block");
+    }
+
+    private void fanOutNotificationCounts(ChatRoom chatRoom, ChatRecord recorded, int userId, boolean notifySelf) throws GenericException {
+        //resolve friend/block relationships of every recipient in bulk and update the notification rows
+        //with set-based increments, instead of issuing several queries per participant
+        List<User> recipients = chatRoom.getParticipants().stream()
+                .filter(participant -> participant.getId() != userId || notifySelf)
+                .collect(Collectors.toCollection(ArrayList::new));
+        if (recipients.isEmpty()) {
+            return;
+        }
+        List<Integer> recipientIds = recipients.stream().map(User::getId).collect(Collectors.toCollection(ArrayList::new));
+        boolean isGroupChat = chatRoom.getDirect1to1Identifier() == null || chatRoom.getDirect1to1Identifier().isEmpty();
+
+        Set<Integer> friendIds = new HashSet<>(userRepository.findFriendIdsAmong(userId, recipientIds));
+        Set<Integer> blockerIds = new HashSet<>(userRepository.findBlockerIdsAmong(userId, recipientIds));
+
+        List<Integer> roomUserIds = new ArrayList<>();
+        List<Integer> spamUserIds = new ArrayList<>();
+        for (User participant : recipients) {
+            //if the participant has blocked this user, do not update the participant's notification count
+            if (blockerIds.contains(participant.getId())) {
+                continue;
+            }
+            boolean isFriends = friendIds.contains(participant.getId());
+
+            //if this record is a spam message, register notification on the spam mailbox
+            if (recorded.getSpam() && shouldUpdateSpamNotification(participant, recorded, isGroupChat, isFriends)) {
+                spamUserIds.add(participant.getId());
+            }
+
+            //conditionally update notification depending on user settings
+            if (shouldUpdateNotification(participant, recorded, isGroupChat, isFriends)) {
+                roomUserIds.add(participant.getId());
+            }
+        }
+
+        notificationCountAggregator.increment(chatRoom.getId(), roomUserIds, 1, recorded);
+        notificationCountAggregator.increment(-1, spamUserIds, 1, recorded);
+    }
+
+
     @Transactional
     public ChatRecord sendMessage(String usernameWithId, String chatroomId, ChatMessage message, MultipartFile[] attachments,
                                   String attachmentsMetadata, @Nullable ZonedDateTime customDate, @Nullable Long scheduledTime,
@@ -958,33 +1163,37 @@ public class ChatService {
             chatRoomRepository.save(chatRoom);
 
             //content filters
+            boolean postClassify = scheduledTime == null && moderationService.isPostClassify();
 
-            boolean isTextNSFW = aiService.detectNSFW(chatRecord.getMessage());
+            if (postClassify) {
+                //classified by the moderation workers after commit
+                chatRecord.setModerationPending(true);
+            } else {
+                boolean isTextNSFW = aiService.detectNSFW(chatRecord.getMessage());
 
-            if (!isTextNSFW && chatRecord.getReplyTargetMessage() != null) {
-                isTextNSFW = aiService.detectNSFW(chatRecord.getReplyTargetMessage());
-            }
-            boolean isImageNSFW = false;
-            if (attachments != null && attachments.length > 0) {
-                for (MultipartFile attachment : attachments) {
-                    if (aiService.detectNSFW(attachment)) {
-                        isImageNSFW = true;
-                        break;
-                    }
+                if (!isTextNSFW && chatRecord.getReplyTargetMessage() != null) {
+                    isTextNSFW = aiService.detectNSFW(chatRecord.getReplyTargetMessage());
+                }
+                boolean isImageNSFW = false;
+                if (!isTextNSFW && attachments != null && attachments.length > 0) {
+                    isImageNSFW = aiService.detectAnyNSFW(Arrays.asList(attachments));
                 }
-            }
 
-            chatRecord.setNsfw(isTextNSFW || isImageNSFW);
+                chatRecord.setNsfw(isTextNSFW || isImageNSFW);
 
 
-            boolean isSpam = aiService.detectSpam(chatRecord.getMessage());
-            chatRecord.setSpam(isSpam);
+                boolean isSpam = aiService.detectSpam(chatRecord.getMessage());
+                chatRecord.setSpam(isSpam);
+            }
 
             if (scheduledTime != null) {
                 chatRecord.setScheduledTime(scheduledTime);
             }
 
             ChatRecord recorded = chatRecordRepository.save(chatRecord);
+            if (attachmentCode != null) {
+                chatAttachmentService.saveAttachments(recorded, attachmentCode, attachments);
+            }
             String finalActualPaths = actualPaths;
 
             if (scheduledTime != null) {
@@ -1005,110 +1214,9 @@ public class ChatService {
             }
 
 
-            //update notifications for participants
-            for (User participant : chatRoom.getParticipants()) {
-
-
-                if (participant.getId() != userId || notifySelf) {
-                    boolean isGroupChat = chatRoom.getDirect1to1Identifier() == null || chatRoom.getDirect1to1Identifier().isEmpty();
-                    boolean isFriends = userRepository.isFriend(userId, participant.getId());
-                    //if the participant has blocked this user, do not update the participant's notification count
-                    if (userRepository.isBlocked(participant.getId(), userId)) {
-                        continue;
-                    }
-
-                    //if this record is a spam message, register notification on the spam mailbox
-                    if (recorded.getSpam()) {
-
-                        boolean shouldUpdateSpamNotification = true;
-
-                        if (participant.getSpamFilterMode().equals("Groups") && !isGroupChat) {
-                            shouldUpdateSpamNotification = false;
-                        } else if (participant.getSpamFilterMode().equals("Friends") && (!isFriends || isGroupChat)) {
-                            shouldUpdateSpamNotification = false;
-                        } else if (participant.getSpamFilterMode().equals("Others") && (isFriends || isGroupChat)) {
-                            shouldUpdateSpamNotification = false;
-                        } else if (participant.getSpamFilterMode().equals("None")) {
-                            shouldUpdateSpamNotification = false;
-                        }
-
-                        if (recorded.getNsfw()) {
-                            if (isGroupChat && participant.getNsfwGroups().equals("Block")) {
-                                shouldUpdateSpamNotification = false;
-                            }
-                            if (!isGroupChat && isFriends && participant.getNsfwDmFriends().equals("Block")) {
-                                shouldUpdateSpamNotification = false;
-                            }
-                            if (!isGroupChat && !isFriends && participant.getNsfwDmOthers().equals("Block")) {
-                                shouldUpdateSpamNotification = false;
-                            }
-                        }
-
-                        if (shouldUpdateSpamNotification) {
-                            ChatNotificationCount cnt = chatNotificationCountRepository.findByChatRoomIdAndUserId(-1, participant.getId());
-                            if (cnt == null) {
-                                throw new GenericException("Unexpected error while updating chat notification data");
-                            }
-                            if (cnt.getLatestMessageId() == null) {
-                                //latest message as in oldest unread message
-                                cnt.setLatestMessageId(recorded.getId());
-                                cnt.setFirstUnreadTimestamp(recorded.getDate().toInstant().toEpochMilli());
-                                cnt.setCount(1);
-                            } else
-                                cnt.setCount(cnt.getCount() + 1);
-                            chatNotificationCountRepository.save(cnt);
-                        }
-
-                    }
-
-                    boolean shouldUpdateNotification = true;
-
-                    //conditionally update notification depending on user settings
-
-                    if (recorded.getSpam()) {
-                        if (participant.getSpamFilterMode().equals("Groups") && isGroupChat) {
-                            shouldUpdateNotification = false;
-                        } else if (participant.getSpamFilterMode().equals("Friends") && isFriends && !isGroupChat) {
-                            shouldUpdateNotification = false;
-                        } else if (participant.getSpamFilterMode().equals("Others") && !isFriends && !isGroupChat) {
-                            shouldUpdateNotification = false;
-                        } else if (participant.getSpamFilterMode().equals("All")) {
-                            shouldUpdateNotification = false;
-                        }
-                    }
-
-
-                    if (recorded.getNsfw()) {
-                        if (isGroupChat && participant.getNsfwGroups().equals("Block")) {
-                            shouldUpdateNotification = false;
-                        }
-                        if (!isGroupChat && isFriends && participant.getNsfwDmFriends().equals("Block")) {
-                            shouldUpdateNotification = false;
-                        }
-                        if (!isGroupChat && !isFriends && participant.getNsfwDmOthers().equals("Block")) {
-                            shouldUpdateNotification = false;
-                        }
-                    }
-
-
-                    if (shouldUpdateNotification) {
-                        ChatNotificationCount cnt = chatNotificationCountRepository.findByChatRoomIdAndUserId(Integer.parseInt(chatroomId), participant.getId());
-                        if (cnt == null) {
-                            throw new GenericException("Unexpected error while updating chat notification data");
-                        }
-                        if (cnt.getLatestMessageId() == null) {
-                            //latest message as in oldest unread message
-                            cnt.setLatestMessageId(recorded.getId());
-                            cnt.setFirstUnreadTimestamp(recorded.getDate().toInstant().toEpochMilli());
-
-                            cnt.setCount(1);
-                        } else
-                            cnt.setCount(cnt.getCount() + 1);
-
-                        chatNotificationCountRepository.save(cnt);
-                    }
-
-                }
+            //update notifications for participants; in post-classify mode this waits for the verdict
+            if (!postClassify) {
+                fanOutNotificationCounts(chatRoom, recorded, userId, notifySelf);
             }
 
 
@@ -1124,33 +1232,39 @@ public class ChatService {
                     if (attachments != null && finalActualPaths != null)
                         saveAttachments(attachments, finalActualPaths);
 
+                    ChatRoomSummary chatRoomSummary = ChatRoomSummary.of(chatRoom, recorded, 1);
                     Map<String, Object> payload = new HashMap<>();
-                    payload.put("chatRoom", chatRoom);
+                    payload.put("chatRoom", chatRoomSummary);
                     payload.put("chatRecord", chatRecord);
 
 
                     //send push notifications to offline users
-                    try {
-                        pushNotificationService.sendChatNotifications(participants, List.of(chatRecord), chatRoom);
-                    } catch (Exception e) {
-                        log.error("Error while sending push notification: " + e.getMessage());
-                        e.printStackTrace();
+                    if (!postClassify) {
+                        try {
+                            pushNotificationService.sendChatNotifications(participants, List.of(chatRecord), chatRoom);
+                        } catch (Exception e) {
+                            log.error("Error while sending push notification: " + e.getMessage());
+                            e.printStackTrace();
+                        }
                     }
 
 
                     //broadcast message to its participants
-                    for (User participant : participants) {
-                        if (participant.getId() != userId || notifySelf) {
-
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessage/" + chatRoom.getId(), Map.of("chatRecord", chatRecord));
-                            if (recorded.getSpam()) {
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessage/-1", Map.of("chatRecord", chatRecord, "chatRoom", chatRoom));
-                            }
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessage", payload);
-
-                        }
-
-
+                    Integer excludedUserId = notifySelf ? null : userId;
+                    broadcastService.sendToUsers(participants, excludedUserId, Map.of("chatRecord", chatRecord), "/general/onChatMessage/" + chatRoom.getId());
+                    if (recorded.getSpam()) {
+                        broadcastService.sendToUsers(participants, excludedUserId, Map.of("chatRecord", chatRecord, "chatRoom", chatRoomSummary), "/general/onChatMessage/-1");
+                    }
+                    broadcastService.sendToUsers(participants, excludedUserId, payload, "/general/onChatMessage");
+
+                    if (postClassify) {
+                        List<Path> imagePaths = finalActualPaths == null ? List.of() : Arrays.stream(finalActualPaths.split(","))
+                                .filter(path -> !path.isEmpty()).map(path -> Paths.get(fileStoragePath, path)).collect(Collectors.toCollection(ArrayList::new));
+                        String classifiedMessage = recorded.getMessage();
+                        String replyTargetMessage = recorded.getReplyTargetMessage();
+                        pendingModerationFanOuts.put(recorded.getId(), notifySelf);
+                        moderationService.submit(() -> applyModerationVerdict(recorded.getId(), classifiedMessage,
+                                moderationService.classify(classifiedMessage, replyTargetMessage, imagePaths), false, userId, notifySelf));
                     }
                 }
             });
@@ -1182,19 +1296,7 @@ public class ChatService {
                 throw new ChatException("Chat record does not belong to the chatroom");
             }
             ChatRecord chatRecord = chatRecordOptional.get();
-            List<ChatReaction> reactions = chatRecord.getChatReactions();
-            ChatReaction existingReaction = null;
-            int i = 0;
-            int removeI = 0;
-
-            for (ChatReaction reaction : reactions) {
-                if (reaction.getReactorId() == userId && reaction.getCode().equals(code)) {
-                    existingReaction = reaction;
-                    removeI = i;
-                    break;
-                }
-                i++;
-            }
+            ChatReaction existingReaction = chatReactionRepository.findByChatRecordIdAndReactorIdAndCode(chatRecord.getId(), userId, code);
 
             if (existingReaction == null) {
                 throw new ChatException("This chat reaction does not exist");
@@ -1202,7 +1304,8 @@ public class ChatService {
 
 
             chatReactionRepository.delete(existingReaction);
-            chatRecord.getChatReactions().remove(removeI);
+            chatReactionSummaryRepository.decrement(chatRecord.getId(), code);
+            chatReactionSummaryRepository.deleteIfEmpty(chatRecord.getId(), code);
 
 
             chatRecord.incrementVersion();
@@ -1215,14 +1318,8 @@ public class ChatService {
                 @Override
                 public void afterCommit() {
                     //broadcast to its participants
-                    for (User participant : participants) {
-                        if (participant.getId() != userId) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageUnreact/" + chatRoom.getId(), finalExistingReaction);
-                            if (chatRecord.getSpam()) {
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageUnreact/-1", finalExistingReaction);
-                            }
-                        }
-                    }
+                    broadcastService.sendToUsers(participants, userId, finalExistingReaction,
+                            BroadcastService.roomDestinations("/general/onChatMessageUnreact/", chatRoom.getId(), chatRecord.getSpam()));
                 }
             });
 
@@ -1252,30 +1349,19 @@ public class ChatService {
                 throw new ChatException("Chat record does not belong to the chatroom");
             }
             ChatRecord chatRecord = chatRecordOptional.get();
-            List<ChatReaction> reactions = chatRecord.getChatReactions();
-            ChatReaction existingReaction = null;
 
-            if (reactions.size() > 50) {
-                throw new ChatException("This chat message received enough types of reactions!");
+            //concurrent duplicates that pass this check are rejected by the unique (record, reactor, code) constraint
+            if (chatReactionRepository.findByChatRecordIdAndReactorIdAndCode(chatRecord.getId(), userId, code) != null) {
+                throw new ChatException("This reaction is already present in this message!");
             }
-
-            for (ChatReaction reaction : reactions) {
-                if (reaction.getReactorId() == userId && reaction.getCode().equals(code)) {
-                    existingReaction = reaction;
-                    break;
-                }
+            if (!chatReactionSummaryRepository.existsByChatRecordIdAndCode(chatRecord.getId(), code)
+                    && chatReactionSummaryRepository.countCodesByChatRecordId(chatRecord.getId()) >= 50) {
+                throw new ChatException("This chat message received enough types of reactions!");
             }
 
-
-            if (existingReaction != null) {
-                throw new ChatException("This reaction is already present in this message!");
-            } else {
-                ChatReaction chatReaction = new ChatReaction(null, code, userId, chatRecord.getId(), Integer.parseInt(chatroomId), chatRecord, (user.getNickname() != null && !user.getNickname().isEmpty() ? user.getNickname() : user.getUsername()), usernameWithId.replace("@", "#"));
-                chatRecord.getChatReactions().add(chatReaction);
-
-                existingReaction = chatReaction;
-                chatReactionRepository.save(chatReaction);
-            }
+            ChatReaction existingReaction = new ChatReaction(null, code, userId, chatRecord.getId(), Integer.parseInt(chatroomId), chatRecord, (user.getNickname() != null && !user.getNickname().isEmpty() ? user.getNickname() : user.getUsername()), usernameWithId.replace("@", "#"));
+            chatReactionRepository.save(existingReaction);
+            chatReactionSummaryRepository.increment(chatRecord.getId(), chatRecord.getChatRoom().getId(), code);
 
             chatRecord.incrementVersion();
             chatRecordRepository.save(chatRecord);
@@ -1297,16 +1383,8 @@ public class ChatService {
                 @Override
                 public void afterCommit() {
                     //broadcast to its participants
-                    for (User participant : participants) {
-                        if (participant.getId() != userId) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageReact/" + chatRoom.getId(), finalExistingReaction);
-
-
-                            if (chatRecord.getSpam()) {
-                                broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onChatMessageReact/-1", finalExistingReaction);
-                            }
-                        }
-                    }
+                    broadcastService.sendToUsers(participants, userId, finalExistingReaction,
+                            BroadcastService.roomDestinations("/general/onChatMessageReact/", chatRoom.getId(), chatRecord.getSpam()));
                 }
             });
 
@@ -1317,6 +1395,27 @@ public class ChatService {
         }
     }
 
+    //reactors of one reaction code in the order they reacted, cursorId is the id of the last reaction of the previous page
+    @Transactional(readOnly = true)
+    public List<ChatReaction> getReactors(String usernameWithId, String chatroomId, String chatRecordId, String code, int cursorId) throws GenericException {
+        if (!code.startsWith(":") || !code.endsWith(":")) {
+            throw new ChatException("Invalid reaction code");
+        }
+        try {
+            ChatRoom chatRoom = chatRoomService.findChatRoomById(usernameWithId, chatroomId);
+            ChatRecord chatRecord = chatRecordRepository.findById(Integer.parseInt(chatRecordId)).orElse(null);
+            if (chatRecord == null) {
+                throw new ChatException("No chat message found");
+            }
+            if (!chatRecord.getChatRoom().getId().equals(chatRoom.getId())) {
+                throw new ChatException("Chat record does not belong to the chatroom");
+            }
+            return chatReactionRepository.findReactors(chatRecord.getId(), code, cursorId, PageRequest.of(0, REACTORS_PAGE_SIZE));
+        } catch (NumberFormatException e) {
+            throw new ChatException("Invalid chat record id");
+        }
+    }
+
     private List<String> cleanTag(List<String> rawTags) throws GenericException {
         if (rawTags.size() > 10) {
             //more than 10 tags are not supported
@@ -1328,7 +1427,8 @@ public class ChatService {
 
     @Transactional(readOnly = true)
     public List<ChatRecord> searchChatRecord(String usernameWithId, String chatroomId, Integer cursorId, boolean previous, SearchOrder searchOrder, String content, List<String> tags, String localTimezone,
-                                             ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag, boolean querySpam) throws GenericException {
+                                             ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag, boolean querySpam,
+                                             boolean queryEverywhere, @Nullable String cursorDate) throws GenericException {
         try {
 
             if (content.length() > 255) {
@@ -1336,7 +1436,20 @@ public class ChatService {
             }
             //verify chatroom belongs to user
 
-            ChatRoom chatRoom = querySpam ? null : chatRoomService.findChatRoomById(usernameWithId, chatroomId);
+            ChatRoom chatRoom = querySpam || queryEverywhere ? null : chatRoomService.findChatRoomById(usernameWithId, chatroomId);
+
+            ZonedDateTime cursorZonedDate = null;
+            if (queryEverywhere && cursorId > 0) {
+                //pages across chatrooms are keyed by the date and id of the cursor record
+                if (cursorDate == null) {
+                    throw new ChatException("Invalid cursor");
+                }
+                try {
+                    cursorZonedDate = ZonedDateTime.parse(cursorDate);
+                } catch (DateTimeParseException e) {
+                    throw new ChatException("Invalid cursor");
+                }
+            }
 
             User thisUser = userService.findByUsernameWithId(usernameWithId);
             Set<ChatRoom> userChatRooms = querySpam ? thisUser.getChatRooms() : null;
@@ -1549,18 +1662,18 @@ public class ChatService {
                 return List.of();
             }
 
-            Set<User> blockeds = userService.findAllBlockedAssociationsOf(thisUser);
+            int[] blockeds = userService.findAllBlockedAssociationIdsOf(thisUser);
             Set<User> userFilter = null;
             String spamFilterMode = thisUser.getSpamFilterMode();
             if (querySpam) {
-                blockeds.add(thisUser);
+                blockeds = BlockedAssociationCache.union(blockeds, List.of(thisUser.getId()));
                 if (spamFilterMode.equals("None")) {
                     return List.of();
                 } else if (spamFilterMode.equals("Friends")) {
                     userFilter = thisUser.getFriends();
                     userChatRooms = userChatRooms.stream().filter(e -> e.getDirect1to1Identifier() != null && !e.getDirect1to1Identifier().isEmpty()).collect(Collectors.toSet());
                 } else if (spamFilterMode.equals("Others")) {
-                    blockeds.addAll(thisUser.getFriends());
+                    blockeds = BlockedAssociationCache.union(blockeds, thisUser.getFriends().stream().map(User::getId).toList());
                     userChatRooms = userChatRooms.stream().filter(e -> e.getDirect1to1Identifier() != null && !e.getDirect1to1Identifier().isEmpty()).collect(Collectors.toSet());
                 } else if (spamFilterMode.equals("Groups")) {
                     userChatRooms = userChatRooms.stream().filter(e -> e.getDirect1to1Identifier() == null || e.getDirect1to1Identifier().isEmpty()).collect(Collectors.toSet());
@@ -1568,18 +1681,62 @@ public class ChatService {
             }
 
 
-            return chatRecordRepository.searchChatRecord(chatRoom, blockeds, searchFilters, cursorId, searchOrder, previous, userService.extractId(usernameWithId), nsfwFlag, spamFlag, querySpam, userChatRooms, userFilter);
+            return chatRecordRepository.searchChatRecord(chatRoom, blockeds, searchFilters, cursorId, searchOrder, previous, userService.extractId(usernameWithId), nsfwFlag, spamFlag, querySpam, userChatRooms, userFilter,
+                    queryEverywhere, cursorZonedDate);
         } catch (NumberFormatException e) {
             throw new ChatException("Invalid id format");
         }
     }
 
 
+    //relevance ranked search over the messages of one chatroom, paged by a (score, id) cursor
+    @Transactional(readOnly = true)
+    public ChatRecordSearchPage searchRankedChatRecord(String usernameWithId, String chatroomId, String content, @Nullable String cursor,
+                                                       ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) throws GenericException {
+        try {
+            content = content.trim();
+            if (content.isEmpty()) {
+                return new ChatRecordSearchPage(List.of(), null);
+            }
+            if (content.length() > 255) {
+                throw new ChatException("Search query too long");
+            }
+
+            Float cursorScore = null;
+            Integer cursorId = null;
+            if (cursor != null && !cursor.isEmpty()) {
+                String[] cursorParts = cursor.split(":");
+                if (cursorParts.length != 2) {
+                    throw new ChatException("Invalid search cursor");
+                }
+                cursorScore = Float.parseFloat(cursorParts[0]);
+                cursorId = Integer.parseInt(cursorParts[1]);
+            }
+
+            //verify chatroom belongs to user
+            ChatRoom chatRoom = chatRoomService.findChatRoomById(usernameWithId, chatroomId);
+            User thisUser = userService.findByUsernameWithId(usernameWithId);
+            int[] blockeds = userService.findAllBlockedAssociationIdsOf(thisUser);
+
+            List<ChatRecordSearchHit> hits = chatRecordRepository.searchRankedChatRecord(chatRoom, blockeds, content, thisUser.getId(),
+                    nsfwFlag, spamFlag, cursorScore, cursorId, RANKED_SEARCH_PAGE_SIZE);
+
+            String nextCursor = null;
+            if (hits.size() == RANKED_SEARCH_PAGE_SIZE) {
+                ChatRecordSearchHit last = hits.get(hits.size() - 1);
+                nextCursor = last.getScore() + ":" + last.getChatRecord().getId();
+            }
+            return new ChatRecordSearchPage(hits, nextCursor);
+        } catch (NumberFormatException e) {
+            throw new ChatException("Invalid id format");
+        }
+    }
+
     @Transactional(readOnly = true)
     public boolean verifyCheckRecordExistsById(String usernameWithId, String chatroomId, String id, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) throws GenericException {
         try {
             User user = userService.findByUsernameWithId(usernameWithId);
-            Set<User> blocked = userService.findAllBlockedAssociationsOf(user);
+            int[] blocked = userService.findAllBlockedAssociationIdsOf(user);
 
             //validate this user belongs to this chatroom
             ChatRoom chatRoom = chatRoomService.findChatRoomById(usernameWithId, chatroomId);
@@ -1598,8 +1755,7 @@ public class ChatService {
     public boolean verifySpamCheckRecordExistsById(String usernameWithId, String id, ContentFilterFlag nsfwFlag) throws GenericException {
         try {
             User user = userService.findByUsernameWithId(usernameWithId);
-            Set<User> blocked = userService.findAllBlockedAssociationsOf(user);
-            blocked.add(user);
+            int[] blocked = BlockedAssociationCache.union(userService.findAllBlockedAssociationIdsOf(user), List.of(user.getId()));
 
             Set<ChatRoom> userChatRooms = user.getChatRooms();
             Set<User> userFilter = null;
@@ -1612,7 +1768,7 @@ public class ChatService {
                 userFilter = user.getFriends();
                 userChatRooms = userChatRooms.stream().filter(e -> e.getDirect1to1Identifier() != null && !e.getDirect1to1Identifier().isEmpty()).collect(Collectors.toSet());
             } else if (filterMode.equals("Others")) {
-                blocked.addAll(user.getFriends());
+                blocked = BlockedAssociationCache.union(blocked, user.getFriends().stream().map(User::getId).toList());
                 userChatRooms = userChatRooms.stream().filter(e -> e.getDirect1to1Identifier() != null && !e.getDirect1to1Identifier().isEmpty()).collect(Collectors.toSet());
 
             } else if (filterMode.equals("Groups")) {
@@ -1737,7 +1893,7 @@ public class ChatService {
         //validate this user belongs to this chatroom
         ChatRoom chatRoom = chatRoomService.findChatRoomById(usernameWithId, chatroomId);
 
-        List<ChatRecord> chatRecords = chatRecordRepository.getAllPinnedByChatRoomIdBlockFiltered(chatRoom, userService.findAllBlockedAssociationsOf(user), nsfwFlag, spamFlag);
+        List<ChatRecord> chatRecords = chatRecordRepository.getAllPinnedByChatRoomIdBlockFiltered(chatRoom, userService.findAllBlockedAssociationIdsOf(user), user.getId(), nsfwFlag, spamFlag);
 
         return chatRecords;
     }
@@ -1746,21 +1902,66 @@ public class ChatService {
     @Transactional
     public List<ChatRecord> getChatRecords(String usernameWithId, String chatroomId, Integer keyId, boolean previous, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) throws GenericException {
         User user = userService.findByUsernameWithId(usernameWithId);
-        Set<User> blocked = userService.findAllBlockedAssociationsOf(user);
+        int[] blocked = userService.findAllBlockedAssociationIdsOf(user);
 
         //validate this user belongs to this chatroom
         ChatRoom chatRoom = chatRoomService.findChatRoomById(usernameWithId, chatroomId);
 
+        if (!previous && keyId == 0) {
+            //the newest page is by far the most read one, pick its ids from the recent records of the room
+            List<Integer> ids = recentChatRecordCache.getNewestPageIds(chatRoom.getId(), user.getId(), blocked, nsfwFlag, spamFlag, perPageCount,
+                    limit -> chatRecordRepository.getRecentEntries(chatRoom, limit));
+            if (ids != null) {
+                return chatRecordRepository.getAllByIdsOrdered(ids, user.getId());
+            }
+        }
+
         return previous ? chatRecordRepository.getPrevPageByChatRoomIdBlockFiltered(chatRoom, blocked, -keyId, user.getId(), nsfwFlag, spamFlag) :
                 chatRecordRepository.getNextPageByChatRoomIdBlockFiltered(chatRoom, blocked, keyId, user.getId(), nsfwFlag, spamFlag);
 
     }
 
+    //access is checked before the response starts; the returned body reads the room through a database cursor
+    //in its own read-only transaction and writes one json object per line, so memory use does not grow with the room
+    @Transactional
+    public StreamingResponseBody exportChatRecords(String usernameWithId, String chatroomId, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag,
+                                                   @Nullable Long fromMillis, @Nullable Long toMillis) throws GenericException {
+        User user = userService.findByUsernameWithId(usernameWithId);
+        int[] blocked = userService.findAllBlockedAssociationIdsOf(user);
+
+        //validate this user belongs to this chatroom
+        ChatRoom chatRoom = chatRoomService.findChatRoomById(usernameWithId, chatroomId);
+
+        ZonedDateTime from = fromMillis != null ? Instant.ofEpochMilli(fromMillis).atZone(TimeUtils.KST_ZONE) : null;
+        ZonedDateTime to = toMillis != null ? Instant.ofEpochMilli(toMillis).atZone(TimeUtils.KST_ZONE) : null;
+        int userId = user.getId();
+
+        TransactionTemplate exportTransaction = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        exportTransaction.setReadOnly(true);
+
+        return outputStream -> {
+            BufferedOutputStream output = new BufferedOutputStream(outputStream);
+            try {
+                exportTransaction.executeWithoutResult(status -> chatRecordRepository.streamChatRecords(chatRoom, blocked, userId, nsfwFlag, spamFlag, from, to, row -> {
+                    try {
+                        output.write(objectMapper.writeValueAsBytes(row));
+                        output.write('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            } catch (UncheckedIOException e) {
+                //the client went away, the cursor is closed with the transaction
+                throw e.getCause();
+            }
+            output.flush();
+        };
+    }
+
     @Transactional
     public List<ChatRecord> getSpamChatRecords(String usernameWithId, Integer keyId, boolean previous, ContentFilterFlag nsfwFlag) throws GenericException {
         User user = userService.findByUsernameWithId(usernameWithId);
-        Set<User> blocked = userService.findAllBlockedAssociationsOf(user);
-        blocked.add(user);
+        int[] blocked = BlockedAssociationCache.union(userService.findAllBlockedAssociationIdsOf(user), List.of(user.getId()));
         Set<ChatRoom> userChatRooms = user.getChatRooms();
         Set<User> userFilter = null;
 
@@ -1777,7 +1978,7 @@ public class ChatService {
             userChatRooms = userChatRooms.stream().filter(e -> e.getDirect1to1Identifier() != null && !e.getDirect1to1Identifier().isEmpty()).collect(Collectors.toSet());
         } else if (filterMode.equals("Others")) {
             //query only the spams from non-friends (not in friends)
-            blocked.addAll(user.getFriends());
+            blocked = BlockedAssociationCache.union(blocked, user.getFriends().stream().map(User::getId).toList());
             //query only the direct messaging chatrooms
             userChatRooms = userChatRooms.stream().filter(e -> e.getDirect1to1Identifier() != null && !e.getDirect1to1Identifier().isEmpty()).collect(Collectors.toSet());
 
@@ -1787,8 +1988,8 @@ public class ChatService {
         }
 
 
-        return previous ? chatRecordRepository.getPrevPageSpam(userChatRooms, -keyId, blocked, nsfwFlag, userFilter) :
-                chatRecordRepository.getNextPageSpam(userChatRooms, keyId, blocked, nsfwFlag, userFilter);
+        return previous ? chatRecordRepository.getPrevPageSpam(userChatRooms, -keyId, blocked, nsfwFlag, userFilter, user.getId()) :
+                chatRecordRepository.getNextPageSpam(userChatRooms, keyId, blocked, nsfwFlag, userFilter, user.getId());
 
     }
 
@@ -0,0 +1,99 @@
+package com.infiniteplay.accord.services;
+
+import com.infiniteplay.accord.models.ModerationVerdict;
+import com.infiniteplay.accord.utils.GenericException;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//runs the content filters outside of the request transaction when moderation.postclassify is enabled.
+//messages are committed and broadcast with a pending moderation state, then classified by a bounded worker pool
+@Service
+public class ModerationService {
+
+    private static final Logger log = LoggerFactory.getLogger(ModerationService.class);
+
+    private final AIService aiService;
+    private final boolean postClassify;
+    private final ThreadPoolExecutor moderationExecutor;
+
+    public ModerationService(AIService aiService, @Value("${moderation.postclassify}") boolean postClassify,
+                             @Value("${moderation.workers}") int workers, @Value("${moderation.queuecapacity}") int queueCapacity,
+                             @Value("${moderation.submittimeoutms}") long submitTimeoutMs) {
+        this.aiService = aiService;
+        this.postClassify = postClassify;
+        AtomicInteger threadCount = new AtomicInteger();
+        //when the queue is full the submitting thread waits up to submitTimeoutMs for room in the queue, then classifies by itself.
+        //both throttle senders instead of dropping moderation work; the wait is bounded since submit is called from the
+        //afterCommit callbacks of request threads. running the task there is safe, verdicts are applied in a transaction of their own
+        this.moderationExecutor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "Moderation-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Moderation executor is shut down");
+                    }
+                    boolean queued = false;
+                    try {
+                        queued = executor.getQueue().offer(runnable, submitTimeoutMs, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (!queued) {
+                        runnable.run();
+                    }
+                });
+    }
+
+    public boolean isPostClassify() {
+        return postClassify;
+    }
+
+    public void submit(Runnable task) {
+        try {
+            moderationExecutor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("Error while moderating chat message: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.error("Moderation task rejected: " + e.getMessage());
+        }
+    }
+
+    public ModerationVerdict classify(String message, @Nullable String replyTargetMessage, List<Path> imagePaths) throws GenericException {
+        boolean isNSFW = aiService.detectNSFW(message);
+
+        if (!isNSFW && replyTargetMessage != null) {
+            isNSFW = aiService.detectNSFW(replyTargetMessage);
+        }
+        if (!isNSFW) {
+            isNSFW = aiService.detectAnyNSFW(imagePaths.stream().map(FileSystemResource::new).toList());
+        }
+
+        return new ModerationVerdict(isNSFW, aiService.detectSpam(message));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        moderationExecutor.shutdown();
+    }
+}
@@ -0,0 +1,223 @@
+package com.infiniteplay.accord.services;
+
+import com.infiniteplay.accord.entities.ChatNotificationCount;
+import com.infiniteplay.accord.entities.ChatRecord;
+import com.infiniteplay.accord.repositories.ChatNotificationCountRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+//write-behind buffer for unread message counters.
+//increments are coalesced in memory per (chatroom, user) and written to the database in a few grouped
+//statements every notification.flush.intervalms, instead of one row write per recipient per message.
+//in cluster mode (socket.relay.enabled) increments are written through instead: a chatroom read on one node cannot
+//discard increments buffered on another, whose next flush would mark the room unread again
+@Service
+@RequiredArgsConstructor
+public class NotificationCountAggregator {
+
+    private static final Logger log = LoggerFactory.getLogger(NotificationCountAggregator.class);
+
+    private final ChatNotificationCountRepository chatNotificationCountRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    private final ConcurrentHashMap<Long, PendingCount> pending = new ConcurrentHashMap<>();
+    //counters that were drained from the pending table but whose flush has not committed yet
+    private volatile Map<Long, PendingCount> inFlight = Map.of();
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    @Value("${socket.relay.enabled}")
+    private boolean writeThrough;
+
+    private static final class PendingCount {
+        private long count;
+        //oldest unread message that arrived while buffered
+        private Integer oldestMessageId;
+        private Long oldestTimestamp;
+
+        private synchronized void add(long increment, Integer messageId, Long timestamp) {
+            count += increment;
+            if (oldestMessageId == null) {
+                oldestMessageId = messageId;
+                oldestTimestamp = timestamp;
+            }
+        }
+    }
+
+    private static long key(int chatRoomId, int userId) {
+        return ((long) chatRoomId << 32) | (userId & 0xffffffffL);
+    }
+
+    public void increment(int chatRoomId, Collection<Integer> userIds, int increment, ChatRecord oldestRecord) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        Integer messageId = oldestRecord.getId();
+        Long timestamp = oldestRecord.getDate().toInstant().toEpochMilli();
+        List<Integer> targets = new ArrayList<>(userIds);
+
+        if (writeThrough) {
+            //part of the transaction of the message, or a transaction of its own outside of one
+            if (TransactionSynchronizationManager.isActualTransactionActive()) {
+                chatNotificationCountRepository.incrementCounts(chatRoomId, targets, increment, messageId, timestamp);
+            } else {
+                transactionTemplate.executeWithoutResult(status ->
+                        chatNotificationCountRepository.incrementCounts(chatRoomId, targets, increment, messageId, timestamp));
+            }
+            return;
+        }
+
+        //only count messages that were actually committed
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    record(chatRoomId, targets, increment, messageId, timestamp);
+                }
+            });
+        } else {
+            record(chatRoomId, targets, increment, messageId, timestamp);
+        }
+    }
+
+    private void record(int chatRoomId, List<Integer> userIds, int increment, Integer messageId, Long timestamp) {
+        for (Integer userId : userIds) {
+            //compute() keeps the update atomic with respect to the removal done while flushing
+            pending.compute(key(chatRoomId, userId), (k, cell) -> {
+                if (cell == null) {
+                    cell = new PendingCount();
+                }
+                cell.add(increment, messageId, timestamp);
+                return cell;
+            });
+        }
+    }
+
+    //drops buffered increments of a user who has just read the whole chatroom
+    public void discard(int chatRoomId, int userId) {
+        flushLock.lock();
+        try {
+            pending.remove(key(chatRoomId, userId));
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    //returns the persisted counter merged with increments that are not flushed yet
+    public ChatNotificationCount withPending(ChatNotificationCount persisted) {
+        long key = key(persisted.getChatRoomId(), persisted.getUserId());
+        PendingCount flushing = inFlight.get(key);
+        PendingCount buffered = pending.get(key);
+        if (buffered == flushing) {
+            //published as in flight but not removed from the pending table yet
+            buffered = null;
+        }
+        if (flushing == null && buffered == null) {
+            return persisted;
+        }
+
+        ChatNotificationCount merged = new ChatNotificationCount();
+        merged.setId(persisted.getId());
+        merged.setUserId(persisted.getUserId());
+        merged.setChatRoomId(persisted.getChatRoomId());
+        merged.setCount(persisted.getLatestMessageId() == null ? 0 : persisted.getCount());
+        merged.setLatestMessageId(persisted.getLatestMessageId());
+        merged.setFirstUnreadTimestamp(persisted.getFirstUnreadTimestamp());
+
+        for (PendingCount cell : new PendingCount[]{flushing, buffered}) {
+            if (cell == null) {
+                continue;
+            }
+            synchronized (cell) {
+                merged.setCount((int) (merged.getCount() + cell.count));
+                if (merged.getLatestMessageId() == null) {
+                    merged.setLatestMessageId(cell.oldestMessageId);
+                    merged.setFirstUnreadTimestamp(cell.oldestTimestamp);
+                }
+            }
+        }
+        return merged;
+    }
+
+    @Scheduled(fixedDelayString = "${notification.flush.intervalms}")
+    public void flush() {
+        flushLock.lock();
+        try {
+            if (pending.isEmpty()) {
+                return;
+            }
+            //publish the cells as in flight before removing them, so that withPending always finds a cell in one of the tables.
+            //an increment that lands on a cell before its removal is written with it, since it is the same object
+            Map<Long, PendingCount> drained = new HashMap<>(pending);
+            inFlight = drained;
+            for (Map.Entry<Long, PendingCount> entry : drained.entrySet()) {
+                pending.remove(entry.getKey(), entry.getValue());
+            }
+
+            try {
+                transactionTemplate.executeWithoutResult(status -> write(drained));
+            } catch (Exception e) {
+                log.error("Error while flushing chat notification counts: " + e.getMessage());
+                //put the counters back so that they are retried on the next flush
+                for (Map.Entry<Long, PendingCount> entry : drained.entrySet()) {
+                    PendingCount failed = entry.getValue();
+                    pending.compute(entry.getKey(), (k, cell) -> {
+                        if (cell == null) {
+                            return failed;
+                        }
+                        //the failed cell holds the older messages
+                        failed.add(cell.count, cell.oldestMessageId, cell.oldestTimestamp);
+                        return failed;
+                    });
+                }
+            } finally {
+                inFlight = Map.of();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void write(Map<Long, PendingCount> drained) {
+        //recipients of the same messages end up with identical deltas, so group them into one statement each
+        Map<String, List<Integer>> groups = new HashMap<>();
+        Map<String, PendingCount> groupDeltas = new HashMap<>();
+        Map<String, Integer> groupChatRooms = new HashMap<>();
+
+        for (Map.Entry<Long, PendingCount> entry : drained.entrySet()) {
+            int chatRoomId = (int) (entry.getKey() >> 32);
+            int userId = (int) entry.getKey().longValue();
+            PendingCount cell = entry.getValue();
+            String groupKey = chatRoomId + ":" + cell.count + ":" + cell.oldestMessageId + ":" + cell.oldestTimestamp;
+            groups.computeIfAbsent(groupKey, k -> new ArrayList<>()).add(userId);
+            groupDeltas.putIfAbsent(groupKey, cell);
+            groupChatRooms.putIfAbsent(groupKey, chatRoomId);
+        }
+
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            PendingCount delta = groupDeltas.get(group.getKey());
+            int updated = chatNotificationCountRepository.incrementCounts(groupChatRooms.get(group.getKey()), group.getValue(),
+                    (int) delta.count, delta.oldestMessageId, delta.oldestTimestamp);
+            if (updated != group.getValue().size()) {
+                //the user left the chatroom (or it was deleted) before the flush
+                log.warn("Chat notification count rows missing for chatroom " + groupChatRooms.get(group.getKey()));
+            }
+        }
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
+    }
+}
@@ -1,12 +1,15 @@
 package com.infiniteplay.accord.services;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.infiniteplay.accord.entities.AttachmentKind;
+import com.infiniteplay.accord.entities.ChatAttachment;
 import com.infiniteplay.accord.entities.ChatRecord;
 import com.infiniteplay.accord.entities.ChatRoom;
 import com.infiniteplay.accord.entities.PushSubscription;
 import com.infiniteplay.accord.entities.User;
 import com.infiniteplay.accord.models.PushSubscriptionDTO;
 import com.infiniteplay.accord.models.UserStatus;
+import com.infiniteplay.accord.repositories.ChatAttachmentRepository;
 import com.infiniteplay.accord.repositories.PushSubscriptionRepository;
 import com.infiniteplay.accord.security.authentication.JWTHandler;
 import com.infiniteplay.accord.utils.GenericException;
@@ -44,6 +47,8 @@ public class PushNotificationService {
     private String clientUrl;
     @Autowired
     private JWTHandler jwtHandler;
+    @Autowired
+    private ChatAttachmentRepository chatAttachmentRepository;
 
 
     private PushService pushService;
@@ -152,6 +157,16 @@ public class PushNotificationService {
 
         participantUsernameLookup.put("-100", "everyone");
 
+        //attachment kinds of every record, looked up once for all recipients
+        Map<Integer, Set<AttachmentKind>> attachmentKindsLookup = new HashMap<>();
+        List<Integer> recordIdsWithAttachments = chatRecords.stream().filter(chatRecord -> chatRecord.getAttachments() != null && !chatRecord.getAttachments().isEmpty())
+                .map(ChatRecord::getId).collect(Collectors.toCollection(ArrayList::new));
+        if (!recordIdsWithAttachments.isEmpty()) {
+            for (ChatAttachment attachment : chatAttachmentRepository.findAllByChatRecordIdIn(recordIdsWithAttachments)) {
+                attachmentKindsLookup.computeIfAbsent(attachment.getChatRecordId(), k -> EnumSet.noneOf(AttachmentKind.class)).add(attachment.getKind());
+            }
+        }
+
         for (User user : users) {
 
             //if the user prefers not receiving the push notification, skip this user
@@ -171,7 +186,7 @@ public class PushNotificationService {
                 continue;
             }
 
-            Set<User> blockedAssociations = userService.findAllBlockedAssociationsOf(user);
+            int[] blockedAssociations = userService.findAllBlockedAssociationIdsOf(user);
             Set<User> friends = user.getFriends();
 
 
@@ -253,7 +268,7 @@ public class PushNotificationService {
                 }
 
                 //do not send notification if the sender of the chat record has either blocked or was blocked by this user
-                if (blockedAssociations.stream().anyMatch(blocked -> blocked.getId().equals(chatRecord.getSender().getId()))) {
+                if (BlockedAssociationCache.contains(blockedAssociations, chatRecord.getSender().getId())) {
                     continue;
                 }
 
@@ -319,18 +334,14 @@ public class PushNotificationService {
                 } else if (chatRecord.getType().equals("text") && (chatRecord.getAttachments() == null || chatRecord.getAttachments().isEmpty())) {
                     body = message;
                 } else if (chatRecord.getType().equals("text")) {
-                    boolean containsImage = chatRecord.getAttachments().contains(".jpeg") || chatRecord.getAttachments().contains(".png")
-                            || chatRecord.getAttachments().contains(".jpg") ||
-                            chatRecord.getAttachments().contains(".webp") ||
-                            chatRecord.getAttachments().contains(".gif");
+                    Set<AttachmentKind> attachmentKinds = attachmentKindsLookup.getOrDefault(chatRecord.getId(), Set.of());
+                    boolean containsImage = attachmentKinds.contains(AttachmentKind.IMAGE);
 
-                    boolean containsAudio = chatRecord.getAttachments().contains(".mp3") || chatRecord.getAttachments().contains(".wav")
-                            || chatRecord.getAttachments().contains(".ogg");
+                    boolean containsAudio = attachmentKinds.contains(AttachmentKind.SOUND);
 
-                    boolean containsVideo = chatRecord.getAttachments().contains(".mp4") || chatRecord.getAttachments().contains(".webm");
+                    boolean containsVideo = attachmentKinds.contains(AttachmentKind.VIDEO);
 
-                    boolean containsText = chatRecord.getAttachments().contains(".txt") || chatRecord.getAttachments().contains(".java") ||
-                            chatRecord.getAttachments().contains(".cpp");
+                    boolean containsText = attachmentKinds.contains(AttachmentKind.TEXT);
 
                     if (containsImage) {
                         body = "Click to see image.";
@@ -0,0 +1,274 @@
+package com.infiniteplay.accord.services;
+
+import com.infiniteplay.accord.models.ContentFilterFlag;
+import com.infiniteplay.accord.models.RecentChatRecordEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+//ring buffer of the newest sent chat records of each recently read chatroom. only the id and the attributes the read
+//filters look at are kept, so the newest page of a room is picked in memory per viewer and then loaded by primary key.
+//ChatRecordCacheListener keeps the buffers in sync with every committed insert, update and delete of a chat record
+@Component
+public class RecentChatRecordCache {
+
+    private static final Logger log = LoggerFactory.getLogger(RecentChatRecordCache.class);
+
+    //entries are kept oldest to newest starting at start, wrapping around the end of the array
+    private static final class Window {
+        private final RecentChatRecordEntry[] ring;
+        private int start;
+        private int count;
+        //true when the room has records older than the oldest buffered one
+        private boolean hasOlder;
+
+        private Window(int capacity) {
+            this.ring = new RecentChatRecordEntry[capacity];
+        }
+
+        private RecentChatRecordEntry get(int index) {
+            return ring[(start + index) % ring.length];
+        }
+
+        private void set(int index, RecentChatRecordEntry entry) {
+            ring[(start + index) % ring.length] = entry;
+        }
+
+        private int indexOf(int id) {
+            for (int i = count - 1; i >= 0; i--) {
+                if (get(i).id() == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        //records usually commit in id order, so this is an append; a late commit is shifted into place
+        private void insert(RecentChatRecordEntry entry) {
+            int position = count;
+            while (position > 0 && get(position - 1).id() > entry.id()) {
+                position--;
+            }
+            if (count == ring.length) {
+                if (position == 0) {
+                    //older than everything buffered
+                    hasOlder = true;
+                    return;
+                }
+                //drop the oldest entry
+                ring[start] = null;
+                start = (start + 1) % ring.length;
+                count--;
+                position--;
+                hasOlder = true;
+            }
+            for (int i = count; i > position; i--) {
+                set(i, get(i - 1));
+            }
+            set(position, entry);
+            count++;
+        }
+
+        private void upsert(RecentChatRecordEntry entry) {
+            int index = indexOf(entry.id());
+            if (index >= 0) {
+                set(index, entry);
+            } else if (count == 0 || entry.id() > get(0).id() || !hasOlder) {
+                insert(entry);
+            }
+        }
+
+        private void remove(int id) {
+            int index = indexOf(id);
+            if (index < 0) {
+                return;
+            }
+            for (int i = index; i < count - 1; i++) {
+                set(i, get(i + 1));
+            }
+            set(count - 1, null);
+            count--;
+        }
+    }
+
+    //state of one chatroom, every access to it is synchronized on the room, so rooms do not contend with each other.
+    //a room is only in rooms while it has a window or a load of its window is running
+    private static final class Room {
+        private Window window;
+        //bumped on every change of the room, so a window loaded concurrently with a change is not installed
+        private long generation;
+        //nanoTime of the last read, for choosing the room to evict
+        private volatile long lastAccess;
+    }
+
+    private final int capacity;
+    private final int maxRooms;
+    private final ConcurrentHashMap<Integer, Room> rooms = new ConcurrentHashMap<>();
+    private final AtomicInteger windowCount = new AtomicInteger();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder loadCount = new LongAdder();
+    private final LongAdder fallbackCount = new LongAdder();
+
+    public RecentChatRecordCache(@Value("${chatrecord.recentcache.size}") int capacity, @Value("${chatrecord.recentcache.rooms}") int maxRooms) {
+        this.capacity = capacity;
+        this.maxRooms = maxRooms;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    //returns the ids of the newest page visible to the viewer, newest first, or null when the buffer cannot answer
+    //and the page has to be read from the database. loader is called with a limit and returns the newest entries, newest first
+    public List<Integer> getNewestPageIds(int chatRoomId, int viewerId, int[] blockedIds, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag,
+                                          int pageSize, IntFunction<List<RecentChatRecordEntry>> loader) {
+        if (capacity <= 0) {
+            return null;
+        }
+        List<Integer> ids = new ArrayList<>(pageSize);
+        //writes only bump rooms that are present, so the room is registered before the load starts
+        Room room = rooms.computeIfAbsent(chatRoomId, id -> new Room());
+        long loadGeneration;
+        synchronized (room) {
+            room.lastAccess = System.nanoTime();
+            if (room.window != null) {
+                hitCount.increment();
+                return collect(room.window, viewerId, blockedIds, nsfwFlag, spamFlag, pageSize, ids);
+            }
+            loadGeneration = room.generation;
+        }
+
+        loadCount.increment();
+        Window window = new Window(capacity);
+        boolean installed = false;
+        try {
+            List<RecentChatRecordEntry> newest = loader.apply(capacity + 1);
+            window.hasOlder = newest.size() > capacity;
+            for (int i = Math.min(newest.size(), capacity) - 1; i >= 0; i--) {
+                window.insert(newest.get(i));
+            }
+
+            synchronized (room) {
+                //a room that was evicted or pruned during the load may have missed changes
+                if (room.generation == loadGeneration && room.window == null && rooms.get(chatRoomId) == room) {
+                    room.window = window;
+                    installed = true;
+                }
+                return collect(window, viewerId, blockedIds, nsfwFlag, spamFlag, pageSize, ids);
+            }
+        } finally {
+            if (installed) {
+                if (windowCount.incrementAndGet() > maxRooms) {
+                    evictLeastRecentlyRead();
+                }
+            } else {
+                synchronized (room) {
+                    if (room.window == null) {
+                        rooms.remove(chatRoomId, room);
+                    }
+                }
+            }
+        }
+    }
+
+    private List<Integer> collect(Window window, int viewerId, int[] blockedIds, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag,
+                                  int pageSize, List<Integer> ids) {
+        for (int i = window.count - 1; i >= 0 && ids.size() < pageSize; i--) {
+            RecentChatRecordEntry entry = window.get(i);
+            if (entry.isVisibleTo(viewerId, blockedIds, nsfwFlag, spamFlag)) {
+                ids.add(entry.id());
+            }
+        }
+        if (ids.size() < pageSize && window.hasOlder) {
+            //the viewer filters out too much of the buffer, older records are needed
+            fallbackCount.increment();
+            return null;
+        }
+        return ids;
+    }
+
+    public void upsert(int chatRoomId, RecentChatRecordEntry entry) {
+        Room room = rooms.get(chatRoomId);
+        if (room == null) {
+            return;
+        }
+        synchronized (room) {
+            room.generation++;
+            if (room.window != null) {
+                room.window.upsert(entry);
+            }
+        }
+    }
+
+    public void remove(int chatRoomId, int chatRecordId) {
+        Room room = rooms.get(chatRoomId);
+        if (room == null) {
+            return;
+        }
+        synchronized (room) {
+            room.generation++;
+            if (room.window != null) {
+                room.window.remove(chatRecordId);
+            }
+        }
+    }
+
+    public void evict(int chatRoomId) {
+        Room room = rooms.remove(chatRoomId);
+        if (room != null) {
+            dropWindow(room);
+        }
+    }
+
+    //only runs after a load, which already paid for a database read, so a scan of the rooms is cheap in comparison
+    private void evictLeastRecentlyRead() {
+        while (windowCount.get() > maxRooms) {
+            Map.Entry<Integer, Room> eldest = null;
+            for (Map.Entry<Integer, Room> candidate : rooms.entrySet()) {
+                if (eldest == null || candidate.getValue().lastAccess < eldest.getValue().lastAccess) {
+                    eldest = candidate;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            rooms.remove(eldest.getKey(), eldest.getValue());
+            dropWindow(eldest.getValue());
+        }
+    }
+
+    private void dropWindow(Room room) {
+        synchronized (room) {
+            room.generation++;
+            if (room.window != null) {
+                room.window = null;
+                windowCount.decrementAndGet();
+            }
+        }
+    }
+
+    public int getRoomCount() {
+        return windowCount.get();
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void logStats() {
+        long hits = hitCount.sum();
+        long loads = loadCount.sum();
+        if (hits + loads > 0) {
+            log.info(String.format("recent chat record cache: %d rooms, %d hits, %d loads, %d fallbacks to the database",
+                    getRoomCount(), hits, loads, fallbackCount.sum()));
+        }
+    }
+}
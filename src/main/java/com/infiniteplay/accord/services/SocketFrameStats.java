@@ -0,0 +1,79 @@
+package com.infiniteplay.accord.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+//per destination totals of the outbound socket traffic: how often a payload was converted to json and how many
+//sends shared that conversion (BroadcastService), and the bytes and encode time of the stomp frames written to the
+//sessions (MeteredStompEncoder). chatroom and user ids are folded into {id} so the number of keys stays small
+@Component
+public class SocketFrameStats {
+
+    private static final Logger log = LoggerFactory.getLogger(SocketFrameStats.class);
+    private static final Pattern ID_SEGMENT = Pattern.compile("/\\d+(?=/|$)");
+    private static final String NO_DESTINATION = "(no destination)";
+    private static final int LOGGED_DESTINATIONS = 10;
+
+    private static final class DestinationStats {
+        private final LongAdder conversions = new LongAdder();
+        private final LongAdder convertedBytes = new LongAdder();
+        private final LongAdder convertNanos = new LongAdder();
+        private final LongAdder sharedSends = new LongAdder();
+        private final LongAdder frames = new LongAdder();
+        private final LongAdder frameBytes = new LongAdder();
+        private final LongAdder encodeNanos = new LongAdder();
+    }
+
+    private final Map<String, DestinationStats> destinations = new ConcurrentHashMap<>();
+
+    //a payload converted once and sent sends times
+    public void recordConversion(String destination, int bytes, long nanos, int sends) {
+        DestinationStats stats = statsOf(destination);
+        stats.conversions.increment();
+        stats.convertedBytes.add(bytes);
+        stats.convertNanos.add(nanos);
+        stats.sharedSends.add(sends);
+    }
+
+    //one stomp frame encoded for one session
+    public void recordFrame(@Nullable String destination, int bytes, long nanos) {
+        DestinationStats stats = statsOf(destination);
+        stats.frames.increment();
+        stats.frameBytes.add(bytes);
+        stats.encodeNanos.add(nanos);
+    }
+
+    private DestinationStats statsOf(@Nullable String destination) {
+        String key = destination == null ? NO_DESTINATION : ID_SEGMENT.matcher(destination).replaceAll("/{id}");
+        return destinations.computeIfAbsent(key, k -> new DestinationStats());
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void logStats() {
+        if (destinations.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<String, DestinationStats>> entries = new ArrayList<>(destinations.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, DestinationStats> entry) -> entry.getValue().frameBytes.sum()).reversed());
+
+        StringBuilder builder = new StringBuilder("socket frames by destination:");
+        for (Map.Entry<String, DestinationStats> entry : entries.subList(0, Math.min(LOGGED_DESTINATIONS, entries.size()))) {
+            DestinationStats stats = entry.getValue();
+            builder.append(String.format("%n  %s: %d frames, %d bytes, %.1f ms encoding; %d conversions (%d bytes, %.1f ms) shared by %d sends",
+                    entry.getKey(), stats.frames.sum(), stats.frameBytes.sum(), stats.encodeNanos.sum() / 1_000_000.0,
+                    stats.conversions.sum(), stats.convertedBytes.sum(), stats.convertNanos.sum() / 1_000_000.0, stats.sharedSends.sum()));
+        }
+        log.info(builder.toString());
+    }
+}
@@ -34,10 +34,12 @@ import static com.infiniteplay.accord.services.AuthenticationService.computePass
 public class UserService {
     private final UserRepository userRepository;
     private final SimpMessagingTemplate broker;
+    private final BroadcastService broadcastService;
     private final ChatReactionRepository chatReactionRepository;
     private final ChatRoomRepository chatRoomRepository;
     private final BackgroundRepository backgroundRepository;
     private final PasswordEncoder passwordEncoder;
+    private final BlockedAssociationCache blockedAssociationCache;
 
     @Value("${filestorage.path}")
     String fileStoragePath;
@@ -138,11 +140,7 @@ public class UserService {
             TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
                 @Override
                 public void afterCommit() {
-                    for (User participant : participants) {
-                        if (!participant.getId().equals(user.getId())) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onUserCanPreviewStream", Map.of("userId", user.getId(), "can", userSettingsDTO.isCanPreviewStream()));
-                        }
-                    }
+                    broadcastService.sendToUsers(participants, user.getId(), Map.of("userId", user.getId(), "can", userSettingsDTO.isCanPreviewStream()), "/general/onUserCanPreviewStream");
                 }
 
             });
@@ -236,12 +234,8 @@ public class UserService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                for (User participant : participants) {
-                    if (!participant.getId().equals(user.getId())) {
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onUserScreenShareEnable/" + finalChatRoomId, Map.of("userId", user.getId(), "enabled", enabled));
-                        broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onUserScreenShareEnable", Map.of("enabled", enabled, "chatRoomId", finalChatRoomId));
-                    }
-                }
+                broadcastService.sendToUsers(participants, user.getId(), Map.of("userId", user.getId(), "enabled", enabled), "/general/onUserScreenShareEnable/" + finalChatRoomId);
+                broadcastService.sendToUsers(participants, user.getId(), Map.of("enabled", enabled, "chatRoomId", finalChatRoomId), "/general/onUserScreenShareEnable");
 
             }
         });
@@ -293,13 +287,7 @@ public class UserService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                if (!callParticipants.isEmpty()) {
-                    for (User participant : callParticipants) {
-                        if (!participant.getId().equals(user.getId())) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onUserVideoEnable/" + finalChatRoomId, Map.of("userId", user.getId(), "enabled", enabled));
-                        }
-                    }
-                }
+                broadcastService.sendToUsers(callParticipants, user.getId(), Map.of("userId", user.getId(), "enabled", enabled), "/general/onUserVideoEnable/" + finalChatRoomId);
             }
         });
 
@@ -328,13 +316,7 @@ public class UserService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                if (!callParticipants.isEmpty()) {
-                    for (User participant : callParticipants) {
-                        if (!participant.getId().equals(user.getId())) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onUserDeafen", Map.of("userId", user.getId(), "deafened", deafened, "chatRoomId", finalChatRoomId));
-                        }
-                    }
-                }
+                broadcastService.sendToUsers(callParticipants, user.getId(), Map.of("userId", user.getId(), "deafened", deafened, "chatRoomId", finalChatRoomId), "/general/onUserDeafen");
             }
         });
 
@@ -363,13 +345,7 @@ public class UserService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                if (!callParticipants.isEmpty()) {
-                    for (User participant : callParticipants) {
-                        if (!participant.getId().equals(user.getId())) {
-                            broker.convertAndSendToUser(participant.getUsername() + "@" + participant.getId(), "/general/onUserMute", Map.of("userId", user.getId(), "muted", muted, "chatRoomId", finalChatRoomId));
-                        }
-                    }
-                }
+                broadcastService.sendToUsers(callParticipants, user.getId(), Map.of("userId", user.getId(), "muted", muted, "chatRoomId", finalChatRoomId), "/general/onUserMute");
             }
         });
 
@@ -415,9 +391,7 @@ public class UserService {
                     }
                 }
 
-                for (User friend : friends) {
-                    broker.convertAndSendToUser(friend.getUsername() + "@" + friend.getId(), "/general/onEditProfile", user);
-                }
+                broadcastService.sendToUsers(friends, null, user, "/general/onEditProfile");
             }
         });
 
@@ -472,9 +446,7 @@ public class UserService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                for (User friend : friends) {
-                    broker.convertAndSendToUser(friend.getUsername() + "@" + friend.getId(), "/general/onEditProfile", user);
-                }
+                broadcastService.sendToUsers(friends, null, user, "/general/onEditProfile");
             }
         });
 
@@ -660,10 +632,7 @@ public class UserService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
-                for (User friend : friends) {
-//            System.out.println("sending status update to other users!!!!: " + friend.getUsername() + "@" + friend.getId());
-                    broker.convertAndSendToUser(friend.getUsername() + "@" + friend.getId(), "/general/onUserStatusUpdate", data);
-                }
+                broadcastService.sendToUsers(friends, null, data, "/general/onUserStatusUpdate");
             }
         });
 
@@ -934,6 +903,11 @@ public class UserService {
         return associations;
     }
 
+    //sorted ids of findAllBlockedAssociationsOf, served from memory
+    public int[] findAllBlockedAssociationIdsOf(User user) {
+        return blockedAssociationCache.get(user.getId());
+    }
+
     public Set<User> findAllBlockedOf(String usernameWithId) throws UserException {
         User user = findByUsernameWithId(usernameWithId);
         if (user == null) {
@@ -1241,6 +1215,7 @@ public class UserService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
+                blockedAssociationCache.invalidate(user.getId(), blocked.getId());
                 if (finalHadIncomingPendingFriendRequest)
                     broker.convertAndSendToUser(blocked.getUsername() + "@" + blocked.getId(), "/general/onRejectFriendRequest", usernameWithId);
                 if (finalHasOutgoingPendingFriendRequest)
@@ -1329,6 +1304,7 @@ public class UserService {
         TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
             @Override
             public void afterCommit() {
+                blockedAssociationCache.invalidate(user.getId(), blocked.getId());
                 broker.convertAndSendToUser(blocked.getUsername() + "@" + blocked.getId(), "/general/onUserUnblocked", user.getId());
             }
         });
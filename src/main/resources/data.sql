@@ -1,7 +1,13 @@
 CREATE EXTENSION IF NOT EXISTS pg_bigm;
+CREATE EXTENSION IF NOT EXISTS btree_gin;
 CREATE INDEX IF NOT EXISTS idx_chatroom_name ON accord_chatroom USING GIN(name gin_bigm_ops);
 CREATE INDEX IF NOT EXISTS idx_chatrecord_message ON chat_record USING GIN(message gin_bigm_ops);
+CREATE INDEX IF NOT EXISTS idx_chatrecord_room_message ON chat_record USING GIN(chatroom_id, message gin_bigm_ops);
 CREATE INDEX IF NOT EXISTS idx_chatrecord_attachments ON chat_record USING GIN(attachments gin_bigm_ops);
 CREATE INDEX IF NOT EXISTS idx_user_nickname ON accord_user USING GIN(nickname gin_bigm_ops);
 CREATE INDEX IF NOT EXISTS idx_user_username ON accord_user USING GIN(username gin_bigm_ops);
 
+-- summarizes reactions stored before chat_reaction_summary existed
+INSERT INTO chat_reaction_summary (chat_record_id, chatroom_id, code, count) SELECT chat_record_id, MIN(chat_room_id), code, COUNT(*) FROM chat_reaction WHERE chat_record_id IS NOT NULL AND chat_room_id IS NOT NULL GROUP BY chat_record_id, code ON CONFLICT (chat_record_id, code) DO NOTHING;
+-- tallies votes cast before poll_tally existed
+INSERT INTO poll_tally (chat_record_id, chatroom_id, answer_index, count) SELECT v.record_id, MIN(c.chatroom_id), v.answer_index, COUNT(*) FROM vote v JOIN chat_record c ON c.id = v.record_id WHERE c.chatroom_id IS NOT NULL GROUP BY v.record_id, v.answer_index ON CONFLICT (chat_record_id, answer_index) DO NOTHING;
@@ -0,0 +1,91 @@
+package com.infiniteplay.accord.ai;
+
+import ai.djl.inference.Predictor;
+import ai.djl.modality.Classifications;
+import ai.djl.repository.zoo.Criteria;
+import ai.djl.repository.zoo.ZooModel;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+//compares single-sequence inference with micro-batched inference on CPU. only runs when a model is given:
+//./gradlew test --tests '*TextClassifierBenchmark' -Dbenchmark.textmodel=<model directory>
+//the model directory must contain model.onnx and the tokenizer files, e.g. {aimodels.path}/spam_text_detector.
+//optional: -Dbenchmark.senders, -Dbenchmark.messages, -Dbenchmark.batchsize, -Dbenchmark.batchdelayms, -Dbenchmark.predictors
+@EnabledIfSystemProperty(named = "benchmark.textmodel", matches = ".+")
+class TextClassifierBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(TextClassifierBenchmark.class);
+
+    @Test
+    void compareSingleAndBatchedInference() throws Exception {
+        String modelDirectory = System.getProperty("benchmark.textmodel");
+        int senders = Integer.getInteger("benchmark.senders", 16);
+        int messages = Integer.getInteger("benchmark.messages", 2000);
+        int maxBatchSize = Integer.getInteger("benchmark.batchsize", 16);
+        long maxDelayMs = Long.getLong("benchmark.batchdelayms", 3);
+        int poolSize = Integer.getInteger("benchmark.predictors", 1);
+
+        Criteria<String, Classifications> criteria = Criteria.builder()
+                .setTypes(String.class, Classifications.class)
+                .optModelPath(Paths.get(modelDirectory, "model.onnx"))
+                .optTranslator(new TextClassificationTranslator(modelDirectory, List.of("ham", "spam")))
+                .optEngine("OnnxRuntime")
+                .build();
+
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            //vary the length so that batches need padding, like real chat traffic
+            inputs.add("hello there, message number " + i + " ".repeat(i % 7) + "see you at the meeting tomorrow".substring(0, 5 + i % 25));
+        }
+
+        ZooModel<String, Classifications> model = criteria.loadModel();
+        //the pool owns the model and closes it
+        try (PredictorPool<String, Classifications> pool = new PredictorPool<>("benchmark", model, poolSize, PredictorPool.OverflowPolicy.BLOCK, 0)) {
+
+            try (Predictor<String, Classifications> predictor = model.newPredictor()) {
+                //warm up the session before measuring
+                for (int i = 0; i < 50; i++) {
+                    predictor.predict(inputs.get(i));
+                }
+
+                long start = System.nanoTime();
+                for (String input : inputs) {
+                    predictor.predict(input);
+                }
+                report("single", messages, System.nanoTime() - start);
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(senders);
+            try (BatchedTextClassifier classifier = new BatchedTextClassifier("benchmark", pool, maxBatchSize, maxDelayMs, messages, 0)) {
+                long start = System.nanoTime();
+                List<Future<Classifications>> futures = new ArrayList<>();
+                for (String input : inputs) {
+                    futures.add(executor.submit(() -> classifier.classify(input)));
+                }
+                for (Future<Classifications> future : futures) {
+                    future.get();
+                }
+                report("batched (" + senders + " senders, " + poolSize + " predictors, batch " + maxBatchSize + ", " + maxDelayMs + "ms)",
+                        messages, System.nanoTime() - start);
+                log.info(String.format("pool waits: %d of %d borrows, avg %.2fms, max %.2fms",
+                        pool.getWaitCount(), pool.getBorrowCount(), pool.getAverageWaitMillis(), pool.getMaxWaitMillis()));
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static void report(String mode, int messages, long elapsedNanos) {
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        log.info(String.format("%-45s %8.1f msg/s  %6.2f ms/msg", mode, messages / seconds, seconds * 1000 / messages));
+    }
+}
@@ -0,0 +1,92 @@
+package com.infiniteplay.accord.models;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+//expected values follow the sql of CustomChatRecordRepositoryImpl.getNextPageByChatRoomIdBlockFiltered,
+//where a comparison with a null column is unknown and the row is not selected
+class RecentChatRecordEntryTest {
+
+    private static final int VIEWER_ID = 100;
+    private static final int[] BLOCKED = {3, 7};
+    private static final int[] NO_BLOCKED = new int[0];
+
+    private static boolean visible(RecentChatRecordEntry entry, ContentFilterFlag nsfwFlag, ContentFilterFlag spamFlag) {
+        return entry.isVisibleTo(VIEWER_ID, BLOCKED, nsfwFlag, spamFlag);
+    }
+
+    @Test
+    void nsfwFlagMatchesStoredValues() {
+        RecentChatRecordEntry nsfw = new RecentChatRecordEntry(1, 5, "text", true, false);
+        RecentChatRecordEntry clean = new RecentChatRecordEntry(2, 5, "text", false, false);
+
+        assertThat(visible(nsfw, ContentFilterFlag.INCLUDE, ContentFilterFlag.ANY)).isTrue();
+        assertThat(visible(nsfw, ContentFilterFlag.EXCLUDE, ContentFilterFlag.ANY)).isFalse();
+        assertThat(visible(clean, ContentFilterFlag.INCLUDE, ContentFilterFlag.ANY)).isFalse();
+        assertThat(visible(clean, ContentFilterFlag.EXCLUDE, ContentFilterFlag.ANY)).isTrue();
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = ContentFilterFlag.class, names = {"INCLUDE", "EXCLUDE"})
+    void nullNsfwMatchesNeitherTrueNorFalse(ContentFilterFlag flag) {
+        //c.isNsfw = TRUE and c.isNsfw = FALSE are both unknown for null
+        RecentChatRecordEntry entry = new RecentChatRecordEntry(1, 5, "text", null, false);
+
+        assertThat(visible(entry, flag, ContentFilterFlag.ANY)).isFalse();
+        assertThat(visible(entry, flag, ContentFilterFlag.EXCLUDE)).isFalse();
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = ContentFilterFlag.class, names = {"INCLUDE", "EXCLUDE"})
+    void nullSpamMatchesNeitherTrueNorFalse(ContentFilterFlag flag) {
+        RecentChatRecordEntry entry = new RecentChatRecordEntry(1, 5, "text", false, null);
+
+        assertThat(visible(entry, ContentFilterFlag.ANY, flag)).isFalse();
+    }
+
+    @Test
+    void nullFlagsAreVisibleWithoutAFilter() {
+        //getFlags adds no condition for ANY
+        RecentChatRecordEntry entry = new RecentChatRecordEntry(1, 5, "text", null, null);
+
+        assertThat(visible(entry, ContentFilterFlag.ANY, ContentFilterFlag.ANY)).isTrue();
+    }
+
+    @Test
+    void textOfBlockedSenderIsHidden() {
+        assertThat(visible(new RecentChatRecordEntry(1, 7, "text", false, false), ContentFilterFlag.ANY, ContentFilterFlag.ANY)).isFalse();
+        assertThat(visible(new RecentChatRecordEntry(2, 5, "text", false, false), ContentFilterFlag.ANY, ContentFilterFlag.ANY)).isTrue();
+        //only text records are filtered by sender
+        assertThat(visible(new RecentChatRecordEntry(3, 7, "system_join", false, false), ContentFilterFlag.ANY, ContentFilterFlag.ANY)).isTrue();
+    }
+
+    @Test
+    void textWithoutSenderFollowsTheBlockedCondition() {
+        RecentChatRecordEntry entry = new RecentChatRecordEntry(1, null, "text", false, false);
+
+        //null <> ALL({3, 7}) is unknown
+        assertThat(entry.isVisibleTo(VIEWER_ID, BLOCKED, ContentFilterFlag.ANY, ContentFilterFlag.ANY)).isFalse();
+        //<> ALL of an empty array is true
+        assertThat(entry.isVisibleTo(VIEWER_ID, NO_BLOCKED, ContentFilterFlag.ANY, ContentFilterFlag.ANY)).isTrue();
+    }
+
+    @Test
+    void privateSystemMessagesAreOnlyVisibleToTheirUser() {
+        RecentChatRecordEntry own = new RecentChatRecordEntry(1, null, "system_private_" + VIEWER_ID + "_notice", false, false);
+        RecentChatRecordEntry other = new RecentChatRecordEntry(2, null, "system_private_" + (VIEWER_ID + 1) + "_notice", false, false);
+        //a prefix of the viewer id must not match
+        RecentChatRecordEntry prefixed = new RecentChatRecordEntry(3, null, "system_private_" + VIEWER_ID + "0_notice", false, false);
+
+        assertThat(visible(own, ContentFilterFlag.ANY, ContentFilterFlag.ANY)).isTrue();
+        assertThat(visible(other, ContentFilterFlag.ANY, ContentFilterFlag.ANY)).isFalse();
+        assertThat(visible(prefixed, ContentFilterFlag.ANY, ContentFilterFlag.ANY)).isFalse();
+    }
+
+    @Test
+    void recordWithoutTypeIsHidden() {
+        assertThat(visible(new RecentChatRecordEntry(1, 5, null, false, false), ContentFilterFlag.ANY, ContentFilterFlag.ANY)).isFalse();
+    }
+}
@@ -0,0 +1,100 @@
+package com.infiniteplay.accord.repositories;
+
+import com.infiniteplay.accord.entities.User;
+import com.infiniteplay.accord.models.ChatRecordSearchFilter;
+import com.infiniteplay.accord.models.ContentFilterFlag;
+import jakarta.persistence.Entity;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.core.type.filter.AnnotationTypeFilter;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+//compares hibernate query interpretation of per-request query strings (literal cursor ids and random parameter names,
+//as the search used to build them) with the deterministic query shapes of CustomChatRecordRepositoryImpl.
+//only the mapping is needed, no database is contacted. only runs when asked for:
+//./gradlew test --tests '*ChatRecordQueryBenchmark' -Dbenchmark.queries=true [-Dbenchmark.searches=20000] [-Dbenchmark.plancachesize=2048]
+@EnabledIfSystemProperty(named = "benchmark.queries", matches = "true")
+class ChatRecordQueryBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatRecordQueryBenchmark.class);
+
+    @Test
+    void compareQueryInterpretation() throws Exception {
+        int searches = Integer.getInteger("benchmark.searches", 20000);
+        int planCacheSize = Integer.getInteger("benchmark.plancachesize", 2048);
+
+        Configuration configuration = new Configuration()
+                .setProperty("hibernate.dialect", "org.hibernate.dialect.PostgreSQLDialect")
+                .setProperty("hibernate.boot.allow_jdbc_metadata_access", "false")
+                .setProperty("hibernate.hbm2ddl.auto", "none")
+                .setProperty("hibernate.query.plan_cache_max_size", String.valueOf(planCacheSize));
+        ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false);
+        scanner.addIncludeFilter(new AnnotationTypeFilter(Entity.class));
+        for (BeanDefinition entity : scanner.findCandidateComponents("com.infiniteplay.accord.entities")) {
+            configuration.addAnnotatedClass(Class.forName(entity.getBeanClassName()));
+        }
+
+        List<List<ChatRecordSearchFilter>> filterCombinations = createFilterCombinations();
+        Random random = new Random(42);
+
+        try (SessionFactory sessionFactory = configuration.buildSessionFactory(); Session session = sessionFactory.openSession()) {
+            //warm up the parser before measuring
+            run(session, filterCombinations, random, 2000, false);
+            run(session, filterCombinations, random, 2000, true);
+
+            report("per-request query strings", searches, run(session, filterCombinations, random, searches, false));
+            report("deterministic query shapes", searches, run(session, filterCombinations, random, searches, true));
+        }
+    }
+
+    private static long run(Session session, List<List<ChatRecordSearchFilter>> filterCombinations, Random random, int searches, boolean deterministic) {
+        long start = System.nanoTime();
+        for (int i = 0; i < searches; i++) {
+            List<ChatRecordSearchFilter> filters = filterCombinations.get(i % filterCombinations.size());
+            boolean hasCursor = i % 3 != 0;
+            List<String> filterQueries = new ArrayList<>();
+            for (int position = 0; position < filters.size(); position++) {
+                String filterQuery = filters.get(position).getQualifiedQuery(position);
+                //the old filters carried a random suffix in every parameter name
+                filterQueries.add(deterministic ? filterQuery : filterQuery.replace(":f" + position + "_", ":f" + random.nextInt(100000000) + "_"));
+            }
+            String jpql = CustomChatRecordRepositoryImpl.buildSearchQuery(new CustomChatRecordRepositoryImpl.SearchQueryShape(
+                    false, false, hasCursor, false, filterQueries, ContentFilterFlag.EXCLUDE, ContentFilterFlag.EXCLUDE, false));
+            if (!deterministic && hasCursor) {
+                //the old search concatenated the cursor id into the query
+                jpql = jpql.replace(":cursorId", String.valueOf(1 + random.nextInt(10000000)));
+            }
+            session.createQuery(jpql, Integer.class);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static List<List<ChatRecordSearchFilter>> createFilterCombinations() {
+        User user = new User();
+        LocalDate date = LocalDate.of(2024, 1, 1);
+        return List.of(
+                List.of(),
+                List.of(ChatRecordSearchFilter.createContentFilter("hello")),
+                List.of(ChatRecordSearchFilter.createFromUserFilter(user), ChatRecordSearchFilter.createContentFilter("meeting")),
+                List.of(ChatRecordSearchFilter.createHasImageFilter()),
+                List.of(ChatRecordSearchFilter.createPinnedFilter(true), ChatRecordSearchFilter.createBeforeDateFilter(date, "Asia/Seoul")),
+                List.of(ChatRecordSearchFilter.createHasLinkFilter(), ChatRecordSearchFilter.createAfterDateFilter(date, "Asia/Seoul"), ChatRecordSearchFilter.createContentFilter("docs"))
+        );
+    }
+
+    private static void report(String mode, int searches, long elapsedNanos) {
+        double millis = elapsedNanos / 1_000_000.0;
+        log.info(String.format("%-30s %8.1f searches/s  %6.3f ms/search", mode, searches / (millis / 1000), millis / searches));
+    }
+}
@@ -0,0 +1,184 @@
+package com.infiniteplay.accord.repositories;
+
+import com.infiniteplay.accord.entities.AccountType;
+import com.infiniteplay.accord.entities.ChatRecord;
+import com.infiniteplay.accord.entities.ChatRoom;
+import com.infiniteplay.accord.entities.User;
+import com.infiniteplay.accord.models.ContentFilterFlag;
+import com.infiniteplay.accord.services.RecentChatRecordCache;
+import com.infiniteplay.accord.utils.TimeUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+//the newest page picked by RecentChatRecordCache and loaded with getAllByIdsOrdered has to be the page
+//getNextPageByChatRoomIdBlockFiltered selects in the database, for every viewer filter.
+//needs docker; skipped without it
+@DataJpaTest(properties = {
+        //data.sql needs the pg_bigm extension, which the plain postgres image does not have
+        "spring.sql.init.mode=never",
+        "spring.datasource.username=test",
+        "spring.datasource.password=test",
+        "chatrecord.perpagecount=" + RecentChatRecordParityTest.PAGE_SIZE
+})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Testcontainers(disabledWithoutDocker = true)
+class RecentChatRecordParityTest {
+
+    //small, so that the filtered pages of the small window are answered from it as well as fall back
+    static final int PAGE_SIZE = 4;
+
+    @Container
+    @ServiceConnection
+    static PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    //the application class needs the whole service layer, only the repositories and the cache are loaded here
+    @Configuration
+    @EntityScan(basePackageClasses = ChatRecord.class)
+    @EnableJpaRepositories(basePackageClasses = ChatRecordRepository.class)
+    @Import(RecentChatRecordCache.class)
+    static class TestConfig {
+    }
+
+    @Autowired
+    private TestEntityManager entityManager;
+    @Autowired
+    private ChatRecordRepository chatRecordRepository;
+    @Autowired
+    private RecentChatRecordCache recentChatRecordCache;
+
+    private User viewer;
+    private User sender;
+    private User blockedSender;
+    private ChatRoom chatRoom;
+    private int[] blocked;
+
+    @BeforeEach
+    void createRoom() {
+        viewer = persistUser("viewer");
+        sender = persistUser("sender");
+        blockedSender = persistUser("blocked");
+        blocked = new int[]{blockedSender.getId()};
+        chatRoom = persistChatRoom("room");
+        ChatRoom otherRoom = persistChatRoom("other");
+
+        persistRecord(chatRoom, "text", sender, false, false);
+        persistRecord(chatRoom, "text", blockedSender, false, false);
+        persistRecord(chatRoom, "text", sender, true, false);
+        persistRecord(chatRoom, "text", sender, false, true);
+        persistRecord(chatRoom, "text", sender, true, true);
+        persistRecord(chatRoom, "text", blockedSender, true, true);
+        persistRecord(chatRoom, "text", null, false, false);
+        //only text is filtered by sender
+        persistRecord(chatRoom, "system_join", blockedSender, false, false);
+        persistRecord(chatRoom, null, sender, false, false);
+        persistRecord(chatRoom, "system_private_" + viewer.getId() + "_notice", null, false, false);
+        persistRecord(chatRoom, "system_private_" + sender.getId() + "_notice", null, false, false);
+        //_ is a LIKE wildcard, the prefix system_private_1_ must match neither system_private_10_ nor system_private_1x
+        persistRecord(chatRoom, "system_private_" + viewer.getId() + "0_notice", null, false, false);
+        persistRecord(chatRoom, "system_private_" + viewer.getId() + "x_notice", null, false, false);
+        ChatRecord scheduled = persistRecord(chatRoom, "text", sender, false, false);
+        scheduled.setScheduledTime(System.currentTimeMillis() + 60000);
+        entityManager.flush();
+        persistRecord(otherRoom, "text", sender, false, false);
+
+        //rows written before the flags were not null
+        entityManager.getEntityManager().createNativeQuery("ALTER TABLE chat_record ALTER COLUMN is_nsfw DROP NOT NULL").executeUpdate();
+        entityManager.getEntityManager().createNativeQuery("ALTER TABLE chat_record ALTER COLUMN is_spam DROP NOT NULL").executeUpdate();
+        setFlagsToNull(persistRecord(chatRoom, "text", sender, false, false), true, false);
+        setFlagsToNull(persistRecord(chatRoom, "text", sender, false, false), false, true);
+        setFlagsToNull(persistRecord(chatRoom, "text", sender, false, false), true, true);
+        setFlagsToNull(persistRecord(chatRoom, "system_join", sender, false, false), true, true);
+        entityManager.clear();
+    }
+
+    @Test
+    void newestPageOfTheCacheMatchesTheDatabase() {
+        assertParity(recentChatRecordCache, blocked);
+        assertParity(recentChatRecordCache, new int[0]);
+    }
+
+    @Test
+    void newestPageOfASmallWindowMatchesTheDatabase() {
+        //the window is smaller than the room, so pages the viewer filters down have to fall back to the database
+        RecentChatRecordCache smallCache = new RecentChatRecordCache(6, 10);
+
+        assertParity(smallCache, blocked);
+        assertParity(smallCache, new int[0]);
+    }
+
+    private void assertParity(RecentChatRecordCache cache, int[] blockedIds) {
+        for (ContentFilterFlag nsfwFlag : ContentFilterFlag.values()) {
+            for (ContentFilterFlag spamFlag : ContentFilterFlag.values()) {
+                List<Integer> expected = ids(chatRecordRepository.getNextPageByChatRoomIdBlockFiltered(chatRoom, blockedIds, 0, viewer.getId(), nsfwFlag, spamFlag));
+
+                List<Integer> cachedIds = cache.getNewestPageIds(chatRoom.getId(), viewer.getId(), blockedIds, nsfwFlag, spamFlag, PAGE_SIZE,
+                        limit -> chatRecordRepository.getRecentEntries(chatRoom, limit));
+                if (cachedIds == null) {
+                    //ChatService reads the page from the database then
+                    continue;
+                }
+
+                assertThat(ids(chatRecordRepository.getAllByIdsOrdered(cachedIds, viewer.getId())))
+                        .as("nsfw %s, spam %s, %d blocked", nsfwFlag, spamFlag, blockedIds.length)
+                        .containsExactlyElementsOf(expected);
+            }
+        }
+        //the unfiltered page always fits the window
+        assertThat(cache.getNewestPageIds(chatRoom.getId(), viewer.getId(), blockedIds, ContentFilterFlag.ANY, ContentFilterFlag.ANY, PAGE_SIZE,
+                limit -> chatRecordRepository.getRecentEntries(chatRoom, limit))).isNotNull();
+    }
+
+    private static List<Integer> ids(List<ChatRecord> records) {
+        List<Integer> ids = new ArrayList<>(records.size());
+        for (ChatRecord record : records) {
+            ids.add(record.getId());
+        }
+        return ids;
+    }
+
+    private User persistUser(String name) {
+        User user = new User(null, AccountType.ACCORD, name + "@accord.test", name, name, null, new Date());
+        user.setRegisteredAt(new Date());
+        return entityManager.persistAndFlush(user);
+    }
+
+    private ChatRoom persistChatRoom(String name) {
+        ChatRoom room = new ChatRoom();
+        room.setName(name);
+        return entityManager.persistAndFlush(room);
+    }
+
+    private ChatRecord persistRecord(ChatRoom room, String type, User recordSender, boolean nsfw, boolean spam) {
+        ChatRecord record = new ChatRecord(null, type, "message", TimeUtils.getCurrentKST());
+        record.setChatRoom(room);
+        record.setSender(recordSender);
+        record.setNsfw(nsfw);
+        record.setSpam(spam);
+        return entityManager.persistAndFlush(record);
+    }
+
+    private void setFlagsToNull(ChatRecord record, boolean nsfw, boolean spam) {
+        entityManager.getEntityManager().createNativeQuery("UPDATE chat_record SET" +
+                        (nsfw ? " is_nsfw = NULL" : "") + (nsfw && spam ? "," : "") + (spam ? " is_spam = NULL" : "") + " WHERE id = :id")
+                .setParameter("id", record.getId())
+                .executeUpdate();
+    }
+}
@@ -0,0 +1,305 @@
+package com.infiniteplay.accord.services;
+
+import com.infiniteplay.accord.models.ContentFilterFlag;
+import com.infiniteplay.accord.models.RecentChatRecordEntry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecentChatRecordCacheTest {
+
+    private static final int ROOM_ID = 1;
+    private static final int VIEWER_ID = 100;
+    private static final int[] NO_BLOCKED = new int[0];
+
+    private static RecentChatRecordEntry text(int id) {
+        return new RecentChatRecordEntry(id, 7, "text", false, false);
+    }
+
+    //newest first, like CustomChatRecordRepositoryImpl.getRecentEntries
+    private static IntFunction<List<RecentChatRecordEntry>> loaderOf(List<RecentChatRecordEntry> roomRecords, AtomicInteger loads) {
+        return limit -> {
+            loads.incrementAndGet();
+            List<RecentChatRecordEntry> newest = new ArrayList<>();
+            for (int i = roomRecords.size() - 1; i >= 0 && newest.size() < limit; i--) {
+                newest.add(roomRecords.get(i));
+            }
+            return newest;
+        };
+    }
+
+    private static List<RecentChatRecordEntry> records(int fromId, int toId) {
+        List<RecentChatRecordEntry> records = new ArrayList<>();
+        for (int id = fromId; id <= toId; id++) {
+            records.add(text(id));
+        }
+        return records;
+    }
+
+    private static List<Integer> newestPage(RecentChatRecordCache cache, int pageSize, IntFunction<List<RecentChatRecordEntry>> loader) {
+        return cache.getNewestPageIds(ROOM_ID, VIEWER_ID, NO_BLOCKED, ContentFilterFlag.ANY, ContentFilterFlag.ANY, pageSize, loader);
+    }
+
+    @Test
+    void loadsOnceAndServesLaterReadsFromTheWindow() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(5, 10);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(records(1, 3), loads);
+
+        assertThat(newestPage(cache, 3, loader)).containsExactly(3, 2, 1);
+        assertThat(newestPage(cache, 3, loader)).containsExactly(3, 2, 1);
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void insertsAppendAndLateCommitsAreShiftedIntoPlace() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(5, 10);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(List.of(text(1), text(3)), loads);
+        newestPage(cache, 5, loader);
+
+        cache.upsert(ROOM_ID, text(5));
+        cache.upsert(ROOM_ID, text(4));
+        cache.upsert(ROOM_ID, text(2));
+
+        assertThat(newestPage(cache, 5, loader)).containsExactly(5, 4, 3, 2, 1);
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void fullWindowDropsItsOldestEntryAndRemembersOlderRecords() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(3, 10);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(records(1, 3), loads);
+        assertThat(newestPage(cache, 3, loader)).containsExactly(3, 2, 1);
+
+        cache.upsert(ROOM_ID, text(4));
+
+        assertThat(newestPage(cache, 3, loader)).containsExactly(4, 3, 2);
+        //record 1 fell out of the window, a bigger page than the window has to be read from the database
+        assertThat(newestPage(cache, 4, loader)).isNull();
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void hasOlderIsSetWhenTheRoomHasMoreRecordsThanTheWindow() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(3, 10);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(records(1, 4), loads);
+
+        assertThat(newestPage(cache, 3, loader)).containsExactly(4, 3, 2);
+        assertThat(newestPage(cache, 4, loader)).isNull();
+    }
+
+    @Test
+    void hasOlderIsNotSetWhenTheWholeRoomFits() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(3, 10);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(records(1, 3), loads);
+        newestPage(cache, 3, loader);
+
+        //a short page is the whole room, not a reason to fall back
+        assertThat(newestPage(cache, 10, loader)).containsExactly(3, 2, 1);
+    }
+
+    @Test
+    void updateOlderThanAFullWindowIsIgnored() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(3, 10);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(records(1, 4), loads);
+        newestPage(cache, 3, loader);
+
+        cache.upsert(ROOM_ID, new RecentChatRecordEntry(1, 7, "text", true, false));
+
+        assertThat(newestPage(cache, 3, loader)).containsExactly(4, 3, 2);
+    }
+
+    @Test
+    void upsertReplacesAnEntryInPlace() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(5, 10);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(records(1, 3), loads);
+        newestPage(cache, 3, loader);
+
+        cache.upsert(ROOM_ID, new RecentChatRecordEntry(2, 7, "text", true, false));
+
+        assertThat(cache.getNewestPageIds(ROOM_ID, VIEWER_ID, NO_BLOCKED, ContentFilterFlag.EXCLUDE, ContentFilterFlag.ANY, 3, loader))
+                .containsExactly(3, 1);
+        assertThat(newestPage(cache, 3, loader)).containsExactly(3, 2, 1);
+    }
+
+    @Test
+    void removeClosesTheGap() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(5, 10);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(records(1, 4), loads);
+        newestPage(cache, 4, loader);
+
+        cache.remove(ROOM_ID, 2);
+        cache.remove(ROOM_ID, 4);
+        cache.remove(ROOM_ID, 42);
+
+        assertThat(newestPage(cache, 4, loader)).containsExactly(3, 1);
+        cache.upsert(ROOM_ID, text(5));
+        assertThat(newestPage(cache, 4, loader)).containsExactly(5, 3, 1);
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void removeAfterTheRingWrappedKeepsTheOrder() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(3, 10);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(records(1, 3), loads);
+        newestPage(cache, 3, loader);
+        cache.upsert(ROOM_ID, text(4));
+        cache.upsert(ROOM_ID, text(5));
+
+        cache.remove(ROOM_ID, 4);
+
+        assertThat(newestPage(cache, 2, loader)).containsExactly(5, 3);
+    }
+
+    @Test
+    void windowLoadedDuringAConcurrentWriteIsNotInstalled() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(5, 10);
+        List<RecentChatRecordEntry> roomRecords = new ArrayList<>(records(1, 3));
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> reader = loaderOf(roomRecords, loads);
+        //record 4 commits after the loader read the room but before its window is installed
+        IntFunction<List<RecentChatRecordEntry>> racingLoader = limit -> {
+            List<RecentChatRecordEntry> newest = reader.apply(limit);
+            roomRecords.add(text(4));
+            cache.upsert(ROOM_ID, text(4));
+            return newest;
+        };
+
+        //the racing read still answers from what it loaded
+        assertThat(newestPage(cache, 5, racingLoader)).containsExactly(3, 2, 1);
+        //but the stale window was dropped, so the next read loads again and sees record 4
+        assertThat(newestPage(cache, 5, reader)).containsExactly(4, 3, 2, 1);
+        assertThat(loads).hasValue(2);
+        assertThat(newestPage(cache, 5, reader)).containsExactly(4, 3, 2, 1);
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    void windowLoadedDuringAConcurrentDeleteIsNotInstalled() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(5, 10);
+        List<RecentChatRecordEntry> roomRecords = new ArrayList<>(records(1, 3));
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> reader = loaderOf(roomRecords, loads);
+        IntFunction<List<RecentChatRecordEntry>> racingLoader = limit -> {
+            List<RecentChatRecordEntry> newest = reader.apply(limit);
+            roomRecords.remove(2);
+            cache.remove(ROOM_ID, 3);
+            return newest;
+        };
+
+        newestPage(cache, 5, racingLoader);
+
+        assertThat(newestPage(cache, 5, reader)).containsExactly(2, 1);
+    }
+
+    @Test
+    void windowOfARoomEvictedDuringItsLoadIsNotInstalled() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(5, 10);
+        List<RecentChatRecordEntry> roomRecords = new ArrayList<>(records(1, 3));
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> reader = loaderOf(roomRecords, loads);
+        //an evicted room is no longer bumped by writes, so a window loaded before the eviction could miss them
+        IntFunction<List<RecentChatRecordEntry>> racingLoader = limit -> {
+            List<RecentChatRecordEntry> newest = reader.apply(limit);
+            cache.evict(ROOM_ID);
+            roomRecords.add(text(4));
+            cache.upsert(ROOM_ID, text(4));
+            return newest;
+        };
+
+        newestPage(cache, 5, racingLoader);
+
+        assertThat(cache.getRoomCount()).isZero();
+        assertThat(newestPage(cache, 5, reader)).containsExactly(4, 3, 2, 1);
+    }
+
+    @Test
+    void leastRecentlyReadRoomIsEvicted() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(5, 2);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(records(1, 3), loads);
+
+        cache.getNewestPageIds(1, VIEWER_ID, NO_BLOCKED, ContentFilterFlag.ANY, ContentFilterFlag.ANY, 3, loader);
+        cache.getNewestPageIds(2, VIEWER_ID, NO_BLOCKED, ContentFilterFlag.ANY, ContentFilterFlag.ANY, 3, loader);
+        cache.getNewestPageIds(1, VIEWER_ID, NO_BLOCKED, ContentFilterFlag.ANY, ContentFilterFlag.ANY, 3, loader);
+        cache.getNewestPageIds(3, VIEWER_ID, NO_BLOCKED, ContentFilterFlag.ANY, ContentFilterFlag.ANY, 3, loader);
+        assertThat(cache.getRoomCount()).isEqualTo(2);
+        assertThat(loads).hasValue(3);
+
+        //room 1 was read after room 2 and is still buffered
+        cache.getNewestPageIds(1, VIEWER_ID, NO_BLOCKED, ContentFilterFlag.ANY, ContentFilterFlag.ANY, 3, loader);
+        assertThat(loads).hasValue(3);
+        cache.getNewestPageIds(2, VIEWER_ID, NO_BLOCKED, ContentFilterFlag.ANY, ContentFilterFlag.ANY, 3, loader);
+        assertThat(loads).hasValue(4);
+    }
+
+    @Test
+    void loadOfOneRoomDoesNotBlockOtherRooms() throws Exception {
+        RecentChatRecordCache cache = new RecentChatRecordCache(5, 10);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(records(1, 3), loads);
+        cache.getNewestPageIds(2, VIEWER_ID, NO_BLOCKED, ContentFilterFlag.ANY, ContentFilterFlag.ANY, 3, loader);
+
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread slowReader = new Thread(() -> newestPage(cache, 3, limit -> {
+            loading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return loader.apply(limit);
+        }));
+        slowReader.start();
+        try {
+            assertThat(loading.await(5, TimeUnit.SECONDS)).isTrue();
+            //room 2 is read and written while room 1 is still loading
+            cache.upsert(2, text(4));
+            assertThat(cache.getNewestPageIds(2, VIEWER_ID, NO_BLOCKED, ContentFilterFlag.ANY, ContentFilterFlag.ANY, 3, loader))
+                    .containsExactly(4, 3, 2);
+        } finally {
+            release.countDown();
+            slowReader.join();
+        }
+        assertThat(cache.getRoomCount()).isEqualTo(2);
+    }
+
+    @Test
+    void evictDropsTheWindow() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(5, 10);
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<List<RecentChatRecordEntry>> loader = loaderOf(records(1, 3), loads);
+        newestPage(cache, 3, loader);
+
+        cache.evict(ROOM_ID);
+
+        assertThat(cache.getRoomCount()).isZero();
+        newestPage(cache, 3, loader);
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    void disabledCacheNeverLoads() {
+        RecentChatRecordCache cache = new RecentChatRecordCache(0, 10);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertThat(newestPage(cache, 3, loaderOf(records(1, 3), loads))).isNull();
+        assertThat(loads).hasValue(0);
+    }
+}